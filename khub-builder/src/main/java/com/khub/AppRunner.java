@@ -16,13 +16,23 @@ import java.util.Properties;
 import java.util.logging.Logger;
 import java.util.stream.Collector;
 
+import org.bson.BsonDocument;
+
+import com.khub.common.AttachmentStore;
 import com.khub.common.Configuration;
 import com.khub.common.DockerRunner;
+import com.khub.common.HttpCache;
+import com.khub.common.HttpTransport;
 import com.khub.common.MongoConnector;
 import com.khub.common.PipelineStep;
 import com.khub.common.ResourceProvider;
-import com.khub.crawling.ConfluenceCrawler;
-import com.khub.crawling.TeamsCrawler;
+import com.khub.crawling.CheckpointStore;
+import com.khub.crawling.CrawlContext;
+import com.khub.crawling.CrawlerRegistry;
+import com.khub.crawling.FailedRequestJournal;
+import com.khub.crawling.FieldProjection;
+import com.khub.crawling.WatermarkStore;
+import com.khub.crawling.WorkQueue;
 import com.khub.enriching.KnowledgeEnricher;
 import com.khub.exporting.MongoExporter;
 import com.khub.extracting.ContentExtractor;
@@ -50,6 +60,13 @@ public class AppRunner {
     private Process docker;
 
     private boolean runAll = true;
+    private boolean incremental = false;
+    private boolean resume = false;
+    private boolean distributed = false;
+    private boolean recrawlFailed = false;
+
+    // Date of the crawled data, which differs from the current date for a resumed crawl
+    private String crawlDate = null;
 
     private String rawDataSuffix = "_raw_data";
     private String processedDataSuffix = "_processed";
@@ -139,6 +156,14 @@ public class AppRunner {
         return (formatter.format(localDate));
     }
 
+    /**
+     * Returns the date of the crawled data in the {@code YYYY-MM-DD} format
+     * @return the date of a resumed crawl or the current date
+     */
+    private String getCrawlDate() {
+        return crawlDate != null ? crawlDate : getCurrentDate();
+    }
+
     /**
      * Logs initial information upon starting the step execution
      * @param stepName - the name of a {@link PipelineStep}
@@ -163,40 +188,228 @@ public class AppRunner {
     }
 
     /**
-     * Runs the {@link com.khub.crawling.AbstractCrawler AbstractCrawler}
+     * Runs the crawlers of all sources registered in the {@link CrawlerRegistry}. An incremental crawl
+     * starts from a copy of the previous raw database and merges only changed content into it.
+     * The crawl progress is persisted, so that a resumed crawl continues an interrupted one.
+     * A distributed crawl shares its tasks with other builder instances crawling the same day
+     * through a work queue in the raw database, which also replaces the persisted progress.
+     * Failed requests are recorded in a journal, so that they can be crawled again later
      * @param result - true, if the step runned successfully, false otherwise
      */
     private boolean crawlKnowledge() {
-        String databaseName = getCurrentDate() + rawDataSuffix;
+        if (recrawlFailed) {
+            return recrawlFailedRequests();
+        }
+
+        if (distributed && (resume || incremental)) {
+            logger.warning("A distributed crawl continues the tasks of its work queue and is always a full crawl, "
+                + "ignoring --resume and --incremental");
+            resume = false;
+            incremental = false;
+        }
+
+        String interruptedDatabaseName = resume ? findInterruptedCrawl() : null;
+        if (interruptedDatabaseName != null) {
+            crawlDate = interruptedDatabaseName.substring(0, interruptedDatabaseName.length() - rawDataSuffix.length());
+        }
+
+        String databaseName = getCrawlDate() + rawDataSuffix;
         MongoDatabase database = mongoClient.getDatabase(databaseName);
 
-        boolean confluenceResult = false;
-        boolean teamsResult = false;
+        CheckpointStore checkpoints = null;
+        WorkQueue queue = null;
+        try {
+            if (distributed) {
+                queue = WorkQueue.of(database);
+            } else {
+                checkpoints = interruptedDatabaseName != null ? CheckpointStore.load(database) : CheckpointStore.create(database);
+            }
+        } catch (MongoException e) {
+            if (distributed) {
+                logger.severe("Unable to open the work queue in the database \"" + databaseName + "\"");
+                return false;
+            }
+            logger.warning("Unable to prepare checkpoints in the database \"" + databaseName + "\", proceeding without checkpoints");
+        }
 
-        // Confluence Crawling
-        if (config.confluenceEndpoint != null && config.confluenceHeader.isValid()) {
-            logger.info("Confluence API configuration is provided, proceeding to Confluence crawling...");
-            ConfluenceCrawler confluenceCrawler = new ConfluenceCrawler(config.confluenceEndpoint, config.confluenceHeader);
-            confluenceResult = confluenceCrawler.run(database);
+        // Failed requests of an interrupted crawl or of other builder instances are kept
+        FailedRequestJournal failedRequests = null;
+        try {
+            failedRequests = distributed || interruptedDatabaseName != null
+                ? FailedRequestJournal.load(database)
+                : FailedRequestJournal.create(database);
+        } catch (MongoException e) {
+            logger.warning("Unable to prepare the journal of failed requests in the database \"" + databaseName + "\", proceeding without it");
+        }
 
-            logger.info("Confluence data was successfully crawled");
-        } else {
-            logger.warning("Unable to crawl Confluence data because endpoint or header configuration is empty");
+        // A resumed incremental crawl was already prepared before its interruption
+        WatermarkStore watermarks = incremental ? prepareIncrementalCrawl(database, interruptedDatabaseName == null) : null;
+        HttpCache cache = HttpCache.of(config.httpCachePath, config.httpCacheSize * 1024L * 1024L);
+
+        // Configured sources are crawled concurrently into the same database
+        HttpTransport transport = HttpTransport.of(Duration.ofSeconds(config.httpConnectTimeout),
+            Duration.ofSeconds(config.httpRequestTimeout), config.httpThreads);
+        AttachmentStore attachments = AttachmentStore.of(config.attachmentsPath);
+        FieldProjection projection = config.crawlProjection ? FieldProjection.of(config.processingPath) : null;
+        CrawlContext context = CrawlContext.of(transport)
+            .withCache(cache)
+            .withWatermarks(watermarks)
+            .withCheckpoints(checkpoints)
+            .withQueue(queue)
+            .withFailedRequests(failedRequests)
+            .withAttachments(attachments)
+            .withProjection(projection);
+        boolean result;
+        try {
+            result = CrawlerRegistry.load().run(config, context, database, config.mongoBatchSize);
+        } finally {
+            transport.shutdown();
         }
 
-        // MS Teams Crawling
-        if (config.teamsEndpoint != null && config.teamsHeader.isValid()) {
-            logger.info("MS Teams API configuration is provided, proceeding to Teams crawling...");
-            TeamsCrawler teamsCrawler = new TeamsCrawler(config.teamsEndpoint, config.teamsHeader);
-            teamsResult = teamsCrawler.run(database);
+        // Persist high-water marks for the next incremental crawl
+        saveWatermarks(database, watermarks, result, failedRequests);
 
-            logger.info("Teams data was successfully crawled");
-        } else {
-            logger.warning("Unable to crawl Teams data because endpoint or header configuration is empty");
+        if (runAll == false) shutdownDocker();
+        return result;
+    }
+
+    /**
+     * Crawls the requests failed in the latest crawl with failed requests again and merges the
+     * retrieved data into its raw database, so that missing data is recovered without a new crawl
+     * @param result - true, if the step runned successfully, false otherwise
+     */
+    private boolean recrawlFailedRequests() {
+        String databaseName = findLatestCrawl(FailedRequestJournal.COLLECTION_NAME);
+        if (databaseName == null) {
+            logger.info("No crawl with failed requests was found, skipping the recrawl");
+            if (runAll == false) shutdownDocker();
+            return true;
+        }
+
+        crawlDate = databaseName.substring(0, databaseName.length() - rawDataSuffix.length());
+        logger.info("Crawling the failed requests of the crawl \"" + databaseName + "\" again");
+        MongoDatabase database = mongoClient.getDatabase(databaseName);
+
+        HttpCache cache = HttpCache.of(config.httpCachePath, config.httpCacheSize * 1024L * 1024L);
+        HttpTransport transport = HttpTransport.of(Duration.ofSeconds(config.httpConnectTimeout),
+            Duration.ofSeconds(config.httpRequestTimeout), config.httpThreads);
+        FieldProjection projection = config.crawlProjection ? FieldProjection.of(config.processingPath) : null;
+        WatermarkStore watermarks = WatermarkStore.load(database);
+        FailedRequestJournal failedRequests = FailedRequestJournal.load(database);
+        CrawlContext context = CrawlContext.of(transport)
+            .withCache(cache)
+            .withFailedRequests(failedRequests)
+            .withAttachments(AttachmentStore.of(config.attachmentsPath))
+            .withProjection(projection);
+        boolean result;
+        try {
+            result = CrawlerRegistry.load().recrawlFailed(config, context, database, config.mongoBatchSize);
+        } finally {
+            transport.shutdown();
         }
 
+        // Recovered content moves the high-water marks of its spaces and channels
+        saveWatermarks(database, watermarks, result, failedRequests);
+
         if (runAll == false) shutdownDocker();
-        return (confluenceResult || teamsResult);
+        return result;
+    }
+
+    /**
+     * Saves the high-water marks of the crawled data in the given raw database for the next incremental crawl.
+     * Spaces and channels with failed requests keep their previous marks, so that their missing data is
+     * retrieved again, and all of them keep their previous marks, if no source was crawled successfully
+     * or failed requests were not recorded, since sources complete their crawl despite failed requests
+     * @param database - the {@link MongoDatabase} of the crawl
+     * @param previous - the {@link WatermarkStore} of the previous crawl or null, if it was a full crawl
+     * @param result - true, if at least one source was crawled successfully, false otherwise
+     * @param failedRequests - the {@link FailedRequestJournal} of the crawl or null, if failed requests were not recorded
+     */
+    private void saveWatermarks(MongoDatabase database, WatermarkStore previous, boolean result, FailedRequestJournal failedRequests) {
+        List<BsonDocument> failures = null;
+        if (result && failedRequests != null) {
+            try {
+                failures = failedRequests.findAll();
+            } catch (MongoException e) {
+                logger.warning("Unable to read the journal of failed requests, keeping the previous high-water marks");
+            }
+        }
+        WatermarkStore.compute(database).retainFailed(previous, failures).save(database);
+    }
+
+    /**
+     * Finds the latest raw database with persisted crawl progress to resume
+     * @return the name of the raw database or null, if no crawl can be resumed
+     */
+    private String findInterruptedCrawl() {
+        String interruptedDatabaseName = findLatestCrawl(CheckpointStore.COLLECTION_NAME);
+        if (interruptedDatabaseName == null) {
+            logger.warning("No interrupted crawl was found, proceeding with a new crawl");
+        } else {
+            logger.info("Resuming the interrupted crawl \"" + interruptedDatabaseName + "\"");
+        }
+        return interruptedDatabaseName;
+    }
+
+    /**
+     * Finds the latest raw database up to the current date with documents in the given collection
+     * @param collectionName - the name of the internal collection
+     * @return the name of the raw database or null, if no such database was found
+     */
+    private String findLatestCrawl(String collectionName) {
+        String latestDatabaseName = null;
+        try {
+            for (String name : mongoClient.listDatabaseNames()) {
+                if (!name.endsWith(rawDataSuffix) || name.compareTo(getCurrentDate() + rawDataSuffix) > 0
+                        || (latestDatabaseName != null && name.compareTo(latestDatabaseName) < 0)) {
+                    continue;
+                }
+
+                MongoDatabase database = mongoClient.getDatabase(name);
+                if (database.getCollection(collectionName).countDocuments() != 0) {
+                    latestDatabaseName = name;
+                }
+            }
+        } catch (MongoException e) {
+            logger.severe("Unable to find a crawl with documents in the collection \"" + collectionName + "\"");
+            return null;
+        }
+        return latestDatabaseName;
+    }
+
+    /**
+     * Prepares the given raw database for an incremental crawl by copying the
+     * latest previous raw database into it and loading its high-water marks
+     * @param database - the {@link MongoDatabase} of the current crawl
+     * @param copy - true, if the previous raw database should be copied
+     * @return the {@link WatermarkStore} or null, if no previous crawl was found
+     */
+    private WatermarkStore prepareIncrementalCrawl(MongoDatabase database, boolean copy) {
+        String previousDatabaseName = null;
+        for (String name : mongoClient.listDatabaseNames()) {
+            if (name.endsWith(rawDataSuffix) && name.compareTo(database.getName()) < 0
+                    && (previousDatabaseName == null || name.compareTo(previousDatabaseName) > 0)) {
+                previousDatabaseName = name;
+            }
+        }
+
+        if (previousDatabaseName == null) {
+            logger.warning("No previous crawl was found, proceeding with a full crawl");
+            return null;
+        }
+
+        try {
+            MongoDatabase previousDatabase = mongoClient.getDatabase(previousDatabaseName);
+            if (copy) {
+                MongoConnector.copyDatabase(previousDatabase, database);
+                logger.info("Previous crawl \"" + previousDatabaseName + "\" was copied, proceeding with an incremental crawl");
+            }
+            return WatermarkStore.load(previousDatabase);
+
+        } catch (MongoException e) {
+            logger.severe("Unable to copy the previous crawl \"" + previousDatabaseName + "\", proceeding with a full crawl");
+            return null;
+        }
     }
 
     /**
@@ -204,14 +417,14 @@ public class AppRunner {
      * @param result - true, if the step runned successfully, false otherwise
      */
     private boolean processKnowledge() {
-        String sourceDatabaseName = getCurrentDate() + rawDataSuffix;
+        String sourceDatabaseName = getCrawlDate() + rawDataSuffix;
         MongoDatabase sourceDatabase = mongoClient.getDatabase(sourceDatabaseName);
 
-        String outputDatabaseName = getCurrentDate() + processedDataSuffix;
+        String outputDatabaseName = getCrawlDate() + processedDataSuffix;
         MongoDatabase outputDatabase = mongoClient.getDatabase(outputDatabaseName);
 
         JSONProcessor processor = JSONProcessor.of(config.processingPath, config.confluenceEndpoint);
-        boolean result = processor.run(sourceDatabase, outputDatabase);
+        boolean result = processor.run(sourceDatabase, outputDatabase, config.mongoBatchSize, config.processingPushdown);
 
         if (runAll == false) shutdownDocker();
         return result;
@@ -222,7 +435,7 @@ public class AppRunner {
      * @param result - true, if the step runned successfully, false otherwise
      */
     private boolean exportKnowledge() {
-        String databaseName = getCurrentDate() + processedDataSuffix;
+        String databaseName = getCrawlDate() + processedDataSuffix;
         MongoDatabase database = mongoClient.getDatabase(databaseName);
 
         MongoExporter exporter = new MongoExporter();
@@ -317,39 +530,30 @@ public class AppRunner {
             stepHelpInfo.add(stepList.indexOf(step) + 1 + ". " + stepInitials + " (" + step + ")");
         }
 
-        PipelineStep currentStep = null;
+        PipelineStep currentStep = stepList.get(0);
+        String stepName = null;
         boolean wrongStepName = false;
+        boolean unknownArgument = false;
 
         // Check arguments
-        switch(args.length) {
+        for (int i = 0; i < args.length; i++) {
+            switch(args[i]) {
 
-            case 3:
-                if (args[2].equals("--only")) {
-                    runAll = false;
-                }
-                else {
-                    break;
-                }
-
-            case 2:
-                if (args[0].equals("--run")) {
-                    currentStep = stepMap.get(args[1].toUpperCase());
-                    wrongStepName = currentStep == null ? true : false;
-                }
-                break;
-
-            case 1:
-                if (args[0].equals("--help")) {
-                    System.out.println("khub [--run STEP] [--only]\n" + 
+                case "--help":
+                    System.out.println("khub [--run STEP] [--only] [--incremental] [--resume] [--distributed] [--recrawl-failed]\n" + 
                         "  --run          Start the app from the given step (use only step initials)\n" + 
                         "  --only         Run only the given step\n" + 
+                        "  --incremental  Crawl only content changed since the previous crawl\n" + 
+                        "  --resume       Continue the latest interrupted crawl\n" + 
+                        "  --distributed  Share the crawl tasks with other instances using the same MongoDB\n" + 
+                        "  --recrawl-failed  Crawl only the failed requests of the latest crawl again\n" + 
                         "  --help\n" + 
                         "  --version\n\n" + 
                         "Available pipeline steps:\n  " + String.join("\n  ", stepHelpInfo));
                     System.exit(0);
-                }
+                    break;
 
-                if (args[0].equals("--version")) {
+                case "--version":
                     try {
                         Properties appProperties = new Properties();
                         appProperties.load(AppRunner.class.getResourceAsStream("/application.properties"));
@@ -358,21 +562,45 @@ public class AppRunner {
                         System.out.println("Unable to retrieve version");
                     }
                     System.exit(0);
-                }
+                    break;
+
+                case "--run":
+                    stepName = i + 1 < args.length ? args[++i] : "";
+                    currentStep = stepMap.get(stepName.toUpperCase());
+                    wrongStepName = currentStep == null ? true : false;
+                    break;
 
-                break;
-            
-            case 0:
-                currentStep = stepList.get(0);
-                break;
+                case "--only":
+                    runAll = false;
+                    break;
+
+                case "--incremental":
+                    incremental = true;
+                    break;
+
+                case "--resume":
+                    resume = true;
+                    break;
+
+                case "--distributed":
+                    distributed = true;
+                    break;
+
+                case "--recrawl-failed":
+                    recrawlFailed = true;
+                    break;
+
+                default:
+                    unknownArgument = true;
+            }
         }
 
         if (wrongStepName) {
-            System.out.println("Wrong pipeline step \"" + args[1] + 
+            System.out.println("Wrong pipeline step \"" + stepName + 
                 "\" given, available steps:\n  " + String.join("\n  ", stepHelpInfo));
             System.exit(1);
         }
-        else if (currentStep == null) {
+        else if (unknownArgument) {
             System.out.println("Unknown input, type --help for help");
             System.exit(1);
         }
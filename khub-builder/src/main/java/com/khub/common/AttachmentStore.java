@@ -0,0 +1,125 @@
+package com.khub.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+
+public class AttachmentStore {
+
+    private static final Logger logger = Logger.getLogger(AttachmentStore.class.getName());
+
+    // Downloads in progress are written here before they are moved to their checksum path
+    private static final String DOWNLOADS_DIRECTORY = ".downloads";
+
+    // Size of the buffer used to compute checksums, independent of the file size
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path storePath;
+    private final Path downloadsPath;
+
+    private AttachmentStore(Path storePath, Path downloadsPath) {
+        this.storePath = storePath;
+        this.downloadsPath = downloadsPath;
+    }
+
+    /**
+     * Returns an instance of {@link AttachmentStore} if the store directory exists
+     * or could be created under the given {@code storePath}, null otherwise
+     * @param storePath - the {@link Path} to the store directory
+     * @return the {@link AttachmentStore}
+     */
+    public static AttachmentStore of(Path storePath) {
+        if (storePath == null || FilesHelper.createDirectories(storePath) == null) {
+            return null;
+        }
+
+        Path downloadsPath = FilesHelper.createDirectories(storePath.resolve(DOWNLOADS_DIRECTORY));
+        if (downloadsPath == null) {
+            return null;
+        }
+
+        logger.info("Attachments are stored at \"" + storePath + "\"");
+        return new AttachmentStore(storePath, downloadsPath);
+    }
+
+    /**
+     * Creates an empty file receiving a download in progress
+     * @return the {@link Path} to the download file
+     * @throws IOException if the file could not be created
+     */
+    public Path createDownloadFile() throws IOException {
+        return Files.createTempFile(downloadsPath, "attachment", ".part");
+    }
+
+    /**
+     * Moves the given downloaded file to the path derived from its {@code SHA-256}
+     * checksum. The checksum is computed by streaming the file through a fixed buffer,
+     * so that memory use does not depend on the file size. A file with the same content
+     * stored before is kept and the download is removed
+     * @param downloadFile - the {@link Path} to the downloaded file
+     * @return the stored file as {@link BsonDocument} with its {@code checksum},
+     *         its {@code path} relative to the store directory and its {@code size}
+     * @throws IOException if the file could not be read or moved
+     */
+    public BsonDocument store(Path downloadFile) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not supported", e);
+        }
+
+        try (InputStream stream = new DigestInputStream(Files.newInputStream(downloadFile), digest)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (stream.read(buffer) != -1) {
+                // Only the digest of the content is needed
+            }
+        }
+        String checksum = HexFormat.of().formatHex(digest.digest());
+
+        long size = Files.size(downloadFile);
+        Path relativePath = Path.of(checksum.substring(0, 2), checksum);
+        Path file = storePath.resolve(relativePath);
+
+        if (Files.exists(file)) {
+            Files.delete(downloadFile);
+        } else {
+            Files.createDirectories(file.getParent());
+            try {
+                Files.move(downloadFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // The same content was stored concurrently
+                Files.deleteIfExists(downloadFile);
+            }
+        }
+
+        return new BsonDocument("checksum", new BsonString(checksum))
+            .append("path", new BsonString(relativePath.toString().replace('\\', '/')))
+            .append("size", new BsonInt64(size));
+    }
+
+    /**
+     * Removes the given download file, e.g. after a failed download
+     * @param downloadFile - the {@link Path} to the download file
+     */
+    public void discard(Path downloadFile) {
+        try {
+            Files.deleteIfExists(downloadFile);
+        } catch (IOException e) {
+            logger.warning("Unable to remove the download \"" + downloadFile + "\"");
+        }
+    }
+
+}
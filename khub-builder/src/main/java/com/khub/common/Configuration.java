@@ -17,15 +17,36 @@ public class Configuration {
 
     public final URL confluenceEndpoint;
     public final AuthenticationHeader confluenceHeader;
+    public final int confluenceConcurrency;
+    public final int confluenceRequestRate;
+    public final boolean confluenceBulkSearch;
+    public final boolean confluenceParallelPagination;
+    public final Path confluenceExportPath;
 
     public final URL teamsEndpoint;
     public final AuthenticationHeader teamsHeader;
+    public final int teamsConcurrency;
+    public final int teamsRequestRate;
 
     public final ConnectionString mongoConnectionString;
+    public final int mongoBatchSize;
 
     public final Path dockerPath;
 
+    public final Path httpCachePath;
+    public final int httpCacheSize;
+
+    public final Path attachmentsPath;
+
+    public final Path metricsPath;
+
+    public final int httpConnectTimeout;
+    public final int httpRequestTimeout;
+    public final int httpThreads;
+
     public final Path processingPath;
+    public final boolean crawlProjection;
+    public final boolean processingPushdown;
 
     public final Path knowledgePath;
     public final Path contentPath;
@@ -54,18 +75,39 @@ public class Configuration {
         String confluenceHeaderValue = parseString("confluence.header.value");
         String confluenceToken = parseString("confluence.token");
         confluenceHeader = new AuthenticationHeader(confluenceHeaderKey, confluenceHeaderValue, confluenceToken);
+        confluenceConcurrency = parseInteger("confluence.concurrency", 16);
+        confluenceRequestRate = parseInteger("confluence.request.rate", 10);
+        confluenceBulkSearch = parseBoolean("confluence.bulk.search", false);
+        confluenceParallelPagination = parseBoolean("confluence.parallel.pagination", false);
+        confluenceExportPath = parsePath("confluence.export.path");
 
         teamsEndpoint = parseUrl("teams.endpoint");
         String teamsHeaderKey = parseString("teams.header.key");
         String teamsHeaderValue = parseString("teams.header.value");
         String teamsToken = parseString("teams.token");
         teamsHeader = new AuthenticationHeader(teamsHeaderKey, teamsHeaderValue, teamsToken);
+        teamsConcurrency = parseInteger("teams.concurrency", 8);
+        teamsRequestRate = parseInteger("teams.request.rate", 10);
 
         mongoConnectionString = parseConnectionString("mongo.connection.string");
+        mongoBatchSize = parseInteger("mongo.batch.size", 500);
 
         dockerPath = parsePath("docker.path");
 
+        httpCachePath = parsePath("http.cache.path");
+        httpCacheSize = parseInteger("http.cache.size", 1024);
+
+        attachmentsPath = parsePath("attachments.path");
+
+        metricsPath = parsePath("metrics.path");
+
+        httpConnectTimeout = parseInteger("http.connect.timeout", 10);
+        httpRequestTimeout = parseInteger("http.request.timeout", 60);
+        httpThreads = parseInteger("http.threads", 8);
+
         processingPath = parsePath("processing.path");
+        crawlProjection = parseBoolean("crawl.projection", false);
+        processingPushdown = parseBoolean("processing.pushdown", false);
 
         knowledgePath = parsePath("knowledge.path");
         contentPath = parsePath("content.path");
@@ -103,6 +145,44 @@ public class Configuration {
         }
     }
 
+    /**
+     * Parses and validates property as positive {@code int}
+     * @param key - the property key 
+     * @param defaultValue - the value used if the property is missing or invalid
+     * @return the {@code int} value in {@link Properties} with the specified key
+     */
+    private int parseInteger(String key, int defaultValue) {
+        String property = properties.getProperty(key);
+        try {
+            validateNotNullOrEmpty(property);
+            int value = Integer.parseInt(property.trim());
+            if (value < 1) throw new IllegalArgumentException(property);
+            return value;
+        } catch (IllegalArgumentException e) {
+            logInvalidPropertyValue(key);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parses and validates property as {@code boolean}
+     * @param key - the property key 
+     * @param defaultValue - the value used if the property is missing or invalid
+     * @return the {@code boolean} value in {@link Properties} with the specified key
+     */
+    private boolean parseBoolean(String key, boolean defaultValue) {
+        String property = properties.getProperty(key);
+        try {
+            validateNotNullOrEmpty(property);
+            if (property.trim().equalsIgnoreCase("true")) return true;
+            if (property.trim().equalsIgnoreCase("false")) return false;
+            throw new IllegalArgumentException(property);
+        } catch (IllegalArgumentException e) {
+            logInvalidPropertyValue(key);
+            return defaultValue;
+        }
+    }
+
     /**
      * Parses and validates property as {@link ConnectionString}
      * @param key - the property key 
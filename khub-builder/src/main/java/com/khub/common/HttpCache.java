@@ -0,0 +1,265 @@
+package com.khub.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class HttpCache {
+
+    private static final Logger logger = Logger.getLogger(HttpCache.class.getName());
+
+    private static final String BODY_EXTENSION = ".body";
+    private static final String METADATA_EXTENSION = ".meta";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    // Eviction removes entries until the cache is below this share of the budget
+    private static final double EVICTION_TARGET = 0.9;
+
+    private final Path cachePath;
+    private final long maxSize;
+    private final AtomicLong size;
+
+    private HttpCache(Path cachePath, long maxSize, long size) {
+        this.cachePath = cachePath;
+        this.maxSize = maxSize;
+        this.size = new AtomicLong(size);
+    }
+
+    /**
+     * Returns an instance of {@link HttpCache} if the cache directory exists
+     * or could be created under the given {@code cachePath}, null otherwise
+     * @param cachePath - the {@link Path} to the cache directory
+     * @param maxSize - the disk budget of the cache in bytes
+     * @return the {@link HttpCache}
+     */
+    public static HttpCache of(Path cachePath, long maxSize) {
+        if (cachePath == null || FilesHelper.createDirectories(cachePath) == null) {
+            return null;
+        }
+
+        try (Stream<Path> files = Files.list(cachePath)) {
+            // Temporary files of an interrupted crawl are never completed and removed instead of counted
+            long size = files.filter(file -> !file.toString().endsWith(TEMP_EXTENSION) || !delete(file))
+                .mapToLong(file -> file.toFile().length()).sum();
+            logger.info("HTTP cache at \"" + cachePath + "\" contains " + size / 1024 + " KB");
+            return new HttpCache(cachePath, maxSize, size);
+
+        } catch (IOException | SecurityException e) {
+            logger.warning("Unable to read the HTTP cache at \"" + cachePath + "\"");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the conditional request headers for the given {@code URL}
+     * as name value pairs, if a validated response is cached
+     * @param uri - the request {@code URL}
+     * @return the {@code If-None-Match} and {@code If-Modified-Since} headers
+     */
+    public String[] getConditionalHeaders(String uri) {
+        String key = getKey(uri);
+        Properties metadata = readMetadata(key);
+        if (metadata == null || !Files.exists(cachePath.resolve(key + BODY_EXTENSION))) {
+            return new String[0];
+        }
+
+        List<String> headers = new ArrayList<String>();
+        if (metadata.getProperty("etag") != null) {
+            headers.add("If-None-Match");
+            headers.add(metadata.getProperty("etag"));
+        }
+        if (metadata.getProperty("lastModified") != null) {
+            headers.add("If-Modified-Since");
+            headers.add(metadata.getProperty("lastModified"));
+        }
+        return headers.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the response body for the given request, which is streamed from the cache if the
+     * resource was not modified and otherwise cached, if the response has validators
+     * @param uri - the request {@code URL}
+     * @param response - the {@link HttpResponse} to the conditional request
+     * @return the {@link InputStream} with the response body or null, if the resource was
+     *         not modified but its cached body was evicted after the request was built
+     * @throws IOException if the resource was not modified but the cached body cannot be read
+     */
+    public InputStream resolve(String uri, HttpResponse<byte[]> response) throws IOException {
+        return resolve(uri, response.statusCode(), response.headers().firstValue("ETag").orElse(null),
+            response.headers().firstValue("Last-Modified").orElse(null), response.body());
+    }
+
+    /**
+     * Returns the response body for the given request like {@link #resolve(String, HttpResponse)}
+     * for responses, which are not received as {@link HttpResponse}, e.g. sub-responses of a batch request
+     * @param uri - the request {@code URL}
+     * @param statusCode - the status code of the response to the conditional request
+     * @param etag - the {@code ETag} header of the response or null, if missing
+     * @param lastModified - the {@code Last-Modified} header of the response or null, if missing
+     * @param body - the response body or null, if the resource was not modified
+     * @return the {@link InputStream} with the response body or null, if the resource was
+     *         not modified but its cached body was evicted after the request was built
+     * @throws IOException if the resource was not modified but the cached body cannot be read
+     */
+    public InputStream resolve(String uri, int statusCode, String etag, String lastModified, byte[] body) throws IOException {
+        String key = getKey(uri);
+        Path bodyPath = cachePath.resolve(key + BODY_EXTENSION);
+
+        if (statusCode == 304) {
+            try {
+                Files.setLastModifiedTime(bodyPath, FileTime.fromMillis(System.currentTimeMillis()));
+                return Files.newInputStream(bodyPath);
+            } catch (NoSuchFileException e) {
+                logger.info("Cached response for \"" + uri + "\" was evicted, requesting it again");
+                return null;
+            }
+        }
+
+        if (statusCode == 200) {
+            store(key, uri, etag, lastModified, body);
+        }
+        return new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Stores the response body with its validators and evicts least recently
+     * used entries, if the cache exceeds its disk budget
+     * @param key - the cache key
+     * @param uri - the request {@code URL}
+     * @param etag - the {@code ETag} header of the response or null, if missing
+     * @param lastModified - the {@code Last-Modified} header of the response or null, if missing
+     * @param body - the response body
+     */
+    private void store(String key, String uri, String etag, String lastModified, byte[] body) {
+        Properties metadata = new Properties();
+        if (etag != null) metadata.setProperty("etag", etag);
+        if (lastModified != null) metadata.setProperty("lastModified", lastModified);
+        if (metadata.isEmpty()) return;
+
+        Path bodyPath = cachePath.resolve(key + BODY_EXTENSION);
+        Path metadataPath = cachePath.resolve(key + METADATA_EXTENSION);
+        Path bodyTemp = null;
+        Path metadataTemp = null;
+        try {
+            long previousSize = bodyPath.toFile().length() + metadataPath.toFile().length();
+
+            // Writes to temporary files first, so that concurrent readers never see partial entries
+            bodyTemp = Files.createTempFile(cachePath, key, TEMP_EXTENSION);
+            Files.write(bodyTemp, body);
+            metadataTemp = Files.createTempFile(cachePath, key, TEMP_EXTENSION);
+            try (OutputStream stream = Files.newOutputStream(metadataTemp)) {
+                metadata.store(stream, uri);
+            }
+            Files.move(bodyTemp, bodyPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(metadataTemp, metadataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            long currentSize = size.addAndGet(bodyPath.toFile().length() + metadataPath.toFile().length() - previousSize);
+            if (currentSize > maxSize) evict();
+
+        } catch (IOException | SecurityException e) {
+            logger.warning("Unable to cache the response for \"" + uri + "\"");
+            if (bodyTemp != null) delete(bodyTemp);
+            if (metadataTemp != null) delete(metadataTemp);
+        }
+    }
+
+    /**
+     * Removes least recently used entries until the cache size is below the target share of its budget
+     */
+    private synchronized void evict() {
+        if (size.get() <= maxSize) return;
+
+        try (Stream<Path> files = Files.list(cachePath)) {
+            List<Path> bodies = files
+                .filter(file -> file.toString().endsWith(BODY_EXTENSION))
+                .sorted(Comparator.comparingLong(file -> file.toFile().lastModified()))
+                .collect(Collectors.toList());
+
+            long targetSize = (long) (maxSize * EVICTION_TARGET);
+            int evictedCount = 0;
+            for (Path bodyPath : bodies) {
+                if (size.get() <= targetSize) break;
+
+                String fileName = bodyPath.getFileName().toString();
+                Path metadataPath = cachePath.resolve(fileName.replace(BODY_EXTENSION, METADATA_EXTENSION));
+                long entrySize = bodyPath.toFile().length() + metadataPath.toFile().length();
+
+                Files.deleteIfExists(metadataPath);
+                Files.deleteIfExists(bodyPath);
+                size.addAndGet(-entrySize);
+                evictedCount++;
+            }
+
+            logger.info(evictedCount + " entries were evicted from the HTTP cache");
+        } catch (IOException | SecurityException e) {
+            logger.warning("Unable to evict entries from the HTTP cache at \"" + cachePath + "\"");
+        }
+    }
+
+    /**
+     * Deletes the given temporary file of an incomplete entry
+     * @param file - the {@link Path} to the temporary file
+     * @return true, if the file was deleted or did not exist, false otherwise
+     */
+    private static boolean delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException | SecurityException e) {
+            logger.warning("Unable to delete the temporary file \"" + file + "\" of the HTTP cache");
+            return false;
+        }
+    }
+
+    /**
+     * Reads the validators of the cache entry with the given key
+     * @param key - the cache key
+     * @return the {@link Properties} with validators or null, if no entry exists
+     */
+    private Properties readMetadata(String key) {
+        Path metadataPath = cachePath.resolve(key + METADATA_EXTENSION);
+        if (!Files.exists(metadataPath)) return null;
+
+        try (InputStream stream = Files.newInputStream(metadataPath)) {
+            Properties metadata = new Properties();
+            metadata.load(stream);
+            return metadata;
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cache key for the given {@code URL}
+     * @param uri - the request {@code URL}
+     * @return the hex encoded {@code SHA-256} hash of the {@code URL}
+     */
+    private String getKey(String uri) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(uri.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -3,6 +3,9 @@ package com.khub.common;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class HttpRequestBuilder {
@@ -31,4 +34,50 @@ public class HttpRequestBuilder {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Builds and returns a {@code POST} {@link HttpRequest} with a {@code JSON} body
+     * @param uri - the request {@code URI} as {@link String}
+     * @param body - the {@code JSON} request body
+     * @param headers - the request headers as name value pairs
+     * @return the built {@link HttpRequest}
+     * @throws URISyntaxException - if the given uri is falformed
+     */
+    public static HttpRequest buildPost(String uri, String body, String... headers) throws URISyntaxException {
+        try {
+            HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+                .POST(BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .uri(new URI(uri))
+                .header("Content-Type", "application/json");
+            return headers == null ? requestBuilder.build() : requestBuilder.headers(headers).build();
+
+        } catch (URISyntaxException | NullPointerException | IllegalArgumentException e) {
+            logger.warning("Invalid request URI format for \"" + uri + "\"");
+            throw new URISyntaxException(uri, e.getMessage());
+        }
+    }
+
+    /**
+     * Builds and returns an {@link HttpRequest}, which is conditional
+     * if a validated response for the request is in the given {@link HttpCache}
+     * @param uri - the request {@code URI} as {@link String}
+     * @param cache - the {@link HttpCache} or null, if caching is disabled
+     * @param headers - the request headers as name value pairs 
+     * @return the built {@link HttpRequest}
+     * @throws URISyntaxException - if the given uri is falformed
+     */
+    public static HttpRequest build(String uri, HttpCache cache, String... headers) throws URISyntaxException {
+        String[] conditionalHeaders = cache != null ? cache.getConditionalHeaders(uri) : new String[0];
+        if (conditionalHeaders.length == 0) {
+            return build(uri, headers);
+        }
+
+        if (headers == null) {
+            return build(uri, conditionalHeaders);
+        }
+
+        String[] allHeaders = Arrays.copyOf(headers, headers.length + conditionalHeaders.length);
+        System.arraycopy(conditionalHeaders, 0, allHeaders, headers.length, conditionalHeaders.length);
+        return build(uri, allHeaders);
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.khub.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class HttpTransport {
+
+    // Content codings accepted from the server and decoded transparently
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(60);
+    public static final int DEFAULT_THREADS = 8;
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final Duration requestTimeout;
+
+    private HttpTransport(HttpClient client, ExecutorService executor, Duration requestTimeout) {
+        this.client = client;
+        this.executor = executor;
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Creates an {@link HttpTransport} preferring {@code HTTP/2}, so that concurrent requests
+     * to the same host are multiplexed over a single connection. Responses are handled on
+     * a dedicated pool of daemon threads, which is shared by all requests of the transport
+     * @param connectTimeout - the maximum duration of establishing a connection
+     * @param requestTimeout - the maximum duration until the response headers are received
+     * @param threads - the count of threads handling responses
+     * @return the {@link HttpTransport}
+     */
+    public static HttpTransport of(Duration connectTimeout, Duration requestTimeout, int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "khub-http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(connectTimeout)
+            .executor(executor)
+            .build();
+        return new HttpTransport(client, executor, requestTimeout);
+    }
+
+    /**
+     * Creates an {@link HttpTransport} with the default timeouts and count of threads
+     * @return the {@link HttpTransport}
+     */
+    public static HttpTransport ofDefaults() {
+        return of(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, DEFAULT_THREADS);
+    }
+
+    /**
+     * Shuts down the threads handling responses once the pending requests are done.
+     * The transport is shut down by its creator after all crawlers sharing it finished
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Asynchronously sends the given request asking for a compressed response and
+     * returns the decoded response body. The request timeout of the transport
+     * applies, unless the request defines its own timeout
+     * @param request - the {@link HttpRequest}
+     * @return the {@link CompletableFuture} with the {@link HttpResponse}
+     */
+    public CompletableFuture<HttpResponse<byte[]>> sendAsync(HttpRequest request) {
+        return sendAsync(request, responseInfo -> {}, receivedBytes -> {});
+    }
+
+    /**
+     * Asynchronously sends the given request like {@link #sendAsync(HttpRequest)} and notifies
+     * the given listeners once the response headers arrived and once the body was received,
+     * e.g. to tell the time to the first response byte apart from the transfer of the body
+     * @param request - the {@link HttpRequest}
+     * @param headersListener - the {@link Consumer} of the response headers
+     * @param bodyListener - the {@link LongConsumer} of the count of received body bytes before decoding
+     * @return the {@link CompletableFuture} with the {@link HttpResponse}
+     */
+    public CompletableFuture<HttpResponse<byte[]>> sendAsync(HttpRequest request, Consumer<ResponseInfo> headersListener,
+            LongConsumer bodyListener) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true)
+            .setHeader("Accept-Encoding", ACCEPT_ENCODING);
+        if (request.timeout().isEmpty()) builder.timeout(requestTimeout);
+
+        return client.sendAsync(builder.build(), decoding(headersListener, bodyListener));
+    }
+
+    /**
+     * Asynchronously sends the given request and writes the response body to the given file
+     * as it arrives, so that no part of the body is held in memory. The body is requested
+     * without compression, since downloaded files are mostly compressed already
+     * @param request - the {@link HttpRequest}
+     * @param file - the {@link Path} to the file receiving the body, which is truncated first
+     * @return the {@link CompletableFuture} with the {@link HttpResponse}
+     */
+    public CompletableFuture<HttpResponse<Path>> downloadAsync(HttpRequest request, Path file) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true);
+        if (request.timeout().isEmpty()) builder.timeout(requestTimeout);
+
+        return client.sendAsync(builder.build(), BodyHandlers.ofFile(file,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Returns the {@link BodyHandler} decoding the response body
+     * according to its {@code Content-Encoding} header
+     * @param headersListener - the {@link Consumer} of the response headers
+     * @param bodyListener - the {@link LongConsumer} of the count of received body bytes before decoding
+     * @return the {@link BodyHandler}
+     */
+    private static BodyHandler<byte[]> decoding(Consumer<ResponseInfo> headersListener, LongConsumer bodyListener) {
+        return responseInfo -> {
+            headersListener.accept(responseInfo);
+            String encoding = responseInfo.headers().firstValue("Content-Encoding").orElse("identity");
+            return BodySubscribers.mapping(BodySubscribers.ofByteArray(), body -> {
+                bodyListener.accept(body.length);
+                try {
+                    return decode(body, encoding);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to decode \"" + encoding + "\" response body", e);
+                }
+            });
+        };
+    }
+
+    /**
+     * Decodes the given response body
+     * @param body - the response body
+     * @param encoding - the {@code Content-Encoding} of the body
+     * @return the decoded body
+     * @throws IOException if the body is malformed
+     */
+    private static byte[] decode(byte[] body, String encoding) throws IOException {
+        if (body.length == 0) return body;
+
+        switch (encoding.trim().toLowerCase()) {
+            case "gzip":
+            case "x-gzip":
+                try (InputStream stream = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                    return stream.readAllBytes();
+                }
+
+            case "deflate":
+                // Some servers send raw deflate data without the zlib wrapper
+                boolean wrapped = body.length > 1 && (body[0] & 0x0F) == 8 && ((body[0] & 0xFF) << 8 | (body[1] & 0xFF)) % 31 == 0;
+                Inflater inflater = new Inflater(!wrapped);
+                try (InputStream stream = new InflaterInputStream(new ByteArrayInputStream(body), inflater)) {
+                    return stream.readAllBytes();
+                } finally {
+                    inflater.end();
+                }
+
+            default:
+                return body;
+        }
+    }
+
+}
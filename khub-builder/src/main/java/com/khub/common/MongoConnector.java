@@ -1,9 +1,11 @@
 package com.khub.common;
 
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.bson.BsonDocument;
 import org.bson.BsonInt64;
+import org.bson.Document;
 
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoException;
@@ -15,6 +17,9 @@ public class MongoConnector {
 
     private static final Logger logger = Logger.getLogger(MongoConnector.class.getName());
 
+    // Collections with this prefix hold pipeline state and not knowledge data
+    public static final String INTERNAL_COLLECTION_PREFIX = "_";
+
     // Prevents instantiation
     private MongoConnector() {
     }
@@ -38,4 +43,30 @@ public class MongoConnector {
             throw new MongoException("Unable to connect to Mongo DB", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks if the collection with the given name holds internal pipeline state
+     * @param collectionName - the collection name
+     * @return true, if the collection is internal and should not be processed
+     */
+    public static boolean isInternalCollection(String collectionName) {
+        return collectionName.startsWith(INTERNAL_COLLECTION_PREFIX);
+    }
+
+    /**
+     * Copies all collections except internal ones of the {@code source} database into the
+     * {@code target} database. Documents are copied server-side with {@code $merge}, replacing documents with the same id
+     * @param source - the {@link MongoDatabase} to copy from
+     * @param target - the {@link MongoDatabase} to copy to
+     * @throws MongoException if a collection could not be copied
+     */
+    public static void copyDatabase(MongoDatabase source, MongoDatabase target) throws MongoException {
+        for (String collectionName : source.listCollectionNames()) {
+            if (isInternalCollection(collectionName)) continue;
+
+            Document into = new Document("db", target.getName()).append("coll", collectionName);
+            Document merge = new Document("$merge", new Document("into", into).append("whenMatched", "replace"));
+            source.getCollection(collectionName).aggregate(List.of(merge)).toCollection();
+        }
+    }
+}
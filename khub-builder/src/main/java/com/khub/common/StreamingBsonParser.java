@@ -0,0 +1,131 @@
+package com.khub.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+
+public class StreamingBsonParser {
+
+    // Prevents instantiation
+    private StreamingBsonParser() {
+    }
+
+    /**
+     * Parses the {@code JSON} object from the given {@link InputStream} in a single pass
+     * directly into a {@link BsonDocument}. Keys are renamed structurally while reading:
+     * {@code id} becomes the {@code BSON} identifier {@code _id} and the invalid
+     * {@code @odata.} prefix of {@code Teams} keys becomes {@code odata}
+     * @param stream - the {@link InputStream} with {@code UTF-8} encoded {@code JSON}
+     * @return the parsed {@link BsonDocument}
+     * @throws IOException if the stream cannot be read
+     * @throws JsonParseException if the stream does not contain a {@code JSON} object
+     */
+    public static BsonDocument parse(InputStream stream) throws IOException, JsonParseException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            return readDocument(reader);
+
+        } catch (MalformedJsonException | EOFException | IllegalStateException | NumberFormatException e) {
+            throw new JsonParseException("Unable to parse JSON object", e);
+        }
+    }
+
+    /**
+     * Renames a {@code JSON} key to a valid {@code BSON} field name
+     * @param key - the {@code JSON} key
+     * @return the {@code BSON} field name
+     */
+    public static String toFieldName(String key) {
+        if (key.equals("id")) return "_id";
+        return key.contains("@odata.") ? key.replace("@odata.", "odata") : key;
+    }
+
+    /**
+     * Reads the next {@code JSON} object
+     * @param reader - the {@link JsonReader}
+     * @return the {@link BsonDocument}
+     * @throws IOException if the stream cannot be read
+     */
+    private static BsonDocument readDocument(JsonReader reader) throws IOException {
+        BsonDocument document = new BsonDocument();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = toFieldName(reader.nextName());
+            document.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return document;
+    }
+
+    /**
+     * Reads the next {@code JSON} value
+     * @param reader - the {@link JsonReader}
+     * @return the {@link BsonValue}
+     * @throws IOException if the stream cannot be read
+     */
+    private static BsonValue readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+
+            case BEGIN_OBJECT:
+                return readDocument(reader);
+
+            case BEGIN_ARRAY:
+                BsonArray array = new BsonArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.add(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+
+            case STRING:
+                return new BsonString(reader.nextString());
+
+            case NUMBER:
+                return readNumber(reader.nextString());
+
+            case BOOLEAN:
+                return BsonBoolean.valueOf(reader.nextBoolean());
+
+            case NULL:
+                reader.nextNull();
+                return BsonNull.VALUE;
+
+            default:
+                throw new IllegalStateException("Unexpected JSON token " + reader.peek());
+        }
+    }
+
+    /**
+     * Converts the {@code JSON} number to the narrowest fitting {@code BSON} number type
+     * @param number - the number literal
+     * @return the {@link BsonValue} with the number
+     */
+    private static BsonValue readNumber(String number) {
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            try {
+                long value = Long.parseLong(number);
+                return value == (int) value ? new BsonInt32((int) value) : new BsonInt64(value);
+            } catch (NumberFormatException e) {
+                // Integers exceeding 64 bits are stored as double
+            }
+        }
+        return new BsonDouble(Double.parseDouble(number));
+    }
+
+}
@@ -1,93 +1,919 @@
 package com.khub.crawling;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
-import org.bson.Document;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.khub.common.AttachmentStore;
 import com.khub.common.AuthenticationHeader;
+import com.khub.common.HttpCache;
+import com.khub.common.HttpRequestBuilder;
+import com.khub.common.HttpTransport;
+import com.khub.common.StreamingBsonParser;
 import com.mongodb.MongoException;
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
 public abstract class AbstractCrawler implements Crawler {
 
     protected final Logger logger = Logger.getLogger(this.getClass().getName());
 
-    protected final HttpClient client = HttpClient.newHttpClient();
+    protected final HttpTransport transport;
 
     protected final URL endpoint;
     protected final AuthenticationHeader requestHeader;
 
-    public AbstractCrawler(URL endpoint, AuthenticationHeader requestHeader) {
+    // Sends requests within the concurrency and rate limits of this source and retries them
+    private final RequestSender sender;
+
+    // Count of response pages requested ahead of the consumed page while paginating in parallel
+    private final int concurrency;
+
+    // Conditional request cache, null if caching is disabled
+    protected final HttpCache cache;
+
+    // High-water marks of the previous crawl, null for a full crawl
+    protected final WatermarkStore watermarks;
+
+    // Crawl progress persisted in the raw database, null if checkpointing is disabled
+    protected final CheckpointStore checkpoints;
+
+    // Interval of persisting the crawl progress
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 30;
+
+    // Count of failed requests, a crawl with failed requests is not completed
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    // Tasks shared by several builder instances, null if crawling in a single instance
+    protected final WorkQueue queue;
+
+    // Journal of failed requests in the raw database, null if failed requests are only logged
+    protected final FailedRequestJournal failedRequests;
+
+    // Content-addressed store of downloaded attachments, null if attachments are not crawled
+    protected final AttachmentStore attachments;
+    private final AttachmentDownloader downloader;
+
+    // Latencies, volumes and outcomes of the requests per endpoint
+    protected final CrawlMetrics metrics;
+
+    // Fields needed by processing, null if documents are stored entirely
+    protected final FieldProjection projection;
+
+    // Type of the task enqueuing all further tasks of a crawler, claimed by a single builder instance
+    protected static final String PLAN_TASK = "plan";
+
+    public AbstractCrawler(URL endpoint, AuthenticationHeader requestHeader, int concurrency, double requestRate,
+            CrawlContext context) {
         this.endpoint = endpoint;
         this.requestHeader = requestHeader;
+        this.metrics = new CrawlMetrics(concurrency);
+        this.transport = context.transport;
+        this.sender = new RequestSender(transport, metrics, concurrency, requestRate);
+        this.concurrency = Math.max(1, concurrency);
+        this.cache = context.cache;
+        this.watermarks = context.watermarks;
+        this.checkpoints = context.checkpoints;
+        this.queue = context.queue;
+        this.failedRequests = context.failedRequests;
+        this.attachments = context.attachments;
+        this.downloader = attachments != null ? new AttachmentDownloader(this, attachments) : null;
+        this.projection = context.projection;
     }
 
     /**
-     * Starts the {@link Crawler} and writes retrieved data to
-     * collections in the provided {@link MongoDatabase}. 
-     * @param database - the {@link MongoDatabase} to write data to
-     * @return true, if the step runned successfully, false otherwise
+     * Returns the metrics of the requests sent by the crawler so far
+     * @return the {@link CrawlMetrics}
+     */
+    public CrawlMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Checks if the crawler retrieves only content changed since the previous crawl
+     * @return true, if high-water marks of a previous crawl are provided
      */
-    public boolean run(MongoDatabase database) {
-        int retrievedDataSize = 0;
+    protected boolean isIncremental() {
+        return watermarks != null;
+    }
 
-        Map<String, List<JsonElement>> data = run();
-        for (String collectionName : data.keySet()) {
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+    /**
+     * Returns the entries contained in a single response page
+     * @param response - the response page as {@link BsonDocument}
+     * @return the {@link List} of response entries
+     */
+    protected abstract List<BsonDocument> getResults(BsonDocument response);
 
-            List<JsonElement> collectionData = data.get(collectionName);
-            retrievedDataSize += collectionData.size();
-            importCollection(collection, collectionData, collectionName);
+    /**
+     * Returns the request {@code URL} of the next response page
+     * @param response - the response page as {@link BsonDocument}
+     * @return the next request {@code URL} or null, if the response is the last page
+     */
+    protected abstract String getNextRequestUrl(BsonDocument response);
+
+    /**
+     * Returns the request {@code URL}s of all remaining response pages, if they can be derived
+     * from the first response page, e.g. from its total count of entries
+     * @param requestUrl - the request {@code URL} of the first response page
+     * @param response - the first response page as {@link BsonDocument}
+     * @return the {@link List} of request {@code URL}s in page order or an empty
+     *         {@link List}, if the pages must be followed one after another
+     */
+    protected List<String> getPageUrls(String requestUrl, BsonDocument response) {
+        return List.of();
+    }
+
+    /**
+     * Returns the fields of the documents of the given collection, which the crawler relies on
+     * in addition to the fields needed by processing, e.g. to resume an interrupted crawl
+     * from the stored documents or to compute the high-water marks of the next crawl
+     * @param collectionName - the name of the collection
+     * @return the {@link List} of dotted field paths
+     */
+    protected List<String> getRequiredFields(String collectionName) {
+        return List.of();
+    }
+
+    /**
+     * Returns the given {@link CrawlSink} storing only the fields needed by processing and
+     * by the crawler itself, if a {@link FieldProjection} is provided, the given sink otherwise
+     * @param sink - the {@link CrawlSink} storing the documents
+     * @return the projecting {@link CrawlSink}
+     */
+    CrawlSink project(CrawlSink sink) {
+        if (projection == null) {
+            return sink;
         }
 
-        return retrievedDataSize != 0;
+        Map<String, FieldProjection> projections = new ConcurrentHashMap<String, FieldProjection>();
+        return (collectionName, document) -> {
+            FieldProjection collectionProjection = projections.computeIfAbsent(collectionName,
+                name -> projection.with(getRequiredFields(name)));
+            sink.accept(collectionName, collectionProjection.project(document));
+        };
     }
 
     /**
-     * Imports the {@link List} of {@link JsonElement}s in the given {@link MongoCollection}
-     * @param collection - the {@link MongoCollection}
-     * @param data - the collection of {@link JsonElement}s
-     * @param collectionName - the name of the {@link MongoCollection} to import
+     * Crawls the given tasks of the same type claimed from the {@link WorkQueue}. The task
+     * of type {@value #PLAN_TASK} is claimed by a single builder instance and enqueues
+     * the further tasks with {@link #enqueue(String, List)}
+     * @param type - the task type
+     * @param tasks - the {@link List} of task payloads
+     * @param sink - the {@link CrawlSink} for the retrieved data
      */
-    private void importCollection(MongoCollection<Document> collection, List<JsonElement> data, String collectionName) {
-        if (data.size() == 0) return;
-        List<Document> documents = new ArrayList<Document>();
+    protected abstract void crawlTasks(String type, List<BsonDocument> tasks, CrawlSink sink);
 
-        // Converts JSON to BSON document
-        for (JsonElement jsonElement : data) {
-            if (jsonElement == null || !jsonElement.isJsonObject()) {
-                continue;
-            }
-            JsonObject jsonObject = jsonElement.getAsJsonObject();
+    /**
+     * Crawls the given task again for the given parents recorded in the {@link FailedRequestJournal},
+     * including all further tasks for the children retrieved for these parents
+     * @param taskName - the name of the failed task
+     * @param parents - the {@link List} of parent {@link BsonDocument}s the task failed for
+     * @param sink - the {@link CrawlSink} for the retrieved data
+     */
+    protected abstract void recrawl(String taskName, List<BsonDocument> parents, CrawlSink sink);
 
-            // Renames the id key and removes invalid BSON field names
-            String jsonString = jsonObject.toString()
-                .replaceAll("\"id\":", "\"_id\":")
-                .replaceAll("@odata.", "odata");
-            documents.add(Document.parse(jsonString));
+    /**
+     * Adds tasks to the {@link WorkQueue}, each identified by the {@code _id} of its payload
+     * @param type - the task type
+     * @param tasks - the {@link List} of task payloads
+     */
+    protected void enqueue(String type, List<BsonDocument> tasks) {
+        Map<String, BsonDocument> payloads = new LinkedHashMap<String, BsonDocument>();
+        for (BsonDocument task : tasks) {
+            BsonValue id = task.get("_id");
+            payloads.put(id != null && id.isString() ? id.asString().getValue() : String.valueOf(id), task);
         }
 
-        // Inserts BSON documents to collection
+        queue.enqueue(this.getClass().getSimpleName(), type, payloads);
+        logger.info(payloads.size() + " " + type + " tasks were enqueued");
+    }
+
+    /**
+     * Returns the given documents without duplicates with the same id, e.g.
+     * documents replayed and retrieved again while resuming a crawl
+     * @param documents - the {@link List} of {@link BsonDocument}s
+     * @return the {@link List} of distinct {@link BsonDocument}s
+     */
+    protected List<BsonDocument> distinctById(List<BsonDocument> documents) {
+        Map<BsonValue, BsonDocument> distinct = new LinkedHashMap<BsonValue, BsonDocument>();
+        for (BsonDocument document : documents) {
+            distinct.putIfAbsent(document.get("_id"), document);
+        }
+        return new ArrayList<BsonDocument>(distinct.values());
+    }
+
+    /**
+     * Returns the {@code JSON} objects contained in the given array, skipping other values
+     * @param array - the {@link BsonArray} of response entries
+     * @return the {@link List} of {@link BsonDocument}s
+     */
+    protected List<BsonDocument> toDocuments(BsonArray array) {
+        List<BsonDocument> documents = new ArrayList<BsonDocument>(array.size());
+        for (BsonValue value : array) {
+            if (value.isDocument()) documents.add(value.asDocument());
+        }
+        return documents;
+    }
+
+    /**
+     * Starts the {@link Crawler} and writes retrieved data to collections in the provided
+     * {@link MongoDatabase}. Data is written in batches while crawling is still in progress
+     * and the crawl progress is periodically persisted, if checkpointing is enabled.
+     * Documents are stored with the fields of the {@link FieldProjection} only, if provided
+     * @param database - the {@link MongoDatabase} to write data to
+     * @param batchSize - the count of documents written at once
+     * @return true, if the crawl completed, even if nothing changed or some tasks failed and were recorded
+     *         in the {@link FailedRequestJournal} to be crawled again, false otherwise
+     */
+    public boolean run(MongoDatabase database, int batchSize) {
+        if (queue != null) {
+            return new QueuedCrawl(this, queue).run(database, batchSize);
+        }
+
+        String crawlerKey = this.getClass().getSimpleName();
+        if (checkpoints != null && checkpoints.isCompleted(crawlerKey)) {
+            logger.info("The crawl was completed before the interruption, skipping the crawler");
+            return true;
+        }
+
+        boolean resumed = checkpoints != null && checkpoints.isResumed();
+        MongoSink sink = new MongoSink(database, batchSize, isIncremental() || resumed);
+        ScheduledExecutorService scheduler = null;
+        boolean completed = false;
         try {
-            long size = collection.countDocuments();
-            if (size != 0) {
-                collection.deleteMany(new Document());
-                logger.warning("The collection \"" + collectionName + "\" was not empty, removed " + size + " documents");
+            if (checkpoints != null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor();
+                scheduler.scheduleWithFixedDelay(() -> commitCheckpoints(crawlerKey, sink),
+                    CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
+
+            run(project(sink));
+            sink.flush();
+
+            // Rejected documents are missing like the data of failed tasks, whose response pages are not skipped on resume
+            if (sink.getWriteError() != null) {
+                failedCount.incrementAndGet();
+                recordFailure(null, null, null, sink.getWriteError());
+            } else if (checkpoints != null) {
+                if (failedCount.get() == 0) checkpoints.complete(crawlerKey);
+                checkpoints.commit(crawlerKey, () -> flushWritten(sink));
             }
+            completed = true;
+        } catch (MongoException e) {
+            logger.severe("Unable to write crawled data into the database \"" + database.getName() + "\"");
+            recordFailure(null, null, null, e);
+        } catch (RuntimeException e) {
+            // Data of an aborted crawl is incomplete like after a failed request outside of a task
+            recordFailure(null, null, null, e);
+            throw e;
+        } finally {
+            if (scheduler != null) scheduler.shutdown();
+        }
+
+        logger.info(sink.getWrittenCount() + " documents were successfully written into the database \"" + database.getName() + "\"");
+        if (failedCount.get() != 0) {
+            logger.warning(failedCount.get() + " tasks failed, their data is incomplete"
+                + (failedRequests != null ? " and recorded in the journal of failed requests" : ""));
+        }
+        return completed;
+    }
+
+    /**
+     * Crawls the requests recorded in the {@link FailedRequestJournal} again and merges the
+     * retrieved data into the collections of the given {@link MongoDatabase}. Each failed task
+     * is crawled again for its parent, a failed request listing the parents of all tasks
+     * leads to crawling all data again. Requests failing again are kept in the journal
+     * @param database - the {@link MongoDatabase} of the crawl with failed requests
+     * @param batchSize - the count of documents written at once
+     * @return true, if no request failed again, false otherwise
+     */
+    public boolean recrawlFailed(MongoDatabase database, int batchSize) {
+        if (failedRequests == null) {
+            logger.warning("No journal of failed requests is provided, skipping the crawler");
+            return false;
+        }
+        return new FailedRequestRecrawl(this, failedRequests).run(database, batchSize);
+    }
+
+    /**
+     * Retrieves data for the given request and returns an empty
+     * collection if request failed or no data received
+     * @param requestUrl - the request {@code URL}
+     * @return the response
+     */
+    protected List<BsonDocument> retrieve(String requestUrl) {
+        return retrieveAsync(requestUrl).join();
+    }
 
-            collection.insertMany(documents);
-            logger.info(data.size() + " documents were successfully inserted into the collection \"" + collectionName + "\"");
+    /**
+     * Persists the crawl progress after writing all pending documents
+     * @param crawlerKey - the key of the crawler
+     * @param sink - the {@link MongoSink} with pending documents
+     */
+    private void commitCheckpoints(String crawlerKey, MongoSink sink) {
+        if (sink.getWriteError() != null) return;
+        try {
+            checkpoints.commit(crawlerKey, () -> flushWritten(sink));
         } catch (MongoException e) {
-            logger.severe("Unable to insert the collection \"" + collectionName + "\"");
+            logger.warning("Unable to persist the crawl progress, retrying with the next checkpoint");
+        }
+    }
+
+    /**
+     * Writes all pending documents of the given {@link MongoSink} and fails, if any document was rejected
+     * so far, so that no checkpoint is persisted past the response pages of documents missing in the database
+     * @param sink - the {@link MongoSink} with pending documents
+     * @throws MongoException if pending documents could not be written or documents were rejected
+     */
+    private static void flushWritten(MongoSink sink) throws MongoException {
+        sink.flush();
+        if (sink.getWriteError() != null) throw sink.getWriteError();
+    }
+
+    /**
+     * Asynchronously retrieves data for the given request and collects all response pages
+     * @param requestUrl - the request {@code URL}
+     * @return the {@link CompletableFuture} with the response, which is empty if request failed
+     */
+    protected CompletableFuture<List<BsonDocument>> retrieveAsync(String requestUrl) {
+        List<BsonDocument> results = new ArrayList<BsonDocument>();
+        return streamAsync(requestUrl, results::addAll)
+            .handle((count, exception) -> {
+                if (exception == null) return results;
+                recordFailure(null, null, null, exception);
+                return List.of();
+            });
+    }
+
+    /**
+     * Asynchronously retrieves data for the given request by following the pagination
+     * of the response page by page and passes the entries of each page to the {@code consumer}
+     * as soon as it arrives. Each request is scheduled through the {@link ConcurrencyLimiter},
+     * so that pagination chains of different requests are interleaved up to the crawler concurrency
+     * @param requestUrl - the request {@code URL}
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @return the {@link CompletableFuture} with the count of response entries,
+     *         completed exceptionally if a request failed
+     */
+    protected CompletableFuture<Integer> streamAsync(String requestUrl, Consumer<List<BsonDocument>> consumer) {
+        AtomicInteger count = new AtomicInteger();
+        return retrievePage(requestUrl, null, consumer, count, null, null).thenApply(ignored -> count.get());
+    }
+
+    /**
+     * Asynchronously retrieves data for the given request like {@link #streamAsync(String, Consumer)}
+     * and records the cursor of the next response page as checkpoint of the given task.
+     * A task completed before the interruption of a resumed crawl is skipped and a started
+     * task is continued from its last persisted cursor
+     * @param requestUrl - the request {@code URL}
+     * @param taskKey - the key identifying the task within the crawler
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @return the {@link CompletableFuture} with the count of response entries,
+     *         completed exceptionally if a request failed
+     */
+    protected CompletableFuture<Integer> streamAsync(String requestUrl, String taskKey, Consumer<List<BsonDocument>> consumer) {
+        return streamAsync(requestUrl, taskKey, null, null, consumer);
+    }
+
+    /**
+     * Asynchronously retrieves data for the given request like {@link #streamAsync(String, String, Consumer)}.
+     * The documents of a task started before the interruption of a resumed crawl are
+     * replayed from the given collection first, so that their children are crawled as well
+     * @param requestUrl - the request {@code URL}
+     * @param taskKey - the key identifying the task within the crawler
+     * @param collectionName - the name of the collection the documents of the task are written to
+     * @param filter - the {@link Bson} filter matching the documents of the task
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @return the {@link CompletableFuture} with the count of response entries,
+     *         completed exceptionally if a request failed
+     */
+    protected CompletableFuture<Integer> streamAsync(String requestUrl, String taskKey, String collectionName,
+            Bson filter, Consumer<List<BsonDocument>> consumer) {
+        return streamAsync(requestUrl, taskKey, collectionName, filter, consumer, null, false);
+    }
+
+    /**
+     * Asynchronously retrieves data for the given request like {@link #streamAsync(String, String, String, Bson, Consumer)},
+     * while the {@code consumer} adds the downloads started for the entries to the given list. The cursor
+     * of the next response page is only recorded after the downloads started so far are finished, so
+     * that a persisted checkpoint never points past documents still waiting for their downloads.
+     * The returned {@link CompletableFuture} is completed after all downloads
+     * @param requestUrl - the request {@code URL}
+     * @param taskKey - the key identifying the task within the crawler
+     * @param collectionName - the name of the collection the documents of the task are written to or null
+     * @param filter - the {@link Bson} filter matching the documents of the task or null
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @param downloads - the synchronized {@link List} of downloads started by the {@code consumer}
+     * @return the {@link CompletableFuture} with the count of response entries,
+     *         completed exceptionally if a request or a download failed
+     */
+    protected CompletableFuture<Integer> streamAsync(String requestUrl, String taskKey, String collectionName,
+            Bson filter, Consumer<List<BsonDocument>> consumer, List<CompletableFuture<Void>> downloads) {
+        return streamAsync(requestUrl, taskKey, collectionName, filter, consumer, downloads, false);
+    }
+
+    /**
+     * Asynchronously retrieves data for the given request like {@link #streamAsync(String, String, String, Bson, Consumer)},
+     * but requests all remaining response pages known from the first response page concurrently
+     * as returned by {@link #getPageUrls(String, BsonDocument)}. The number of requests in flight
+     * is still bounded by the {@link ConcurrencyLimiter} and the entries are passed to the
+     * {@code consumer} in page order. Only the completion of such a task is recorded as checkpoint
+     * @param requestUrl - the request {@code URL}
+     * @param taskKey - the key identifying the task within the crawler
+     * @param collectionName - the name of the collection the documents of the task are written to
+     * @param filter - the {@link Bson} filter matching the documents of the task
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @return the {@link CompletableFuture} with the count of response entries,
+     *         completed exceptionally if a request failed
+     */
+    protected CompletableFuture<Integer> streamParallelAsync(String requestUrl, String taskKey, String collectionName,
+            Bson filter, Consumer<List<BsonDocument>> consumer) {
+        return streamAsync(requestUrl, taskKey, collectionName, filter, consumer, null, true);
+    }
+
+    /**
+     * Asynchronously retrieves data for the given request like {@link #streamParallelAsync(String, String, String, Bson, Consumer)},
+     * while the {@code consumer} adds the downloads started for the entries to the given list. The
+     * completion of the task is only recorded after all downloads are finished
+     * @param requestUrl - the request {@code URL}
+     * @param taskKey - the key identifying the task within the crawler
+     * @param collectionName - the name of the collection the documents of the task are written to or null
+     * @param filter - the {@link Bson} filter matching the documents of the task or null
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @param downloads - the synchronized {@link List} of downloads started by the {@code consumer}
+     * @return the {@link CompletableFuture} with the count of response entries,
+     *         completed exceptionally if a request or a download failed
+     */
+    protected CompletableFuture<Integer> streamParallelAsync(String requestUrl, String taskKey, String collectionName,
+            Bson filter, Consumer<List<BsonDocument>> consumer, List<CompletableFuture<Void>> downloads) {
+        return streamAsync(requestUrl, taskKey, collectionName, filter, consumer, downloads, true);
+    }
+
+    /**
+     * Asynchronously retrieves data for the given request following the pagination either page
+     * by page or, if {@code parallel} is set, concurrently for all pages known from the first page
+     * @param requestUrl - the request {@code URL}
+     * @param taskKey - the key identifying the task within the crawler
+     * @param collectionName - the name of the collection the documents of the task are written to
+     * @param filter - the {@link Bson} filter matching the documents of the task
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @param downloads - the synchronized {@link List} of downloads started by the {@code consumer} or null
+     * @param parallel - true, if the pages are requested concurrently
+     * @return the {@link CompletableFuture} with the count of response entries,
+     *         completed exceptionally if a request or a download failed
+     */
+    private CompletableFuture<Integer> streamAsync(String requestUrl, String taskKey, String collectionName,
+            Bson filter, Consumer<List<BsonDocument>> consumer, List<CompletableFuture<Void>> downloads, boolean parallel) {
+
+        if (checkpoints == null) {
+            AtomicInteger count = new AtomicInteger();
+            CompletableFuture<Void> pages = parallel
+                ? retrieveAllPages(requestUrl, consumer, count)
+                : retrievePage(requestUrl, null, consumer, count, null, null);
+            return awaitDownloads(pages.thenApply(ignored -> count.get()), downloads);
+        }
+
+        String checkpointKey = this.getClass().getSimpleName() + ":" + taskKey;
+        AtomicInteger count = new AtomicInteger();
+        if (collectionName != null && checkpoints.isStarted(checkpointKey)) {
+            count.addAndGet(checkpoints.replay(collectionName, filter, consumer));
+        }
+
+        if (checkpoints.isCompleted(checkpointKey)) {
+            return CompletableFuture.completedFuture(count.get());
+        }
+
+        // Cursors are only recorded while following the pages one after another
+        String cursor = checkpoints.getCursor(checkpointKey);
+        AtomicReference<CompletableFuture<Void>> cursorUpdates = new AtomicReference<CompletableFuture<Void>>(
+            CompletableFuture.completedFuture(null));
+        CompletableFuture<Void> pages = parallel && cursor == null
+            ? retrieveAllPages(requestUrl, consumer, count)
+            : retrievePage(cursor != null ? cursor : requestUrl, checkpointKey, consumer, count, downloads, cursorUpdates);
+
+        // Completed only after pending cursor updates, which would otherwise reopen the task
+        return awaitDownloads(pages.thenApply(ignored -> count.get()), downloads)
+            .thenCompose(ignored -> cursorUpdates.get())
+            .thenApply(ignored -> {
+                checkpoints.complete(checkpointKey);
+                return count.get();
+            });
+    }
+
+    /**
+     * Asynchronously retrieves a single response page, passes its entries to
+     * the given {@code consumer} and continues with the next page, if present
+     * @param requestUrl - the request {@code URL} of the page
+     * @param checkpointKey - the checkpoint key of the task or null, if no checkpoints are recorded
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @param count - the count of response entries retrieved so far
+     * @param downloads - the synchronized {@link List} of downloads started by the {@code consumer} or null
+     * @param cursorUpdates - the chain of pending cursor updates of the task or null, if no checkpoints are recorded
+     * @return the {@link CompletableFuture} completed after the last page
+     */
+    private CompletableFuture<Void> retrievePage(String requestUrl, String checkpointKey, Consumer<List<BsonDocument>> consumer,
+            AtomicInteger count, List<CompletableFuture<Void>> downloads, AtomicReference<CompletableFuture<Void>> cursorUpdates) {
+
+        return fetch(requestUrl)
+            .thenApply(document -> {
+                consume(requestUrl, getResults(document), consumer, count);
+
+                // Recorded after the entries were passed on, so that the checkpoint is only persisted with them
+                String nextRequestUrl = getNextRequestUrl(document);
+                if (checkpointKey != null && nextRequestUrl != null) {
+                    updateCursor(checkpointKey, nextRequestUrl, downloads, cursorUpdates);
+                }
+                return nextRequestUrl;
+            })
+            .handle((nextRequestUrl, exception) -> {
+                if (exception != null) onRequestFailure(requestUrl, exception);
+                return nextRequestUrl;
+            })
+            .thenCompose(nextRequestUrl -> nextRequestUrl != null
+                ? retrievePage(nextRequestUrl, checkpointKey, consumer, count, downloads, cursorUpdates)
+                : CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Records the cursor of the next response page once the downloads started so far by the task
+     * are finished. Updates are chained, so that cursors are recorded in page order, and a failed
+     * download stops the chain, so that a resumed crawl retrieves the page of the download again
+     * @param checkpointKey - the checkpoint key of the task
+     * @param nextRequestUrl - the request {@code URL} of the next response page
+     * @param downloads - the synchronized {@link List} of downloads started by the task or null
+     * @param cursorUpdates - the chain of pending cursor updates of the task
+     */
+    private void updateCursor(String checkpointKey, String nextRequestUrl, List<CompletableFuture<Void>> downloads,
+            AtomicReference<CompletableFuture<Void>> cursorUpdates) {
+        if (downloads == null) {
+            checkpoints.update(checkpointKey, nextRequestUrl);
+            return;
+        }
+
+        CompletableFuture<Void> pageDownloads;
+        synchronized (downloads) {
+            pageDownloads = CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0]));
+        }
+        cursorUpdates.updateAndGet(previous -> previous.thenCombine(pageDownloads, (first, second) -> (Void) null)
+            .thenRun(() -> checkpoints.update(checkpointKey, nextRequestUrl)));
+    }
+
+    /**
+     * Asynchronously retrieves the first response page and requests the remaining pages known from it
+     * concurrently in a window of the crawler concurrency, where each arrived page starts the request of the
+     * next page, so that responses of large spaces do not pile up ahead of the {@code consumer}. The entries
+     * of each page are passed to the given {@code consumer} in page order as soon as all previous pages
+     * arrived. Failed pages are logged without affecting other pages, but fail the returned
+     * {@link CompletableFuture} after the last page
+     * @param requestUrl - the request {@code URL} of the first page
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @param count - the count of response entries retrieved so far
+     * @return the {@link CompletableFuture} completed after the last page
+     */
+    private CompletableFuture<Void> retrieveAllPages(String requestUrl, Consumer<List<BsonDocument>> consumer, AtomicInteger count) {
+        return fetch(requestUrl)
+            .handle((document, exception) -> {
+                if (exception != null) onRequestFailure(requestUrl, exception);
+                return document;
+            })
+            .thenCompose(document -> {
+                List<String> pageUrls = getPageUrls(requestUrl, document);
+                consume(requestUrl, getResults(document), consumer, count);
+
+                if (pageUrls.isEmpty()) {
+                    String nextRequestUrl = getNextRequestUrl(document);
+                    return nextRequestUrl != null
+                        ? retrievePage(nextRequestUrl, null, consumer, count, null, null)
+                        : CompletableFuture.completedFuture(null);
+                }
+
+                int window = Math.min(concurrency, pageUrls.size());
+                List<CompletableFuture<BsonDocument>> pages = new ArrayList<CompletableFuture<BsonDocument>>();
+                for (int i = 0; i < window; i++) {
+                    pages.add(fetch(pageUrls.get(i)));
+                }
+
+                // Pages are passed on in order, each one after all previous pages arrived.
+                // Pages are only added by the chain, so each step sees the pages added before
+                AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+                CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+                for (int i = 0; i < pageUrls.size(); i++) {
+                    int index = i;
+                    String pageUrl = pageUrls.get(i);
+                    chain = chain.thenCompose(ignored -> pages.get(index).handle((pageDocument, exception) -> {
+                        if (index + window < pageUrls.size()) pages.add(fetch(pageUrls.get(index + window)));
+                        if (exception != null) {
+                            failedCount.incrementAndGet();
+                            logOnFailure(pageUrl, exception);
+                            failure.compareAndSet(null, new FailedRequestException(pageUrl, unwrap(exception)));
+                        } else {
+                            consume(pageUrl, getResults(pageDocument), consumer, count);
+                        }
+                        return null;
+                    }));
+                }
+
+                return chain.thenCompose(ignored -> failure.get() == null
+                    ? CompletableFuture.<Void>completedFuture(null)
+                    : CompletableFuture.<Void>failedFuture(failure.get()));
+            });
+    }
+
+    /**
+     * Passes the given entries of a response page to the given {@code consumer} and records
+     * the time spent in the {@code consumer}, e.g. for writing the entries to the sink
+     * @param requestUrl - the request {@code URL} of the page
+     * @param entries - the {@link List} of response entries of the page
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @param count - the count of response entries retrieved so far
+     */
+    private void consume(String requestUrl, List<BsonDocument> entries, Consumer<List<BsonDocument>> consumer, AtomicInteger count) {
+        long startTime = System.nanoTime();
+        consumer.accept(entries);
+        metrics.onConsumed(requestUrl, entries.size(), System.nanoTime() - startTime);
+        count.addAndGet(entries.size());
+    }
+
+    /**
+     * Asynchronously retrieves a single response page with a conditional {@code GET}
+     * request, if caching is enabled. Response bodies are parsed in a single pass directly
+     * into {@code BSON}, so that no intermediate {@code JSON} tree or string is built
+     * @param requestUrl - the request {@code URL} of the page
+     * @return the {@link CompletableFuture} with the response page
+     */
+    protected CompletableFuture<BsonDocument> fetch(String requestUrl) {
+        return fetch(requestUrl, true);
+    }
+
+    /**
+     * Asynchronously retrieves a single response page. A conditional request confirmed by
+     * {@code 304 Not Modified}, whose cached body was evicted meanwhile, is sent again unconditionally
+     * @param requestUrl - the request {@code URL} of the page
+     * @param conditional - true, if the request should be conditional on the cached response
+     * @return the {@link CompletableFuture} with the response page
+     */
+    private CompletableFuture<BsonDocument> fetch(String requestUrl, boolean conditional) {
+        HttpRequest request;
+        try {
+            request = HttpRequestBuilder.build(requestUrl, conditional ? cache : null, requestHeader.toNameValuePair());
+        } catch (URISyntaxException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return send(request).thenCompose(response -> {
+            checkStatus(response);
+            long startTime = System.nanoTime();
+            try (InputStream body = cache != null
+                    ? cache.resolve(requestUrl, response)
+                    : new ByteArrayInputStream(response.body())) {
+                if (body == null) {
+                    return fetch(requestUrl, false);
+                }
+
+                BsonDocument document = StreamingBsonParser.parse(body);
+                metrics.onParsed(request.uri(), System.nanoTime() - startTime);
+                return CompletableFuture.completedFuture(document);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously sends the given document with a {@code POST} request
+     * @param requestUrl - the request {@code URL}
+     * @param body - the request body as {@link BsonDocument}
+     * @return the {@link CompletableFuture} with the response
+     */
+    protected CompletableFuture<BsonDocument> post(String requestUrl, BsonDocument body) {
+        HttpRequest request;
+        try {
+            request = HttpRequestBuilder.buildPost(requestUrl, body.toJson(), requestHeader.toNameValuePair());
+        } catch (URISyntaxException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return send(request).thenApply(response -> {
+            checkStatus(response);
+            long startTime = System.nanoTime();
+            try {
+                BsonDocument document = StreamingBsonParser.parse(new ByteArrayInputStream(response.body()));
+                metrics.onParsed(request.uri(), System.nanoTime() - startTime);
+                return document;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Downloads the files of the given attachments into the {@link AttachmentStore} and adds
+     * the checksum, the path in the store and the size of each stored file to its attachment
+     * as {@code file}. Attachments whose download failed are left without {@code file}
+     * @param attachmentList - the {@link List} of attachments as {@link BsonDocument}s
+     * @param fileUrl - the {@link Function} returning the download {@code URL} of an attachment
+     * @return the {@link CompletableFuture} completed after all downloads,
+     *         completed exceptionally if a download failed
+     */
+    protected CompletableFuture<Void> downloadAll(List<BsonDocument> attachmentList, Function<BsonDocument, String> fileUrl) {
+        return downloader.downloadAll(attachmentList, fileUrl);
+    }
+
+    /**
+     * Completes the given task after the given downloads started by it, so that
+     * a task with a failed download fails as well and is crawled again later
+     * @param task - the {@link CompletableFuture} of the task with the count of response entries
+     * @param downloads - the {@link List} of downloads started by the task or null
+     * @return the {@link CompletableFuture} with the count of response entries
+     */
+    private CompletableFuture<Integer> awaitDownloads(CompletableFuture<Integer> task, List<CompletableFuture<Void>> downloads) {
+        if (downloads == null) {
+            return task;
+        }
+
+        return task.thenCompose(count -> {
+            synchronized (downloads) {
+                return CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> count);
+            }
+        });
+    }
+
+    /**
+     * Fails the current stage, if the response status code indicates an error
+     * @param response - the {@link HttpResponse}
+     */
+    static void checkStatus(HttpResponse<?> response) {
+        if (response.statusCode() >= 400) {
+            throw new CompletionException(new IOException("Received status code " + response.statusCode()));
+        }
+    }
+
+    /**
+     * Asynchronously sends the given request with the {@link RequestSender} of the crawler
+     * @param request - the {@link HttpRequest}
+     * @return the {@link CompletableFuture} with the {@link HttpResponse}
+     */
+    protected CompletableFuture<HttpResponse<byte[]>> send(HttpRequest request) {
+        return sender.send(request);
+    }
+
+    /**
+     * Asynchronously sends the given request with the given sender, e.g. writing the response body to a file
+     * @param <T> - the type of the response body
+     * @param request - the {@link HttpRequest}
+     * @param sender - the {@link Function} sending the request with the {@link HttpTransport}
+     * @return the {@link CompletableFuture} with the {@link HttpResponse}
+     */
+    <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, Function<HttpRequest, CompletableFuture<HttpResponse<T>>> sender) {
+        return this.sender.send(request, sender);
+    }
+
+    /**
+     * Reduces the request rate to the given host and pauses its requests
+     * for the given duration, e.g. after a throttled sub-request of a batch
+     * @param host - the host of the throttled request
+     * @param retryAfter - the requested pause or null, if not provided
+     */
+    protected void onThrottled(String host, Duration retryAfter) {
+        sender.onThrottled(host, retryAfter);
+    }
+
+    /**
+     * Unwraps the cause of an exception thrown in a {@link CompletableFuture}
+     * @param exception - the thrown exception
+     * @return the cause of the exception
+     */
+    static Throwable unwrap(Throwable exception) {
+        return exception instanceof CompletionException && exception.getCause() != null
+            ? exception.getCause()
+            : exception;
+    }
+
+    /**
+     * Returns the count of failed requests and tasks of the crawler so far
+     * @return the count of failures
+     */
+    int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Counts a failure outside of requests, e.g. of a task aborted by an unexpected exception
+     */
+    void countFailure() {
+        failedCount.incrementAndGet();
+    }
+
+    /**
+     * Concurrently runs the given crawling {@code task} for each of the {@code parents} and
+     * waits until all tasks are finished. Failed tasks are logged without affecting other tasks
+     * @param taskName - the name of the current task
+     * @param parentKey - the key of the parent identifier used for logging
+     * @param parents - the {@link List} of parent {@link BsonDocument}s
+     * @param task - the task retrieving the children for a parent {@link BsonDocument} and returning their count
+     */
+    protected void crawlEach(String taskName, String parentKey, List<BsonDocument> parents,
+            Function<BsonDocument, CompletableFuture<Integer>> task) {
+
+        List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < parents.size(); i++) {
+            BsonDocument parent = parents.get(i);
+            int index = i + 1;
+
+            CompletableFuture<Integer> future;
+            try {
+                future = task.apply(parent);
+            } catch (Exception e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+
+            tasks.add(future.handle((result, exception) -> {
+                if (exception == null) {
+                    logOnSuccess(taskName, index, parents.size(), result);
+                } else {
+                    failedCount.incrementAndGet();
+                    BsonValue parentId = parent.get(StreamingBsonParser.toFieldName(parentKey));
+                    String parentIdString = parentId != null && parentId.isString() ? parentId.asString().getValue() : String.valueOf(parentId);
+                    logger.warning("Unable to crawl " + taskName + " for " + parentKey + " " + parentIdString);
+                    recordFailure(taskName, parent, parentIdString, exception);
+                }
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Counts and logs a failed request and fails the current stage with
+     * a {@link FailedRequestException} carrying the request {@code URL}
+     * @param requestUrl - the request {@code URL}
+     * @param exception - the exception thrown while sending the request or parsing the response
+     */
+    private void onRequestFailure(String requestUrl, Throwable exception) {
+        failedCount.incrementAndGet();
+        logOnFailure(requestUrl, exception);
+        throw new CompletionException(new FailedRequestException(requestUrl, unwrap(exception)));
+    }
+
+    /**
+     * Records a failure in the {@link FailedRequestJournal}, if provided
+     * @param taskName - the name of the failed task or null, if the request belongs to no task
+     * @param parent - the parent {@link BsonDocument} of the task or null, if the request belongs to no task
+     * @param parentId - the id of the parent or null, if the request belongs to no task
+     * @param exception - the exception the task or request failed with
+     */
+    private void recordFailure(String taskName, BsonDocument parent, String parentId, Throwable exception) {
+        if (failedRequests == null) return;
+
+        Throwable cause = unwrap(exception);
+        String requestUrl = null;
+        if (cause instanceof FailedRequestException) {
+            requestUrl = ((FailedRequestException) cause).requestUrl;
+            cause = cause.getCause();
+        }
+        failedRequests.record(this.getClass().getSimpleName(), taskName, parent, parentId, requestUrl, cause);
+    }
+
+    /**
+     * Logs the reason of a failed request
+     * @param requestUrl - the request {@code URL}
+     * @param exception - the exception thrown while sending the request or parsing the response
+     */
+    void logOnFailure(String requestUrl, Throwable exception) {
+        Throwable cause = unwrap(exception);
+
+        if (cause instanceof IOException || cause instanceof InterruptedException
+                || cause instanceof IllegalArgumentException || cause instanceof SecurityException) {
+            logger.warning("Unable to send a request and/or receive a response for request \"" + requestUrl + "\"");
+        } else if (cause instanceof MongoException) {
+            logger.warning("Unable to write the response for request \"" + requestUrl + "\"");
+        } else {
+            logger.warning("Retrieved malformed JSON format for request \"" + requestUrl + "\"");
         }
     }
 
@@ -102,26 +928,25 @@ public abstract class AbstractCrawler implements Crawler {
     /**
      * Logs information upon finishing a crawling request
      * @param taskName - the name of the current task
-     * @param collection - the {@link List} currently processed
-     * @param element - the {@link JsonElement} currently processed
-     * @param result - the result {@link Collection}
+     * @param index - the index of the currently processed parent element
+     * @param size - the count of parent elements
+     * @param count - the count of retrieved elements
      */
-    protected void logOnSuccess(String taskName, List<JsonElement> collection, JsonElement element, Collection<JsonElement> result) {
-        int index = collection.indexOf(element) + 1;
-        logger.info("[" + index + "/" + collection.size() + "] Retrieved " + result.size() + " " + taskName);
+    protected void logOnSuccess(String taskName, int index, int size, int count) {
+        logger.info("[" + index + "/" + size + "] Retrieved " + count + " " + taskName);
     }
 
     /**
      * Logs final information upon finishing the task execution
      * @param taskName - the name of the current task
-     * @param result - the result {@link Collection}
+     * @param count - the count of retrieved elements
      */
-    protected void logOnTaskFinish(String taskName, Collection<JsonElement> result) {
-        if (!result.isEmpty()) {
-            logger.info(result.size() + " " + taskName + " were retrieved");
+    protected void logOnTaskFinish(String taskName, int count) {
+        if (count != 0) {
+            logger.info(count + " " + taskName + " were retrieved");
         } else {
             logger.warning("No " + taskName + " were retrieved");
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package com.khub.crawling;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.bson.BsonDocument;
+
+import com.khub.common.AttachmentStore;
+import com.khub.common.HttpRequestBuilder;
+
+class AttachmentDownloader {
+
+    // Redirects followed by a download, e.g. to a pre-authenticated download URL
+    private static final int MAX_REDIRECTS = 5;
+
+    private final AbstractCrawler crawler;
+    private final AttachmentStore attachments;
+
+    AttachmentDownloader(AbstractCrawler crawler, AttachmentStore attachments) {
+        this.crawler = crawler;
+        this.attachments = attachments;
+    }
+
+    /**
+     * Downloads the files of the given attachments into the {@link AttachmentStore} and adds
+     * the checksum, the path in the store and the size of each stored file to its attachment
+     * as {@code file}. Attachments whose download failed are left without {@code file}
+     * @param attachmentList - the {@link List} of attachments as {@link BsonDocument}s
+     * @param fileUrl - the {@link Function} returning the download {@code URL} of an attachment
+     * @return the {@link CompletableFuture} completed after all downloads,
+     *         completed exceptionally if a download failed
+     */
+    CompletableFuture<Void> downloadAll(List<BsonDocument> attachmentList, Function<BsonDocument, String> fileUrl) {
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<CompletableFuture<Void>> downloads = new ArrayList<CompletableFuture<Void>>();
+        for (BsonDocument attachment : attachmentList) {
+            String url = fileUrl.apply(attachment);
+            downloads.add(download(url, crawler.requestHeader.toNameValuePair(), 0).handle((file, exception) -> {
+                if (exception == null) {
+                    attachment.put("file", file);
+                } else {
+                    crawler.logOnFailure(url, exception);
+                    failure.compareAndSet(null, new FailedRequestException(url, AbstractCrawler.unwrap(exception)));
+                }
+                return null;
+            }));
+        }
+
+        return CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0]))
+            .thenCompose(ignored -> failure.get() == null
+                ? CompletableFuture.<Void>completedFuture(null)
+                : CompletableFuture.<Void>failedFuture(failure.get()));
+    }
+
+    /**
+     * Asynchronously downloads the file at the given {@code URL} into the {@link AttachmentStore}.
+     * The response body is written to disk as it arrives, so that memory use does not depend on
+     * the file size. Redirects to other hosts, e.g. to pre-authenticated download {@code URL}s,
+     * are followed without the authentication header
+     * @param fileUrl - the download {@code URL}
+     * @param headers - the request headers as name value pairs or null
+     * @param redirects - the count of redirects followed so far
+     * @return the {@link CompletableFuture} with the stored file as {@link BsonDocument}
+     */
+    private CompletableFuture<BsonDocument> download(String fileUrl, String[] headers, int redirects) {
+        HttpRequest request;
+        try {
+            request = HttpRequestBuilder.build(fileUrl, headers);
+        } catch (URISyntaxException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return crawler.send(request, this::sendDownload)
+            .thenCompose(response -> {
+                String location = response.headers().firstValue("Location").orElse(null);
+                if (response.statusCode() / 100 == 3 && location != null && redirects < MAX_REDIRECTS) {
+                    URI redirectUri = response.uri().resolve(location);
+                    boolean sameHost = redirectUri.getHost() != null && redirectUri.getHost().equals(response.uri().getHost());
+                    return download(redirectUri.toString(), sameHost ? headers : null, redirects + 1);
+                }
+
+                AbstractCrawler.checkStatus(response);
+                try {
+                    return CompletableFuture.completedFuture(attachments.store(response.body()));
+                } catch (IOException e) {
+                    attachments.discard(response.body());
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    /**
+     * Sends the given download request into a new download file, which is created only once the
+     * request is sent. The file is removed again, if the request failed or the response is no success,
+     * so that only the file of a successful response remains to be stored
+     * @param request - the {@link HttpRequest}
+     * @return the {@link CompletableFuture} with the {@link HttpResponse} with the download file
+     */
+    private CompletableFuture<HttpResponse<Path>> sendDownload(HttpRequest request) {
+        Path file;
+        try {
+            file = attachments.createDownloadFile();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return crawler.transport.downloadAsync(request, file).whenComplete((response, exception) -> {
+            if (exception == null) crawler.metrics.onReceived(request.uri(), RequestSender.getBodySize(response));
+            if (exception != null || response.statusCode() / 100 != 2) {
+                attachments.discard(file);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.khub.crawling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.conversions.Bson;
+
+import com.khub.common.MongoConnector;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+
+public class CheckpointStore {
+
+    private static final Logger logger = Logger.getLogger(CheckpointStore.class.getName());
+
+    public static final String COLLECTION_NAME = MongoConnector.INTERNAL_COLLECTION_PREFIX + "checkpoints";
+
+    // Count of documents passed at once when replaying a collection
+    private static final int REPLAY_BATCH_SIZE = 100;
+
+    private final MongoDatabase database;
+
+    // True, if the checkpoints of an interrupted crawl were loaded
+    private final boolean resumed;
+
+    // Crawl progress per task key, either the cursor of the next response page or the completion flag
+    private final Map<String, BsonDocument> checkpoints;
+
+    // Checkpoints changed since the last commit
+    private final Map<String, BsonDocument> changes = new HashMap<String, BsonDocument>();
+
+    private CheckpointStore(MongoDatabase database, boolean resumed, Map<String, BsonDocument> checkpoints) {
+        this.database = database;
+        this.resumed = resumed;
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Creates an empty {@link CheckpointStore} for a new crawl into
+     * the given {@link MongoDatabase} and removes previous checkpoints
+     * @param database - the {@link MongoDatabase} of the current crawl
+     * @return the {@link CheckpointStore}
+     * @throws MongoException if previous checkpoints could not be removed
+     */
+    public static CheckpointStore create(MongoDatabase database) throws MongoException {
+        database.getCollection(COLLECTION_NAME).deleteMany(new BsonDocument());
+        return new CheckpointStore(database, false, new ConcurrentHashMap<String, BsonDocument>());
+    }
+
+    /**
+     * Loads the checkpoints of an interrupted crawl persisted in the given {@link MongoDatabase}
+     * @param database - the {@link MongoDatabase} of the interrupted crawl
+     * @return the {@link CheckpointStore}
+     * @throws MongoException if the checkpoints could not be read
+     */
+    public static CheckpointStore load(MongoDatabase database) throws MongoException {
+        Map<String, BsonDocument> checkpoints = new ConcurrentHashMap<String, BsonDocument>();
+        for (BsonDocument document : database.getCollection(COLLECTION_NAME, BsonDocument.class).find()) {
+            checkpoints.put(document.getString("_id").getValue(), document);
+        }
+
+        logger.info(checkpoints.size() + " checkpoints of the interrupted crawl were loaded");
+        return new CheckpointStore(database, true, checkpoints);
+    }
+
+    /**
+     * Checks if the checkpoints of an interrupted crawl were loaded
+     * @return true, if the crawl is resumed
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Checks if the task with the given key was started before
+     * @param key - the task key
+     * @return true, if at least one response page of the task was processed
+     */
+    public boolean isStarted(String key) {
+        return checkpoints.containsKey(key);
+    }
+
+    /**
+     * Checks if the task with the given key was completed before
+     * @param key - the task key
+     * @return true, if all response pages of the task were processed
+     */
+    public boolean isCompleted(String key) {
+        BsonDocument checkpoint = checkpoints.get(key);
+        return checkpoint != null && checkpoint.getBoolean("completed", BsonBoolean.FALSE).getValue();
+    }
+
+    /**
+     * Returns the request {@code URL} of the next response page of the task with the given key
+     * @param key - the task key
+     * @return the request {@code URL} or null, if the task was not started or is completed
+     */
+    public String getCursor(String key) {
+        BsonDocument checkpoint = checkpoints.get(key);
+        return checkpoint != null && checkpoint.isString("cursor") ? checkpoint.getString("cursor").getValue() : null;
+    }
+
+    /**
+     * Records the request {@code URL} of the next response page of the task with the given key
+     * @param key - the task key
+     * @param cursor - the request {@code URL} of the next response page
+     */
+    public void update(String key, String cursor) {
+        put(new BsonDocument("_id", new BsonString(key)).append("cursor", new BsonString(cursor)));
+    }
+
+    /**
+     * Records the task with the given key as completed
+     * @param key - the task key
+     */
+    public void complete(String key) {
+        put(new BsonDocument("_id", new BsonString(key)).append("completed", BsonBoolean.TRUE));
+    }
+
+    /**
+     * Persists the checkpoints of the given scope recorded so far after running the given {@code flush}.
+     * The recorded checkpoints are taken before flushing, so that a persisted checkpoint never refers
+     * to a response page, whose documents have not been written yet. Checkpoints are scoped per
+     * crawler, since crawlers running concurrently flush their documents independently
+     * @param scope - the crawler key, which the task keys of the crawler are prefixed with
+     * @param flush - the {@link Runnable} writing all pending crawled documents of the crawler
+     * @throws MongoException if pending documents or the checkpoints could not be written
+     */
+    public void commit(String scope, Runnable flush) throws MongoException {
+        Map<String, BsonDocument> snapshot = new HashMap<String, BsonDocument>();
+        synchronized (changes) {
+            changes.entrySet().removeIf(change -> {
+                boolean inScope = change.getKey().equals(scope) || change.getKey().startsWith(scope + ":");
+                if (inScope) snapshot.put(change.getKey(), change.getValue());
+                return inScope;
+            });
+        }
+
+        List<WriteModel<BsonDocument>> writes = new ArrayList<WriteModel<BsonDocument>>();
+        for (BsonDocument checkpoint : snapshot.values()) {
+            writes.add(new ReplaceOneModel<BsonDocument>(Filters.eq("_id", checkpoint.get("_id")),
+                checkpoint, new ReplaceOptions().upsert(true)));
+        }
+
+        try {
+            flush.run();
+            if (!writes.isEmpty()) {
+                database.getCollection(COLLECTION_NAME, BsonDocument.class).bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            }
+        } catch (MongoException e) {
+            // Keeps the checkpoints for the next commit, unless they were recorded again meanwhile
+            synchronized (changes) {
+                snapshot.forEach(changes::putIfAbsent);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Passes the documents of the given collection matching the given {@code filter}
+     * in portions to the {@code consumer}, e.g. to restore the children of a resumed task
+     * @param collectionName - the name of the {@link MongoCollection} to read from
+     * @param filter - the {@link Bson} filter of the documents
+     * @param consumer - the {@link Consumer} of the documents
+     * @return the count of replayed documents
+     * @throws MongoException if the documents could not be read
+     */
+    public int replay(String collectionName, Bson filter, Consumer<List<BsonDocument>> consumer) throws MongoException {
+        MongoCollection<BsonDocument> collection = database.getCollection(collectionName, BsonDocument.class);
+        List<BsonDocument> batch = new ArrayList<BsonDocument>();
+        int count = 0;
+
+        for (BsonDocument document : collection.find(filter).batchSize(REPLAY_BATCH_SIZE)) {
+            batch.add(document);
+            if (batch.size() >= REPLAY_BATCH_SIZE) {
+                consumer.accept(batch);
+                count += batch.size();
+                batch = new ArrayList<BsonDocument>();
+            }
+        }
+
+        if (!batch.isEmpty()) consumer.accept(batch);
+        return count + batch.size();
+    }
+
+    /**
+     * Records the given checkpoint
+     * @param checkpoint - the checkpoint {@link BsonDocument}
+     */
+    private void put(BsonDocument checkpoint) {
+        String key = checkpoint.getString("_id").getValue();
+        synchronized (changes) {
+            checkpoints.put(key, checkpoint);
+            changes.put(key, checkpoint);
+        }
+    }
+
+}
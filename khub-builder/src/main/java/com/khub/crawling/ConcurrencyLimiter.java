@@ -0,0 +1,75 @@
+package com.khub.crawling;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+public class ConcurrencyLimiter {
+
+    private final int limit;
+
+    // Tasks waiting for a free slot
+    private final Queue<Runnable> pending = new ArrayDeque<Runnable>();
+    private int running = 0;
+
+    public ConcurrencyLimiter(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * Submits the given asynchronous task, which is started immediately if less than
+     * {@code limit} tasks are running and queued otherwise. The calling thread is never blocked
+     * @param task - the {@link Supplier} starting the asynchronous task
+     * @return the {@link CompletableFuture} completed with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+
+        Runnable starter = () -> {
+            CompletableFuture<T> future;
+            try {
+                future = task.get();
+            } catch (Exception e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+
+            future.whenComplete((value, exception) -> {
+                release();
+                if (exception != null) {
+                    result.completeExceptionally(exception);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        boolean start;
+        synchronized (this) {
+            start = running < limit;
+            if (start) {
+                running++;
+            } else {
+                pending.add(starter);
+            }
+        }
+
+        if (start) starter.run();
+        return result;
+    }
+
+    /**
+     * Releases the slot of a finished task by handing it over to the next pending task
+     */
+    private void release() {
+        Runnable next;
+        synchronized (this) {
+            next = pending.poll();
+            if (next == null) running--;
+        }
+
+        // Started asynchronously to avoid deep call chains of quickly finishing tasks
+        if (next != null) CompletableFuture.runAsync(next);
+    }
+
+}
@@ -1,248 +1,752 @@
 package com.khub.crawling;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
 import com.khub.common.AuthenticationHeader;
-import com.khub.common.HttpRequestBuilder;
+import com.mongodb.client.model.Filters;
 
 public class ConfluenceCrawler extends AbstractCrawler {
 
     public final String spaceId = "spaceId";
     public final String pageId = "pageId";
 
-    public ConfluenceCrawler(URL confluenceEndpoint, AuthenticationHeader requestHeader) {
-        super(confluenceEndpoint, requestHeader);
+    private static final String PAGE_EXPANSIONS = "body.view,children.comment,ancestors,history.lastUpdated";
+    private static final String COMMENT_EXPANSIONS = "body.view,ancestors,history.lastUpdated";
+
+    // Pages and comments are searched together, comments are related to their page by the container
+    private static final String SEARCH_EXPANSIONS = "body.view,ancestors,history.lastUpdated,container";
+
+    // Expansions the crawler relies on, if the expansions of content fields are derived from the processing mapping
+    private static final String PAGE_REQUIRED_EXPANSIONS = "children.comment,ancestors,history.lastUpdated";
+    private static final String COMMENT_REQUIRED_EXPANSIONS = "history.lastUpdated";
+    private static final String SEARCH_REQUIRED_EXPANSIONS = "ancestors,history.lastUpdated,container";
+
+    // Expandable content fields, which are requested only if processing maps them
+    private static final List<String> CONTENT_EXPANSIONS = List.of("body.view", "body.storage", "body.export_view",
+        "history", "history.contributors", "version", "space", "metadata.labels");
+
+    // Attachments are listed inline with their page, if attachments are crawled
+    private static final String ATTACHMENT_EXPANSIONS = ",children.attachment";
+
+    // Results per search response page, Confluence may return less for large expansions
+    private static final int SEARCH_LIMIT = 50;
+    private static final int BULK_SEARCH_LIMIT = 200;
+
+    // Types of the tasks shared by several builder instances
+    private static final String USERS_TASK = "users";
+    private static final String SPACE_TASK = "space";
+
+    // Names of the tasks crawled for each parent, recorded with failed requests
+    private static final String USERS_TASK_NAME = "Confluence users";
+    private static final String PAGES_TASK_NAME = "Confluence pages";
+    private static final String COMMENTS_TASK_NAME = "Confluence comments";
+    private static final String CONTENT_TASK_NAME = "Confluence pages and comments";
+    private static final String EXPORTS_TASK_NAME = "Confluence space exports";
+
+    // Retrieves pages and comments of each space with a single paginated search
+    private final boolean bulkSearch;
+
+    // Requests the remaining pages of a search concurrently by their offsets
+    private final boolean parallelPagination;
+
+    // Space export archive or directory of archives imported instead of crawling the exported spaces
+    private final Path exportPath;
+
+    // Properties to expand in pages, comments and search results
+    private final String pageExpansions;
+    private final String commentExpansions;
+    private final String searchExpansions;
+
+    // CQL dates have minute precision and are interpreted in the timezone of the
+    // crawling user, so changed content is searched with an overlap of one day
+    private static final DateTimeFormatter CQL_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
+
+    public ConfluenceCrawler(URL confluenceEndpoint, AuthenticationHeader requestHeader, int concurrency, double requestRate,
+            CrawlContext context, boolean bulkSearch, boolean parallelPagination, Path exportPath) {
+        super(confluenceEndpoint, requestHeader, concurrency, requestRate, context);
+        this.bulkSearch = bulkSearch;
+        this.parallelPagination = parallelPagination;
+        this.exportPath = exportPath;
+        this.pageExpansions = getExpansions(PAGE_REQUIRED_EXPANSIONS, PAGE_EXPANSIONS);
+        this.commentExpansions = getExpansions(COMMENT_REQUIRED_EXPANSIONS, COMMENT_EXPANSIONS);
+        this.searchExpansions = getExpansions(SEARCH_REQUIRED_EXPANSIONS, SEARCH_EXPANSIONS);
     }
 
     /**
-     * Starts the {@link ConfluenceCrawler} and returns retrieved data as
-     * Lists of {@link JsonElement}s mapped to the corresponding data labels.
-     * {@code Confluence} data includes users, spaces, pages and comments
-     * @return the retrieved {@code Confluence} data
+     * Starts the {@link ConfluenceCrawler} and passes retrieved data as {@link BsonDocument}s
+     * to the given {@link CrawlSink} as soon as it arrives, labelled with collection names.
+     * {@code Confluence} data includes users, spaces, pages and comments.
+     * An incremental crawl retrieves only pages and comments changed since the
+     * high-water mark of their space, users and spaces are always retrieved entirely.
+     * In the bulk search mode pages and comments of a space are searched together
+     * instead of requesting the comments of each page separately. Spaces available as export
+     * archives are imported first and skipped by the {@code REST} crawl. Page attachments are
+     * downloaded, if attachments are crawled
+     * @param sink - the {@link CrawlSink} for the retrieved {@code Confluence} data
      */
-    public Map<String, List<JsonElement>> run() {
+    public void run(CrawlSink sink) {
 
-        List<JsonElement> users = retrieveUsers();
-        List<JsonElement> spaces = retrieveSpaces();
-        List<JsonElement> pages = retrievePages(spaces);
-        List<JsonElement> comments = retrieveComments(pages);
+        Set<String> importedSpaceKeys = importArchives(listArchives(), sink);
+        if (endpoint == null) {
+            return;
+        }
 
-        return Map.of("users", users, "spaces", spaces, "pages", pages, "comments", comments);
+        retrieveUsers(retrieveGroups(), sink);
+        List<BsonDocument> spaces = retrieveSpaces(importedSpaceKeys, sink);
+        if (bulkSearch) {
+            searchContent(spaces, sink);
+        } else {
+            List<BsonDocument> pagesWithComments = retrievePages(spaces, sink);
+            retrieveComments(pagesWithComments, getSpacesWithWatermark(spaces), sink);
+        }
     }
 
     /**
-     * Retrieves all {@code Confluence} users as {@link JsonElement}s
-     * @return the list of {@code Confluence} users
+     * Crawls the given {@code Confluence} tasks claimed from the {@link WorkQueue}. The planning
+     * task imports the export archives, retrieves the remaining spaces and enqueues the users task
+     * and a task per space, each of which retrieves the pages and comments of the space
+     * @param type - the task type
+     * @param tasks - the {@link List} of task payloads
+     * @param sink - the {@link CrawlSink} for the retrieved {@code Confluence} data
      */
-    private List<JsonElement> retrieveUsers() {
-        Set<JsonElement> users = new HashSet<JsonElement>();
-        String taskName = "Confluence users";
-        logOnTaskStart(taskName);
-        
+    @Override
+    protected void crawlTasks(String type, List<BsonDocument> tasks, CrawlSink sink) {
+        switch (type) {
+
+            case PLAN_TASK:
+                Set<String> importedSpaceKeys = importArchives(listArchives(), sink);
+                if (endpoint == null) {
+                    break;
+                }
+
+                List<BsonDocument> spaces = new ArrayList<BsonDocument>();
+                for (BsonDocument space : retrieveSpaces(importedSpaceKeys, sink)) {
+                    spaces.add(new BsonDocument("_id", space.get("_id")).append("key", space.get("key")));
+                }
+                enqueue(USERS_TASK, List.of(new BsonDocument("_id", new BsonString(USERS_TASK))));
+                enqueue(SPACE_TASK, spaces);
+                break;
+
+            case USERS_TASK:
+                retrieveUsers(retrieveGroups(), sink);
+                break;
+
+            case SPACE_TASK:
+                if (bulkSearch) {
+                    searchContent(tasks, sink);
+                } else {
+                    List<BsonDocument> pagesWithComments = retrievePages(tasks, sink);
+                    retrieveComments(pagesWithComments, getSpacesWithWatermark(tasks), sink);
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown task type \"" + type + "\"");
+        }
+    }
+
+    /**
+     * Crawls the given {@code Confluence} task again for the given parents, i.e. the users
+     * of groups, the pages and comments of spaces, the comments of pages or the content of
+     * export archives. Comment searches of spaces are repeated without a high-water mark
+     * @param taskName - the name of the failed task
+     * @param parents - the {@link List} of parent {@link BsonDocument}s the task failed for
+     * @param sink - the {@link CrawlSink} for the retrieved {@code Confluence} data
+     */
+    @Override
+    protected void recrawl(String taskName, List<BsonDocument> parents, CrawlSink sink) {
+        switch (taskName) {
+
+            case USERS_TASK_NAME:
+                retrieveUsers(parents, sink);
+                break;
+
+            case PAGES_TASK_NAME:
+                List<BsonDocument> pagesWithComments = retrievePages(parents, sink);
+                retrieveComments(pagesWithComments, List.of(), sink);
+                break;
+
+            case COMMENTS_TASK_NAME:
+                // Comments are either retrieved per page or searched per space
+                List<BsonDocument> pages = new ArrayList<BsonDocument>();
+                List<BsonDocument> spaces = new ArrayList<BsonDocument>();
+                parents.forEach(parent -> (parent.containsKey("key") ? spaces : pages).add(parent));
+                retrieveComments(pages, spaces, sink);
+                break;
+
+            case CONTENT_TASK_NAME:
+                searchContent(parents, sink);
+                break;
+
+            case EXPORTS_TASK_NAME:
+                importArchives(parents, sink);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown task \"" + taskName + "\"");
+        }
+    }
+
+    /**
+     * Retrieves all {@code Confluence} groups as {@link BsonDocument}s
+     * @return the list of {@code Confluence} groups
+     */
+    private List<BsonDocument> retrieveGroups() {
         String groupRequestUrl = endpoint + "rest/api/group?limit=100";
-        List<JsonElement> groups = retrieve(groupRequestUrl);
+        return retrieve(groupRequestUrl);
+    }
 
-        groups.parallelStream().forEach(group -> {
-            try {
-                String groupKey = group.getAsJsonObject().get("name").getAsString().replace(" ", "%20");
-                String requestUrl = endpoint + "rest/api/group/" + groupKey + "/member?limit=100&expand=personalSpace";
+    /**
+     * Retrieves all {@code Confluence} users as {@link BsonDocument}s
+     * for the given list of {@code Confluence} groups
+     * @param groups - the list of {@code Confluence} groups
+     * @param sink - the {@link CrawlSink} for the retrieved users
+     */
+    private void retrieveUsers(List<BsonDocument> groups, CrawlSink sink) {
+        Set<String> userKeys = ConcurrentHashMap.newKeySet();
+        String taskName = USERS_TASK_NAME;
+        logOnTaskStart(taskName);
+
+        crawlEach(taskName, "name", groups, group -> {
+            String groupKey = group.getString("name").getValue().replace(" ", "%20");
+            String requestUrl = endpoint + "rest/api/group/" + groupKey + "/member?limit=100&expand=personalSpace";
+
+            return streamAsync(requestUrl, "users:" + groupKey, result -> {
+                for (BsonDocument object : result) {
+                    if (!object.containsKey("personalSpace")) {
+                        continue;
+                    }
 
-                for (JsonElement jsonElement : retrieve(requestUrl)) {
-                    if (jsonElement.getAsJsonObject().has("personalSpace")) {
-                        users.add(jsonElement);
+                    // Users are members of several groups, so they are identified by their key instead of their content
+                    BsonValue userKey = object.containsKey("userKey") ? object.get("userKey") : object.get("accountId");
+                    if (userKey == null || !userKey.isString()) {
+                        sink.accept("users", object);
+                    } else if (userKeys.add(userKey.asString().getValue())) {
+                        object.put("_id", userKey);
+                        sink.accept("users", object);
                     }
                 }
-            } catch (Exception e) { }
+            });
+        });
+
+        logOnTaskFinish(taskName, userKeys.size());
+    }
+
+    /**
+     * Lists the {@code Confluence} space export archives found at the export path
+     * @return the {@link List} of archives with their paths
+     */
+    private List<BsonDocument> listArchives() {
+        List<BsonDocument> archives = new ArrayList<BsonDocument>();
+        if (exportPath == null) {
+            return archives;
+        }
+
+        if (Files.isDirectory(exportPath)) {
+            try (Stream<Path> files = Files.list(exportPath)) {
+                files.filter(file -> file.getFileName().toString().endsWith(".zip")).sorted()
+                    .forEach(file -> archives.add(new BsonDocument("path", new BsonString(file.toString()))));
+            } catch (IOException e) {
+                logger.severe("Unable to list the Confluence export archives in \"" + exportPath + "\"");
+            }
+        } else {
+            archives.add(new BsonDocument("path", new BsonString(exportPath.toString())));
+        }
+        return archives;
+    }
+
+    /**
+     * Imports the given {@code Confluence} space export archives. Each archive is streamed
+     * by the {@link ConfluenceExportReader} and its spaces, pages and comments are passed to
+     * the {@link CrawlSink} like crawled data. Users are only imported without access to
+     * the {@code REST API}, since exports lack the personal spaces of users
+     * @param archives - the {@link List} of archives with their paths
+     * @param sink - the {@link CrawlSink} for the imported data
+     * @return the {@link Set} of keys of the imported spaces
+     */
+    private Set<String> importArchives(List<BsonDocument> archives, CrawlSink sink) {
+        Set<String> spaceKeys = new HashSet<String>();
+        if (archives.isEmpty()) {
+            return spaceKeys;
+        }
+
+        String taskName = EXPORTS_TASK_NAME;
+        logOnTaskStart(taskName);
+
+        // Users are referenced by the content of several archives
+        Set<String> userKeys = new HashSet<String>();
+        CrawlSink importSink = (collectionName, document) -> {
+            if (!collectionName.equals("users") || userKeys.add(document.getString("_id").getValue())) {
+                sink.accept(collectionName, document);
+            }
+        };
+
+        // Archives are streamed one after another to keep a single index in memory
+        ConfluenceExportReader reader = new ConfluenceExportReader();
+        AtomicInteger count = new AtomicInteger();
+        crawlEach(taskName, "path", archives, archiveObject -> {
+            Path archive = Path.of(archiveObject.getString("path").getValue());
+            try {
+                String spaceKey = ConfluenceExportReader.readSpaceKey(archive);
+                int documentsCount = reader.read(archive, importSink, endpoint == null);
+                if (spaceKey != null) spaceKeys.add(spaceKey);
+                count.addAndGet(documentsCount);
+                return CompletableFuture.completedFuture(documentsCount);
+
+            } catch (IOException | XMLStreamException e) {
+                logger.severe("Unable to import the Confluence export archive \"" + archive + "\": " + e.getMessage());
+                return CompletableFuture.failedFuture(e);
+            }
         });
 
-        logOnTaskFinish(taskName, users);
-        return new ArrayList<JsonElement>(users);
+        logOnTaskFinish(taskName, count.get());
+        return spaceKeys;
     }
 
     /**
-     * Retrieves all {@code Confluence} spaces as {@link JsonElement}s
+     * Retrieves all {@code Confluence} spaces as {@link BsonDocument}s
+     * except for the spaces with the given keys
+     * @param excludedSpaceKeys - the {@link Set} of keys of spaces to skip
+     * @param sink - the {@link CrawlSink} for the retrieved spaces
      * @return the list of {@code Confluence} spaces
      */
-    private List<JsonElement> retrieveSpaces() {
+    private List<BsonDocument> retrieveSpaces(Set<String> excludedSpaceKeys, CrawlSink sink) {
         String taskName = "Confluence spaces";
         logOnTaskStart(taskName);
 
         String requestUrl = endpoint + "rest/api/space?type=global&limit=100";
-        List<JsonElement> spaces = retrieve(requestUrl);
-        spaces.forEach(element -> {
-            JsonObject object = element.getAsJsonObject();
-            String spaceHomepageUrl = object.getAsJsonObject("_expandable").get("homepage").getAsString();
+        List<BsonDocument> spaces = retrieve(requestUrl);
+        spaces.removeIf(object -> excludedSpaceKeys.contains(object.getString("key").getValue()));
+        spaces.forEach(object -> {
+            String spaceHomepageUrl = object.getDocument("_expandable").getString("homepage").getValue();
             String spaceHomepageId = spaceHomepageUrl.substring(spaceHomepageUrl.lastIndexOf('/') + 1);
-            object.remove("id");
-            object.addProperty("id", spaceHomepageId);
+            object.remove("_id");
+            object.put("_id", new BsonString(spaceHomepageId));
+            sink.accept("spaces", object);
         });
         
-        logOnTaskFinish(taskName, spaces);
+        logOnTaskFinish(taskName, spaces.size());
         return spaces;
     }
 
     /**
-     * Retrieves all {@code Confluence} pages as {@link JsonElement}s
+     * Retrieves all {@code Confluence} pages as {@link BsonDocument}s
      * for the given list of {@code Confluence} spaces
      * @param spaces - the list of {@code Confluence} spaces
-     * @return the list of {@code Confluence} pages
+     * @param sink - the {@link CrawlSink} for the retrieved pages
+     * @return the list of ids of {@code Confluence} pages with comments
      */
-    private List<JsonElement> retrievePages(List<JsonElement> spaces) {
-        List<JsonElement> pages = new ArrayList<JsonElement>();
-        String taskName = "Confluence pages";
+    private List<BsonDocument> retrievePages(List<BsonDocument> spaces, CrawlSink sink) {
+        List<BsonDocument> pagesWithComments = Collections.synchronizedList(new ArrayList<BsonDocument>());
+        AtomicInteger pagesCount = new AtomicInteger();
+        String taskName = PAGES_TASK_NAME;
         logOnTaskStart(taskName);
 
-        spaces.parallelStream().forEach(space -> {
-            if (space.isJsonObject()) {
-                JsonObject spaceObject = space.getAsJsonObject();
-                try {
-                    String spaceKey = spaceObject.get("key").getAsString();                
-                    String spaceId = spaceObject.get("id").getAsString();
-                    String requestUrl = endpoint + "rest/api/space/" + spaceKey + "/content/page?type=page&limit=20"
-                        + "&expand=body.view,children.comment,ancestors,history.lastUpdated";
-
-                    List<JsonElement> result = retrieve(requestUrl);
-                    for (JsonElement element : result) {
-                        JsonObject object = element.getAsJsonObject();
-
-                        // Remove the top level space page with aggregated content
-                        if (object.get("id").getAsString().equals(spaceId)) {
-                            continue;
-                        }
-
-                        JsonArray ancestors = object.get("ancestors").getAsJsonArray();
-
-                        // Inject the correct first ancestor
-                        String ancestor = ancestors.size() < 1
-                            ? "" 
-                            : ancestors.get(ancestors.size() - 1).getAsJsonObject().get("id").getAsString();
+        String expansions = attachments != null ? pageExpansions + ATTACHMENT_EXPANSIONS : pageExpansions;
+        crawlEach(taskName, "id", spaces, spaceObject -> {
+            String spaceKey = spaceObject.getString("key").getValue();
+            String spaceId = spaceObject.getString("_id").getValue();
+            Instant watermark = getSpaceWatermark(spaceId);
+
+            // Only searches report the total count of pages needed for parallel pagination
+            String requestUrl = watermark == null && !parallelPagination
+                ? endpoint + "rest/api/space/" + spaceKey + "/content/page?type=page&limit=20&expand=" + expansions
+                : getSearchUrl("space = \"" + spaceKey + "\" and type = page", watermark, SEARCH_LIMIT, expansions);
+
+            // Pages written before an interruption are replayed to find their comments
+            List<CompletableFuture<Void>> downloads = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+            return stream(requestUrl, "pages:" + spaceId, "pages", Filters.eq(this.spaceId, spaceId), result -> {
+                for (BsonDocument object : result) {
+                    if (!preparePage(object, spaceId)) {
+                        continue;
+                    }
 
-                            object.addProperty("ancestor", ancestor);
+                    downloads.add(acceptPage(object, sink));
+                    pagesCount.incrementAndGet();
 
-                        object.addProperty(this.spaceId, spaceId);
-                        pages.add(element);
+                    // Comments of spaces with a high-water mark are searched per space
+                    BsonDocument children = object.getDocument("children", null);
+                    if (watermark == null && children != null
+                            && children.getDocument("comment").getNumber("size").intValue() > 0) {
+                        BsonDocument page = new BsonDocument("_id", object.get("_id"))
+                            .append(this.spaceId, new BsonString(spaceId));
+                        pagesWithComments.add(page);
                     }
-                    logOnSuccess(taskName, spaces, space, result);
-
-                } catch (Exception e) {
-                    logger.warning("Unable to crawl " + taskName + " for space id " + spaceObject.get("id"));
                 }
-            }
+            }, downloads);
         });
 
-        logOnTaskFinish(taskName, pages);
-        return pages;
+        logOnTaskFinish(taskName, pagesCount.get());
+        logger.info("Only " + pagesWithComments.size() + " from " + pagesCount.get() + " pages have comments");
+        return distinctById(pagesWithComments);
     }
 
     /**
-     * Retrieves all {@code Confluence} comments as {@link JsonElement}s
-     * for the given list of {@code Confluence} pages
-     * @param pages - the list of {@code Confluence} pages
-     * @return the list of {@code Confluence} comments
+     * Retrieves all {@code Confluence} comments as {@link BsonDocument}s for the given list of
+     * {@code Confluence} pages. Comments of spaces with a high-water mark are instead
+     * searched per space, since new comments do not change the modification date of their page
+     * @param pagesWithComments - the list of ids of {@code Confluence} pages with comments
+     * @param searchedSpaces - the list of {@code Confluence} spaces whose comments are searched
+     * @param sink - the {@link CrawlSink} for the retrieved comments
      */
-    private List<JsonElement> retrieveComments(List<JsonElement> pages) {
-        List<JsonElement> comments = new ArrayList<JsonElement>();
-        String taskName = "Confluence comments";
+    private void retrieveComments(List<BsonDocument> pagesWithComments, List<BsonDocument> searchedSpaces, CrawlSink sink) {
+        AtomicInteger commentsCount = new AtomicInteger();
+        String taskName = COMMENTS_TASK_NAME;
         logOnTaskStart(taskName);
 
-        // Extract pages with comments
-        List<JsonElement> pagesWithComments = new ArrayList<JsonElement>();
-        for (JsonElement page : pages) {
-            if (page.isJsonObject()) {
-                JsonObject pageObject = page.getAsJsonObject();
-                JsonObject children = pageObject.getAsJsonObject("children");
-                if (children == null) {
-                    continue;
+        crawlEach(taskName, "id", pagesWithComments, pageObject -> {
+            String pageKey = pageObject.getString("_id").getValue();
+            String requestUrl = endpoint + "rest/api/content/" + pageKey + "/child/comment?limit=100"
+                + "&expand=" + commentExpansions;
+
+            String spaceId = pageObject.getString(this.spaceId).getValue();
+
+            return streamAsync(requestUrl, "comments:" + pageKey, result -> {
+                for (BsonDocument object : result) {
+                    prepareComment(object, pageKey, spaceId);
+                    sink.accept("comments", object);
+                    commentsCount.incrementAndGet();
                 }
+            });
+        });
 
-                int commentsCount = children.getAsJsonObject("comment").get("size").getAsInt();
-                if (commentsCount > 0) {
-                    pagesWithComments.add(page);
+        // Search changed comments in spaces crawled before
+        crawlEach(taskName, "id", searchedSpaces, spaceObject -> {
+            String spaceKey = spaceObject.getString("key").getValue();
+            String spaceId = spaceObject.getString("_id").getValue();
+            String requestUrl = getSearchUrl("space = \"" + spaceKey + "\" and type = comment",
+                getSpaceWatermark(spaceId), SEARCH_LIMIT, commentExpansions + ",container");
+
+            return stream(requestUrl, "changed-comments:" + spaceId, null, null, result -> {
+                for (BsonDocument object : result) {
+                    String pageKey = object.getDocument("container").getString("_id").getValue();
+                    object.remove("container");
+
+                    prepareComment(object, pageKey, spaceId);
+                    sink.accept("comments", object);
+                    commentsCount.incrementAndGet();
                 }
-            }
-        }
+            }, null);
+        });
 
-        logger.info("Only " + pagesWithComments.size() + " from " + pages.size() + " pages have comments");
+        logOnTaskFinish(taskName, commentsCount.get());
+    }
 
-        pagesWithComments.parallelStream().forEach(page -> {
-            if (page.isJsonObject()) {
-                JsonObject pageObject = page.getAsJsonObject();
-                try {
-                    String pageKey = pageObject.get("id").getAsString();
-                    String requestUrl = endpoint + "rest/api/content/" + pageKey + "/child/comment?limit=100"
-                        + "&expand=body.view,ancestors,history.lastUpdated";
+    /**
+     * Searches all {@code Confluence} pages and comments of the given list of {@code Confluence}
+     * spaces with a single paginated {@code CQL} search per space and large response pages.
+     * Comments arrive inline with the pages and are related to their page by the expanded
+     * container, so that no separate requests per page with comments are needed
+     * @param spaces - the list of {@code Confluence} spaces
+     * @param sink - the {@link CrawlSink} for the retrieved pages and comments
+     */
+    private void searchContent(List<BsonDocument> spaces, CrawlSink sink) {
+        AtomicInteger pagesCount = new AtomicInteger();
+        AtomicInteger commentsCount = new AtomicInteger();
+        String taskName = CONTENT_TASK_NAME;
+        logOnTaskStart(taskName);
 
-                    String spaceId = pageObject.get(this.spaceId).getAsString();
+        String expansions = attachments != null ? searchExpansions + ATTACHMENT_EXPANSIONS : searchExpansions;
+        crawlEach(taskName, "id", spaces, spaceObject -> {
+            String spaceKey = spaceObject.getString("key").getValue();
+            String spaceId = spaceObject.getString("_id").getValue();
+            String requestUrl = getSearchUrl("space = \"" + spaceKey + "\" and type in (page, comment)",
+                getSpaceWatermark(spaceId), BULK_SEARCH_LIMIT, expansions);
+
+            List<CompletableFuture<Void>> downloads = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+            return stream(requestUrl, "search:" + spaceId, null, null, result -> {
+                for (BsonDocument object : result) {
+                    BsonDocument container = object.getDocument("container", null);
+                    object.remove("container");
+
+                    if (object.getString("type", new BsonString("page")).getValue().equals("comment")) {
+                        if (container == null || !container.isString("_id")) {
+                            continue;
+                        }
 
-                    List<JsonElement> result = retrieve(requestUrl);
-                    for (JsonElement element : result) {
-                        JsonObject object = element.getAsJsonObject();
+                        prepareComment(object, container.getString("_id").getValue(), spaceId);
+                        sink.accept("comments", object);
+                        commentsCount.incrementAndGet();
 
-                        // Inject the correct first ancestor
-                        object.addProperty(this.pageId, pageKey);
-                        object.addProperty(this.spaceId, spaceId);
-                        comments.add(element);
+                    } else if (preparePage(object, spaceId)) {
+                        downloads.add(acceptPage(object, sink));
+                        pagesCount.incrementAndGet();
                     }
-                    logOnSuccess(taskName, pagesWithComments, page, result);
-
-                } catch (Exception e) {
-                    logger.warning("Unable to crawl" + taskName + " for page id " + pageObject.get("id"));
                 }
-            }
+            }, downloads);
         });
 
-        logOnTaskFinish(taskName, comments);
-        return comments;
+        logOnTaskFinish(taskName, pagesCount.get() + commentsCount.get());
+        logger.info(pagesCount.get() + " pages and " + commentsCount.get() + " comments were found");
+    }
+
+    /**
+     * Injects the first ancestor and the space id into the given page
+     * @param object - the page as {@link BsonDocument}
+     * @param spaceId - the id of the space of the page
+     * @return false, if the page is the top level space page, which should be skipped
+     */
+    private boolean preparePage(BsonDocument object, String spaceId) {
+
+        // Remove the top level space page with aggregated content
+        if (object.getString("_id").getValue().equals(spaceId)) {
+            return false;
+        }
+
+        BsonArray ancestors = object.getArray("ancestors", new BsonArray());
+
+        // Inject the correct first ancestor
+        String ancestor = ancestors.size() < 1
+            ? ""
+            : ancestors.get(ancestors.size() - 1).asDocument().getString("_id").getValue();
+
+        object.put("ancestor", new BsonString(ancestor));
+        object.put(this.spaceId, new BsonString(spaceId));
+        return true;
+    }
+
+    /**
+     * Passes the given page to the {@link CrawlSink} after downloading its attachments, if
+     * attachments are crawled. The page gets the metadata of its attachments as {@code attachments}
+     * with the download {@code link} and the stored {@code file} of each attachment. A page with
+     * a failed download is passed nevertheless, its attachment is left without {@code file}
+     * @param object - the page as {@link BsonDocument}
+     * @param sink - the {@link CrawlSink} for the page
+     * @return the {@link CompletableFuture} completed after passing the page,
+     *         completed exceptionally if an attachment could not be downloaded
+     */
+    private CompletableFuture<Void> acceptPage(BsonDocument object, CrawlSink sink) {
+        BsonDocument children = object.getDocument("children", new BsonDocument());
+        BsonDocument attachmentChildren = children.getDocument("attachment", null);
+        if (attachments == null || attachmentChildren == null) {
+            sink.accept("pages", object);
+            return CompletableFuture.completedFuture(null);
+        }
+        children.remove("attachment");
+
+        // Attachments beyond the inline results are listed separately
+        CompletableFuture<List<BsonDocument>> listing;
+        if (!attachmentChildren.getDocument("_links", new BsonDocument()).isString("next")) {
+            listing = CompletableFuture.completedFuture(toDocuments(attachmentChildren.getArray("results", new BsonArray())));
+        } else {
+            List<BsonDocument> attachmentList = Collections.synchronizedList(new ArrayList<BsonDocument>());
+            String requestUrl = endpoint + "rest/api/content/" + object.getString("_id").getValue() + "/child/attachment?limit=100";
+            listing = streamAsync(requestUrl, attachmentList::addAll).thenApply(ignored -> attachmentList);
+        }
+
+        return listing.thenCompose(attachmentList -> {
+            List<BsonDocument> pageAttachments = new ArrayList<BsonDocument>();
+            for (BsonDocument attachment : attachmentList) {
+                pageAttachments.add(toAttachment(attachment));
+            }
+
+            object.put("attachments", new BsonArray(pageAttachments));
+            return downloadAll(pageAttachments, attachment -> attachment.getString("link").getValue());
+        })
+        .whenComplete((ignored, exception) -> sink.accept("pages", object));
+    }
+
+    /**
+     * Returns the metadata of the given {@code Confluence} attachment with its download {@code link}
+     * @param attachment - the attachment as {@link BsonDocument}
+     * @return the attachment metadata as {@link BsonDocument}
+     */
+    private BsonDocument toAttachment(BsonDocument attachment) {
+        BsonDocument extensions = attachment.getDocument("extensions", new BsonDocument());
+        String downloadPath = attachment.getDocument("_links").getString("download").getValue();
+
+        return new BsonDocument("_id", attachment.get("_id"))
+            .append("title", attachment.get("title", BsonNull.VALUE))
+            .append("mediaType", extensions.get("mediaType", BsonNull.VALUE))
+            .append("fileSize", extensions.get("fileSize", BsonNull.VALUE))
+            .append("link", new BsonString(endpoint + downloadPath.replaceFirst("^/", "")));
+    }
+
+    /**
+     * Injects the page id and the space id into the given comment
+     * @param object - the comment as {@link BsonDocument}
+     * @param pageKey - the id of the page of the comment
+     * @param spaceId - the id of the space of the page
+     */
+    private void prepareComment(BsonDocument object, String pageKey, String spaceId) {
+        object.put(this.pageId, new BsonString(pageKey));
+        object.put(this.spaceId, new BsonString(spaceId));
     }
 
     /**
-     * Retrieves data from {@code Confluence} API by for the given request
-     * and returns an empty collection if request failed or no data received
+     * Retrieves the response pages of the given request either one after another
+     * or, in the parallel pagination mode, concurrently by their offsets
      * @param requestUrl - the request {@code URL}
-     * @return the response
+     * @param taskKey - the key identifying the task within the crawler
+     * @param collectionName - the name of the collection the documents of the task are written to
+     * @param filter - the {@link Bson} filter matching the documents of the task
+     * @param consumer - the {@link Consumer} of the response entries of a page
+     * @param downloads - the synchronized {@link List} of downloads started by the {@code consumer} or null
+     * @return the {@link CompletableFuture} with the count of response entries
      */
-    private List<JsonElement> retrieve(String requestUrl) {
-        JsonArray jsonArray = new JsonArray();
-        try {
-            do {
-                HttpRequest request = HttpRequestBuilder.build(requestUrl, requestHeader.toNameValuePair());
-                HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
-                JsonObject jsonObject = JsonParser.parseString(response.body().trim()).getAsJsonObject();
+    private CompletableFuture<Integer> stream(String requestUrl, String taskKey, String collectionName,
+            Bson filter, Consumer<List<BsonDocument>> consumer, List<CompletableFuture<Void>> downloads) {
+        return parallelPagination
+            ? streamParallelAsync(requestUrl, taskKey, collectionName, filter, consumer, downloads)
+            : streamAsync(requestUrl, taskKey, collectionName, filter, consumer, downloads);
+    }
 
-                jsonArray.addAll(jsonObject.getAsJsonArray("results"));
+    /**
+     * Returns the given spaces with a high-water mark, whose changed comments are searched
+     * @param spaces - the list of {@code Confluence} spaces
+     * @return the list of {@code Confluence} spaces crawled before
+     */
+    private List<BsonDocument> getSpacesWithWatermark(List<BsonDocument> spaces) {
+        List<BsonDocument> spacesWithWatermark = new ArrayList<BsonDocument>();
+        for (BsonDocument space : spaces) {
+            if (getSpaceWatermark(space.getString("_id").getValue()) != null) {
+                spacesWithWatermark.add(space);
+            }
+        }
+        return spacesWithWatermark;
+    }
 
-                JsonElement nextRequestUrl = jsonObject.getAsJsonObject("_links").get("next");
-                requestUrl = nextRequestUrl != null ? endpoint + nextRequestUrl.getAsString() : null;
-            } while (requestUrl != null);
+    /**
+     * Returns the high-water mark of the space with the given id
+     * @param spaceId - the space id
+     * @return the high-water mark or null, if the space should be crawled entirely
+     */
+    private Instant getSpaceWatermark(String spaceId) {
+        return isIncremental() ? watermarks.getSpaceWatermark(spaceId) : null;
+    }
 
-            return jsonArray.asList();
+    /**
+     * Returns the properties to expand in results. With a {@link FieldProjection} these are the
+     * expansions the crawler relies on and the expandable content fields needed by processing,
+     * without expansions implied by nested ones, the given default expansions otherwise. The storage
+     * format of bodies, which is mapped for exported content, is not requested along with the view
+     * format, since both hold the same content
+     * @param requiredExpansions - the expansions the crawler relies on, separated by commas
+     * @param defaultExpansions - the expansions requested without projection, separated by commas
+     * @return the expansions separated by commas
+     */
+    private String getExpansions(String requiredExpansions, String defaultExpansions) {
+        if (projection == null) {
+            return defaultExpansions;
+        }
 
-        } catch (InterruptedException | IllegalArgumentException | IOException  | SecurityException  e) {
-            logger.warning("Unable to send a request and/or receive a response for request \"" + requestUrl + "\"");
+        Set<String> expansions = new LinkedHashSet<String>(List.of(requiredExpansions.split(",")));
+        for (String expansion : CONTENT_EXPANSIONS) {
+            if (projection.requires(expansion)) expansions.add(expansion);
+        }
+        if (expansions.contains("body.view")) expansions.remove("body.storage");
+        expansions.removeIf(expansion -> expansions.stream().anyMatch(other -> other.startsWith(expansion + ".")));
+        return String.join(",", expansions);
+    }
 
-        } catch (NullPointerException | JsonParseException | ClassCastException | IllegalStateException  e) {
-            logger.warning("Retrieved malformed JSON format for request \"" + requestUrl + "\"");
+    /**
+     * Returns the fields of {@code Confluence} documents needed to resume a crawl from the stored
+     * pages, to relate pages and comments and to compute the high-water marks of spaces. Replayed
+     * pages are prepared again, so the ids of their ancestors are kept to derive the first ancestor
+     * @param collectionName - the name of the collection
+     * @return the {@link List} of dotted field paths
+     */
+    @Override
+    protected List<String> getRequiredFields(String collectionName) {
+        switch (collectionName) {
+            case "spaces":
+                return List.of("key");
+            case "pages":
+                return List.of(this.spaceId, "ancestor", "ancestors._id", "children.comment.size", "history.lastUpdated.when", "attachments", "type");
+            case "comments":
+                return List.of(this.spaceId, this.pageId, "history.lastUpdated.when", "type");
+            default:
+                return List.of();
+        }
+    }
+
+    /**
+     * Builds the {@code CQL} search request {@code URL} for content matching
+     * the given query and modified after the given high-water mark
+     * @param query - the {@code CQL} query
+     * @param watermark - the high-water mark or null, if all matching content is searched
+     * @param limit - the count of results per response page
+     * @param expansions - the properties to expand in results
+     * @return the request {@code URL}
+     */
+    private String getSearchUrl(String query, Instant watermark, int limit, String expansions) {
+        String cql = query;
+        if (watermark != null) {
+            String since = CQL_DATE_FORMATTER.format(watermark.minus(1, ChronoUnit.DAYS));
+            cql += " and lastmodified >= \"" + since + "\"";
+        }
+        return endpoint + "rest/api/content/search?cql=" + URLEncoder.encode(cql, StandardCharsets.UTF_8)
+            + "&limit=" + limit + "&expand=" + expansions;
+    }
+
+    @Override
+    protected List<BsonDocument> getResults(BsonDocument response) {
+        return toDocuments(response.getArray("results"));
+    }
+
+    /**
+     * Returns the request {@code URL}s of all remaining pages of a search derived from
+     * the offset, the effective limit and the total count of results of its first page
+     * @param requestUrl - the request {@code URL} of the first response page
+     * @param response - the first response page as {@link BsonDocument}
+     * @return the {@link List} of request {@code URL}s or an empty {@link List},
+     *         if the response does not report the total count of results
+     */
+    @Override
+    protected List<String> getPageUrls(String requestUrl, BsonDocument response) {
+        if (!response.isNumber("totalSize") || !response.isNumber("limit")) {
+            return List.of();
+        }
+
+        int start = response.isNumber("start") ? response.getNumber("start").intValue() : 0;
+        int limit = response.getNumber("limit").intValue();
+        int totalSize = response.getNumber("totalSize").intValue();
+        if (limit < 1) {
+            return List.of();
+        }
 
-        } catch (URISyntaxException e) {
-            // Do nothing
+        // Confluence may reduce the requested limit for large expansions
+        String baseUrl = requestUrl.replaceAll("&start=\\d+", "").replaceAll("([?&])limit=\\d+", "$1limit=" + limit);
+        List<String> pageUrls = new ArrayList<String>();
+        for (int offset = start + limit; offset < totalSize; offset += limit) {
+            pageUrls.add(baseUrl + "&start=" + offset);
         }
+        return pageUrls;
+    }
 
-        return List.of();
+    @Override
+    protected String getNextRequestUrl(BsonDocument response) {
+        BsonDocument links = response.getDocument("_links");
+        return links.isString("next") ? endpoint + links.getString("next").getValue() : null;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package com.khub.crawling;
+
+import java.net.URL;
+
+import com.khub.common.Configuration;
+
+public class ConfluenceCrawlerProvider implements CrawlerProvider {
+
+    @Override
+    public String getName() {
+        return "Confluence";
+    }
+
+    @Override
+    public Crawler create(Configuration config, CrawlContext context) {
+        // Space export archives are imported even without access to the REST API
+        URL endpoint = config.confluenceHeader.isValid() ? config.confluenceEndpoint : null;
+        if (endpoint == null && config.confluenceExportPath == null) {
+            return null;
+        }
+
+        return new ConfluenceCrawler(endpoint, config.confluenceHeader, config.confluenceConcurrency,
+            config.confluenceRequestRate, context, config.confluenceBulkSearch,
+            config.confluenceParallelPagination, config.confluenceExportPath);
+    }
+
+}
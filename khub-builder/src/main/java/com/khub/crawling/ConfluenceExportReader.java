@@ -0,0 +1,411 @@
+package com.khub.crawling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+
+public class ConfluenceExportReader {
+
+    private static final Logger logger = Logger.getLogger(ConfluenceExportReader.class.getName());
+
+    private static final String ENTITIES_ENTRY = "entities.xml";
+    private static final String DESCRIPTOR_ENTRY = "exportDescriptor.properties";
+
+    // Object classes of the Hibernate entities in the export
+    private static final String SPACE = "Space";
+    private static final String PAGE = "Page";
+    private static final String COMMENT = "Comment";
+    private static final String USER = "ConfluenceUserImpl";
+    private static final String BODY = "BodyContent";
+
+    // Dates are exported in the timezone of the Confluence server, which is assumed to be UTC
+    private static final DateTimeFormatter EXPORT_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss[.SSS]");
+    private static final DateTimeFormatter API_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    private final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    // Entities indexed in the first pass without their bodies
+    private final Map<String, ExportObject> spaces = new LinkedHashMap<String, ExportObject>();
+    private final Map<String, ExportObject> contents = new HashMap<String, ExportObject>();
+    private final Map<String, ExportObject> users = new HashMap<String, ExportObject>();
+
+    public ConfluenceExportReader() {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * Reads the key of the exported space from the export descriptor of the given archive
+     * @param archive - the {@link Path} to the space export archive
+     * @return the space key or null, if the archive is not a space export
+     * @throws IOException if the archive could not be read
+     */
+    public static String readSpaceKey(Path archive) throws IOException {
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            ZipEntry entry = zip.getEntry(DESCRIPTOR_ENTRY);
+            if (entry == null) return null;
+
+            Properties descriptor = new Properties();
+            try (InputStream stream = zip.getInputStream(entry)) {
+                descriptor.load(stream);
+            }
+            return descriptor.getProperty("spaceKey");
+        }
+    }
+
+    /**
+     * Streams the {@code entities.xml} of the given space export archive twice without loading it
+     * into memory. The first pass indexes spaces, users, pages and comments without their bodies,
+     * the second pass streams the bodies and passes each current page and comment with its body
+     * to the {@link CrawlSink} in the same shape as the {@link ConfluenceCrawler}. Historical
+     * versions, drafts and the top level space pages are skipped like in the {@code REST} crawl
+     * @param archive - the {@link Path} to the space export archive
+     * @param sink - the {@link CrawlSink} for the {@code spaces}, {@code pages}, {@code comments} and {@code users}
+     * @param includeUsers - true, if the authors of the exported content should be passed as users
+     * @return the count of passed documents
+     * @throws IOException if the archive could not be read
+     * @throws XMLStreamException if the {@code entities.xml} is malformed
+     */
+    public int read(Path archive, CrawlSink sink, boolean includeUsers) throws IOException, XMLStreamException {
+        spaces.clear();
+        contents.clear();
+        users.clear();
+
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            ZipEntry entry = zip.getEntry(ENTITIES_ENTRY);
+            if (entry == null) {
+                throw new IOException("The archive \"" + archive + "\" does not contain " + ENTITIES_ENTRY);
+            }
+
+            try (InputStream stream = zip.getInputStream(entry)) {
+                readObjects(stream, className -> !className.equals(BODY), object -> {
+                    switch (object.className) {
+                        case SPACE -> spaces.put(object.id, object);
+                        case PAGE, COMMENT -> { if (isCurrent(object)) contents.put(object.id, object); }
+                        case USER -> users.put(object.id, object);
+                        default -> { }
+                    }
+                });
+            }
+
+            int[] count = { 0 };
+            Set<String> emitted = new HashSet<String>();
+            try (InputStream stream = zip.getInputStream(entry)) {
+                readObjects(stream, className -> className.equals(BODY), body -> {
+                    String contentId = body.references.get("content");
+                    if (contentId == null || emitted.contains(contentId)) return;
+
+                    BsonDocument document = toDocument(contents.get(contentId), body.properties.getOrDefault("body", ""));
+                    if (document != null) {
+                        sink.accept(document.getString("type").getValue().equals("page") ? "pages" : "comments", document);
+                        emitted.add(contentId);
+                        count[0]++;
+                    }
+                });
+            }
+
+            // Content without a body object is passed with an empty body
+            for (ExportObject content : contents.values()) {
+                if (emitted.contains(content.id)) continue;
+                BsonDocument document = toDocument(content, "");
+                if (document != null) {
+                    sink.accept(document.getString("type").getValue().equals("page") ? "pages" : "comments", document);
+                    count[0]++;
+                }
+            }
+
+            for (ExportObject space : spaces.values()) {
+                BsonDocument document = toSpaceDocument(space);
+                if (document != null) {
+                    sink.accept("spaces", document);
+                    count[0]++;
+                }
+            }
+
+            if (includeUsers) {
+                for (ExportObject user : users.values()) {
+                    sink.accept("users", toUserDocument(user));
+                    count[0]++;
+                }
+            }
+
+            logger.info(count[0] + " documents were read from the export archive \"" + archive.getFileName() + "\"");
+            return count[0];
+
+        } finally {
+            spaces.clear();
+            contents.clear();
+            users.clear();
+        }
+    }
+
+    /**
+     * Streams the {@code object} elements of the given {@code entities.xml} and passes
+     * the objects of the accepted classes to the {@code consumer}, skipping all others
+     * @param stream - the {@link InputStream} of the {@code entities.xml}
+     * @param classFilter - the {@link Predicate} accepting object class names
+     * @param consumer - the {@link Consumer} of the {@link ExportObject}s
+     * @throws XMLStreamException if the {@code entities.xml} is malformed
+     */
+    private void readObjects(InputStream stream, Predicate<String> classFilter, Consumer<ExportObject> consumer)
+            throws XMLStreamException {
+        XMLStreamReader reader = factory.createXMLStreamReader(stream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("object")) {
+                    continue;
+                }
+
+                String className = reader.getAttributeValue(null, "class");
+                if (className == null || !classFilter.test(className)) {
+                    skipElement(reader);
+                } else {
+                    consumer.accept(readObject(reader, className));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the {@code object} element at the current position of the given reader
+     * @param reader - the {@link XMLStreamReader} positioned at the start of the object
+     * @param className - the object class name
+     * @return the {@link ExportObject}
+     * @throws XMLStreamException if the object is malformed
+     */
+    private ExportObject readObject(XMLStreamReader reader, String className) throws XMLStreamException {
+        ExportObject object = new ExportObject(className);
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+            String name = reader.getAttributeValue(null, "name");
+
+            if (element.equals("id")) {
+                object.id = reader.getElementText().trim();
+            } else if (element.equals("property") && reader.getAttributeValue(null, "class") != null) {
+                // References to other objects contain the id of the referenced object
+                String referencedId = null;
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (reader.getLocalName().equals("id")) {
+                        referencedId = reader.getElementText().trim();
+                    } else {
+                        skipElement(reader);
+                    }
+                }
+                if (referencedId != null) object.references.put(name, referencedId);
+            } else if (element.equals("property")) {
+                object.properties.put(name, reader.getElementText());
+            } else {
+                skipElement(reader);
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Skips the element at the current position of the given reader including its children
+     * @param reader - the {@link XMLStreamReader} positioned at the start of the element
+     * @throws XMLStreamException if the element is malformed
+     */
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+
+    /**
+     * Checks if the given page or comment is the current version, i.e. neither
+     * a historical version nor a draft nor deleted content
+     * @param object - the page or comment {@link ExportObject}
+     * @return true, if the content is current
+     */
+    private boolean isCurrent(ExportObject object) {
+        return !object.references.containsKey("originalVersion")
+            && object.properties.getOrDefault("contentStatus", "current").equals("current");
+    }
+
+    /**
+     * Builds the page or comment {@link BsonDocument} in the shape of the {@link ConfluenceCrawler}
+     * @param content - the page or comment {@link ExportObject}
+     * @param body - the body in the {@code Confluence} storage format
+     * @return the {@link BsonDocument} or null, if the content is skipped
+     */
+    private BsonDocument toDocument(ExportObject content, String body) {
+        if (content == null) return null;
+        boolean isPage = content.className.equals(PAGE);
+
+        // Comments belong to the page containing them, older exports name the reference page
+        ExportObject page = isPage ? content : contents.get(content.references.getOrDefault("containerContent", content.references.get("page")));
+        if (page == null || !page.className.equals(PAGE)) return null;
+
+        String spaceId = getSpaceId(page);
+        if (spaceId == null || page.id.equals(spaceId)) return null;
+
+        BsonDocument document = new BsonDocument("_id", new BsonString(content.id))
+            .append("type", new BsonString(isPage ? "page" : "comment"))
+            .append("status", new BsonString("current"))
+            .append("title", new BsonString(isPage
+                ? content.properties.getOrDefault("title", "")
+                : "Re: " + page.properties.getOrDefault("title", "")))
+            .append("body", new BsonDocument("storage", new BsonDocument("value", new BsonString(body))
+                .append("representation", new BsonString("storage"))))
+            .append("history", getHistory(content));
+
+        // Ancestors are ordered from the root to the direct parent like in the REST API
+        BsonArray ancestors = new BsonArray();
+        String parentId = content.references.get("parent");
+        for (int depth = 0; parentId != null && depth < 100; depth++) {
+            ExportObject parent = contents.get(parentId);
+            ancestors.add(0, new BsonDocument("_id", new BsonString(parentId))
+                .append("title", new BsonString(parent != null ? parent.properties.getOrDefault("title", "") : "")));
+            parentId = parent != null ? parent.references.get("parent") : null;
+        }
+        document.append("ancestors", ancestors);
+
+        if (isPage) {
+            String ancestor = ancestors.isEmpty() ? "" : ancestors.get(ancestors.size() - 1).asDocument().getString("_id").getValue();
+            document.append("_links", new BsonDocument("webui", new BsonString("/pages/viewpage.action?pageId=" + content.id)))
+                .append("ancestor", new BsonString(ancestor));
+        } else {
+            document.append("_links", new BsonDocument("webui", new BsonString("/pages/viewpage.action?pageId=" + page.id
+                    + "&focusedCommentId=" + content.id + "#comment-" + content.id)))
+                .append("pageId", new BsonString(page.id));
+        }
+
+        return document.append("spaceId", new BsonString(spaceId));
+    }
+
+    /**
+     * Builds the space {@link BsonDocument} identified by its homepage like in the {@link ConfluenceCrawler}
+     * @param space - the space {@link ExportObject}
+     * @return the {@link BsonDocument} or null, if the space has no homepage
+     */
+    private BsonDocument toSpaceDocument(ExportObject space) {
+        String homepageId = space.references.get("homePage");
+        if (homepageId == null) return null;
+
+        String key = space.properties.getOrDefault("key", "");
+        return new BsonDocument("_id", new BsonString(homepageId))
+            .append("key", new BsonString(key))
+            .append("name", new BsonString(space.properties.getOrDefault("name", key)))
+            .append("type", new BsonString(space.properties.getOrDefault("spaceType", "global")))
+            .append("_links", new BsonDocument("webui", new BsonString("/display/" + key)))
+            .append("_expandable", new BsonDocument("homepage", new BsonString("/rest/api/content/" + homepageId)));
+    }
+
+    /**
+     * Builds the user {@link BsonDocument} identified by the user key
+     * @param user - the user {@link ExportObject}
+     * @return the {@link BsonDocument}
+     */
+    private BsonDocument toUserDocument(ExportObject user) {
+        String name = user.properties.getOrDefault("name", user.id);
+        BsonDocument document = new BsonDocument("_id", new BsonString(user.id))
+            .append("type", new BsonString("known"))
+            .append("username", new BsonString(name))
+            .append("userKey", new BsonString(user.id))
+            .append("displayName", new BsonString(name));
+        if (user.properties.containsKey("email")) document.append("email", new BsonString(user.properties.get("email")));
+        return document;
+    }
+
+    /**
+     * Returns the id of the space of the given page, i.e. the id of the space homepage
+     * @param page - the page {@link ExportObject}
+     * @return the space id or null, if the space is not part of the export
+     */
+    private String getSpaceId(ExportObject page) {
+        ExportObject space = spaces.get(page.references.get("space"));
+        return space != null ? space.references.get("homePage") : null;
+    }
+
+    /**
+     * Builds the {@code history} of the given content with author and dates in the {@code REST API} format
+     * @param content - the page or comment {@link ExportObject}
+     * @return the history as {@link BsonDocument}
+     */
+    private BsonDocument getHistory(ExportObject content) {
+        String creationDate = content.properties.get("creationDate");
+        String modificationDate = content.properties.getOrDefault("lastModificationDate", creationDate);
+        String creator = content.references.get("creator");
+
+        BsonDocument history = new BsonDocument("createdBy", getAuthor(creator));
+        BsonDocument lastUpdated = new BsonDocument("by", getAuthor(content.references.getOrDefault("lastModifier", creator)));
+        if (creationDate != null) history.append("createdDate", new BsonString(toApiDate(creationDate)));
+        if (modificationDate != null) lastUpdated.append("when", new BsonString(toApiDate(modificationDate)));
+        return history.append("lastUpdated", lastUpdated);
+    }
+
+    /**
+     * Builds the author of content from the user with the given key
+     * @param userKey - the user key
+     * @return the author as {@link BsonDocument}
+     */
+    private BsonDocument getAuthor(String userKey) {
+        ExportObject user = userKey != null ? users.get(userKey) : null;
+        String name = user != null ? user.properties.getOrDefault("name", userKey) : "anonymous";
+        return new BsonDocument("type", new BsonString(user != null ? "known" : "anonymous"))
+            .append("username", new BsonString(name))
+            .append("userKey", new BsonString(userKey != null ? userKey : ""))
+            .append("displayName", new BsonString(name));
+    }
+
+    /**
+     * Converts an export date to the date format of the {@code REST API}
+     * @param date - the export date
+     * @return the converted date or the given date, if it could not be parsed
+     */
+    private String toApiDate(String date) {
+        try {
+            return API_DATE_FORMATTER.format(LocalDateTime.parse(date.trim(), EXPORT_DATE_FORMATTER).atOffset(ZoneOffset.UTC));
+        } catch (DateTimeParseException e) {
+            return date;
+        }
+    }
+
+    /**
+     * Hibernate entity of the export with its properties and references to other entities
+     */
+    private static class ExportObject {
+
+        private final String className;
+        private String id;
+        private final Map<String, String> properties = new HashMap<String, String>();
+        private final Map<String, String> references = new HashMap<String, String>();
+
+        private ExportObject(String className) {
+            this.className = className;
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.khub.crawling;
+
+import com.khub.common.AttachmentStore;
+import com.khub.common.HttpCache;
+import com.khub.common.HttpTransport;
+
+public class CrawlContext {
+
+    // Transport of all requests of the crawl
+    public final HttpTransport transport;
+
+    // Conditional request cache, null if caching is disabled
+    public final HttpCache cache;
+
+    // High-water marks of the previous crawl, null for a full crawl
+    public final WatermarkStore watermarks;
+
+    // Crawl progress persisted in the raw database, null if checkpointing is disabled
+    public final CheckpointStore checkpoints;
+
+    // Tasks shared by several builder instances, null if crawling in a single instance
+    public final WorkQueue queue;
+
+    // Journal of failed requests in the raw database, null if failed requests are only logged
+    public final FailedRequestJournal failedRequests;
+
+    // Content-addressed store of downloaded attachments, null if attachments are not crawled
+    public final AttachmentStore attachments;
+
+    // Fields needed by processing, which crawlers request and store, null if documents are stored entirely
+    public final FieldProjection projection;
+
+    private CrawlContext(HttpTransport transport, HttpCache cache, WatermarkStore watermarks, CheckpointStore checkpoints,
+            WorkQueue queue, FailedRequestJournal failedRequests, AttachmentStore attachments, FieldProjection projection) {
+        this.transport = transport;
+        this.cache = cache;
+        this.watermarks = watermarks;
+        this.checkpoints = checkpoints;
+        this.queue = queue;
+        this.failedRequests = failedRequests;
+        this.attachments = attachments;
+        this.projection = projection;
+    }
+
+    /**
+     * Creates the {@link CrawlContext} of a full crawl sending all requests with the given {@link HttpTransport},
+     * which is shared by all crawlers of the context and shut down by its creator after the crawl
+     * @param transport - the {@link HttpTransport}
+     * @return the {@link CrawlContext}
+     */
+    public static CrawlContext of(HttpTransport transport) {
+        return new CrawlContext(transport, null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Returns a copy of the context caching conditional requests
+     * @param cache - the conditional request cache or null, if caching is disabled
+     * @return the {@link CrawlContext}
+     */
+    public CrawlContext withCache(HttpCache cache) {
+        return new CrawlContext(transport, cache, watermarks, checkpoints, queue, failedRequests, attachments, projection);
+    }
+
+    /**
+     * Returns a copy of the context crawling incrementally
+     * @param watermarks - the high-water marks of the previous crawl or null for a full crawl
+     * @return the {@link CrawlContext}
+     */
+    public CrawlContext withWatermarks(WatermarkStore watermarks) {
+        return new CrawlContext(transport, cache, watermarks, checkpoints, queue, failedRequests, attachments, projection);
+    }
+
+    /**
+     * Returns a copy of the context persisting the crawl progress
+     * @param checkpoints - the crawl progress or null, if checkpointing is disabled
+     * @return the {@link CrawlContext}
+     */
+    public CrawlContext withCheckpoints(CheckpointStore checkpoints) {
+        return new CrawlContext(transport, cache, watermarks, checkpoints, queue, failedRequests, attachments, projection);
+    }
+
+    /**
+     * Returns a copy of the context sharing tasks with other builder instances
+     * @param queue - the tasks shared by several builder instances or null
+     * @return the {@link CrawlContext}
+     */
+    public CrawlContext withQueue(WorkQueue queue) {
+        return new CrawlContext(transport, cache, watermarks, checkpoints, queue, failedRequests, attachments, projection);
+    }
+
+    /**
+     * Returns a copy of the context recording failed requests
+     * @param failedRequests - the journal of failed requests or null, if failed requests are only logged
+     * @return the {@link CrawlContext}
+     */
+    public CrawlContext withFailedRequests(FailedRequestJournal failedRequests) {
+        return new CrawlContext(transport, cache, watermarks, checkpoints, queue, failedRequests, attachments, projection);
+    }
+
+    /**
+     * Returns a copy of the context downloading attachments
+     * @param attachments - the store of downloaded attachments or null, if attachments are not crawled
+     * @return the {@link CrawlContext}
+     */
+    public CrawlContext withAttachments(AttachmentStore attachments) {
+        return new CrawlContext(transport, cache, watermarks, checkpoints, queue, failedRequests, attachments, projection);
+    }
+
+    /**
+     * Returns a copy of the context storing only the projected fields
+     * @param projection - the fields needed by processing or null, if documents are stored entirely
+     * @return the {@link CrawlContext}
+     */
+    public CrawlContext withProjection(FieldProjection projection) {
+        return new CrawlContext(transport, cache, watermarks, checkpoints, queue, failedRequests, attachments, projection);
+    }
+
+}
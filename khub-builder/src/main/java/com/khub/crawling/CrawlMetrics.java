@@ -0,0 +1,325 @@
+package com.khub.crawling;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.bson.BsonArray;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+
+public class CrawlMetrics {
+
+    // Path segments kept in endpoint templates, i.e. lower camel case resource names,
+    // OData segments and API versions, while all other segments are considered to be ids
+    private static final Pattern RESOURCE_SEGMENT = Pattern.compile("[a-z][A-Za-z]*|\\$[a-z]+|v\\d+(\\.\\d+)?");
+
+    private final Map<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+
+    // Requests sent and not yet answered, bounded by the concurrency of the crawler
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final int concurrency;
+
+    private final Instant startTime = Instant.now();
+
+    public CrawlMetrics(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Returns the template of the endpoint of the given request {@code URI}, i.e. its host and path
+     * without query, where path segments identifying single resources are replaced with {@code {id}}
+     * @param uri - the request {@link URI}
+     * @return the endpoint template
+     */
+    public static String toEndpointTemplate(URI uri) {
+        StringBuilder template = new StringBuilder(uri.getHost() != null ? uri.getHost() : "");
+        String path = uri.getRawPath() != null ? uri.getRawPath() : "";
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) continue;
+            template.append('/').append(RESOURCE_SEGMENT.matcher(segment).matches() ? segment : "{id}");
+        }
+        return template.toString();
+    }
+
+    /**
+     * Returns the template of the endpoint of the given request {@code URL}
+     * @param requestUrl - the request {@code URL}
+     * @return the endpoint template or the {@code URL} itself, if it is malformed
+     */
+    public static String toEndpointTemplate(String requestUrl) {
+        try {
+            return toEndpointTemplate(URI.create(requestUrl));
+        } catch (IllegalArgumentException e) {
+            return requestUrl;
+        }
+    }
+
+    /**
+     * Records the start of a request after it waited for the rate and concurrency limiters
+     * @param uri - the request {@link URI}
+     * @param waitNanos - the time waited for the limiters in nanoseconds
+     */
+    public void onRequestStart(URI uri, long waitNanos) {
+        getEndpoint(uri).wait.record(waitNanos);
+        int current = inFlight.incrementAndGet();
+        peakInFlight.accumulateAndGet(current, Math::max);
+    }
+
+    /**
+     * Records the arrival of the response headers of a request
+     * @param uri - the request {@link URI}
+     * @param nanos - the time from sending the request to the response headers in nanoseconds
+     */
+    public void onHeaders(URI uri, long nanos) {
+        getEndpoint(uri).timeToHeaders.record(nanos);
+    }
+
+    /**
+     * Records a received response
+     * @param uri - the request {@link URI}
+     * @param statusCode - the response status code
+     * @param nanos - the time from sending the request to the received body in nanoseconds
+     * @param bodyBytes - the count of decoded body bytes
+     */
+    public void onResponse(URI uri, int statusCode, long nanos, long bodyBytes) {
+        inFlight.decrementAndGet();
+        EndpointMetrics endpoint = getEndpoint(uri);
+        endpoint.latency.record(nanos);
+        endpoint.statusCodes.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+        endpoint.bodyBytes.add(bodyBytes);
+    }
+
+    /**
+     * Records the count of bytes of a response body as received, i.e. before decoding
+     * @param uri - the request {@link URI}
+     * @param receivedBytes - the count of received body bytes
+     */
+    public void onReceived(URI uri, long receivedBytes) {
+        getEndpoint(uri).receivedBytes.add(receivedBytes);
+    }
+
+    /**
+     * Records a request failed without response, e.g. after a timeout
+     * @param uri - the request {@link URI}
+     * @param nanos - the time from sending the request to the failure in nanoseconds
+     */
+    public void onError(URI uri, long nanos) {
+        inFlight.decrementAndGet();
+        EndpointMetrics endpoint = getEndpoint(uri);
+        endpoint.latency.record(nanos);
+        endpoint.errors.increment();
+    }
+
+    /**
+     * Records a request repeated after a throttled response or an error
+     * @param uri - the request {@link URI}
+     */
+    public void onRetry(URI uri) {
+        getEndpoint(uri).retries.increment();
+    }
+
+    /**
+     * Records the time spent parsing a response body
+     * @param uri - the request {@link URI}
+     * @param nanos - the parsing time in nanoseconds
+     */
+    public void onParsed(URI uri, long nanos) {
+        getEndpoint(uri).parse.record(nanos);
+    }
+
+    /**
+     * Records the time spent passing the entries of a response page on, e.g. to the sink
+     * @param requestUrl - the request {@code URL} of the page
+     * @param entries - the count of entries of the page
+     * @param nanos - the time spent in the consumer of the entries in nanoseconds
+     */
+    public void onConsumed(String requestUrl, int entries, long nanos) {
+        EndpointMetrics endpoint = endpoints.computeIfAbsent(toEndpointTemplate(requestUrl), key -> new EndpointMetrics());
+        endpoint.pages.increment();
+        endpoint.entries.add(entries);
+        endpoint.consume.record(nanos);
+    }
+
+    /**
+     * Returns the metrics of the endpoint of the given request {@code URI}
+     * @param uri - the request {@link URI}
+     * @return the {@link EndpointMetrics}
+     */
+    private EndpointMetrics getEndpoint(URI uri) {
+        return endpoints.computeIfAbsent(toEndpointTemplate(uri), key -> new EndpointMetrics());
+    }
+
+    /**
+     * Returns the machine-readable summary of the recorded metrics with totals and an entry per
+     * endpoint template. Durations are given in milliseconds, their histograms count the durations
+     * below each bucket bound, so that it can be told whether the crawl was limited by the
+     * server, i.e. by the time to the response headers, by the network, i.e. by the transfer
+     * of response bodies, by the limiters, i.e. by the waiting time, or by parsing and writing
+     * @return the summary as {@link BsonDocument}
+     */
+    public BsonDocument toDocument() {
+        Instant endTime = Instant.now();
+        long requests = 0;
+        long errors = 0;
+        long retries = 0;
+        long receivedBytes = 0;
+
+        BsonArray endpointDocuments = new BsonArray();
+        for (Map.Entry<String, EndpointMetrics> entry : new TreeMap<String, EndpointMetrics>(endpoints).entrySet()) {
+            EndpointMetrics endpoint = entry.getValue();
+            requests += endpoint.latency.getCount();
+            errors += endpoint.errors.sum();
+            retries += endpoint.retries.sum();
+            receivedBytes += endpoint.receivedBytes.sum();
+            endpointDocuments.add(new BsonDocument("endpoint", new BsonString(entry.getKey())).append("metrics", endpoint.toDocument()));
+        }
+
+        long durationMillis = Math.max(Duration.between(startTime, endTime).toMillis(), 1);
+        return new BsonDocument("startTime", new BsonDateTime(startTime.toEpochMilli()))
+            .append("endTime", new BsonDateTime(endTime.toEpochMilli()))
+            .append("durationMillis", new BsonInt64(durationMillis))
+            .append("requests", new BsonInt64(requests))
+            .append("errors", new BsonInt64(errors))
+            .append("retries", new BsonInt64(retries))
+            .append("receivedBytes", new BsonInt64(receivedBytes))
+            .append("requestsPerSecond", new BsonDouble(requests * 1000.0 / durationMillis))
+            .append("concurrency", new BsonInt32(concurrency))
+            .append("peakInFlight", new BsonInt32(peakInFlight.get()))
+            .append("endpoints", endpointDocuments);
+    }
+
+    /**
+     * Returns a single line summary of the recorded metrics for the log
+     * @return the summary
+     */
+    public String toSummary() {
+        BsonDocument document = toDocument();
+        return String.format("%d requests (%d retries, %d errors) to %d endpoints, %.1f MB received, %.1f requests/s, peak %d of %d in flight",
+            document.getInt64("requests").getValue(), document.getInt64("retries").getValue(), document.getInt64("errors").getValue(),
+            document.getArray("endpoints").size(), document.getInt64("receivedBytes").getValue() / 1048576.0,
+            document.getDouble("requestsPerSecond").getValue(), peakInFlight.get(), concurrency);
+    }
+
+    /**
+     * Metrics of a single endpoint template
+     */
+    private static class EndpointMetrics {
+
+        private final Histogram wait = new Histogram();
+        private final Histogram timeToHeaders = new Histogram();
+        private final Histogram latency = new Histogram();
+        private final Histogram parse = new Histogram();
+        private final Histogram consume = new Histogram();
+
+        private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<Integer, LongAdder>();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder receivedBytes = new LongAdder();
+        private final LongAdder bodyBytes = new LongAdder();
+        private final LongAdder pages = new LongAdder();
+        private final LongAdder entries = new LongAdder();
+
+        private BsonDocument toDocument() {
+            BsonDocument statusCodeDocument = new BsonDocument();
+            new TreeMap<Integer, LongAdder>(statusCodes)
+                .forEach((statusCode, count) -> statusCodeDocument.append(String.valueOf(statusCode), new BsonInt64(count.sum())));
+
+            return new BsonDocument("requests", new BsonInt64(latency.getCount()))
+                .append("statusCodes", statusCodeDocument)
+                .append("errors", new BsonInt64(errors.sum()))
+                .append("retries", new BsonInt64(retries.sum()))
+                .append("receivedBytes", new BsonInt64(receivedBytes.sum()))
+                .append("bodyBytes", new BsonInt64(bodyBytes.sum()))
+                .append("pages", new BsonInt64(pages.sum()))
+                .append("entries", new BsonInt64(entries.sum()))
+                .append("wait", wait.toDocument())
+                .append("timeToHeaders", timeToHeaders.toDocument())
+                .append("latency", latency.toDocument())
+                .append("parse", parse.toDocument())
+                .append("consume", consume.toDocument());
+        }
+
+    }
+
+    /**
+     * Histogram of durations with fixed bucket bounds in milliseconds, which records
+     * concurrently without locking and keeps constant memory however many durations it counts
+     */
+    private static class Histogram {
+
+        private static final long[] BOUNDS_MILLIS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        private void record(long nanos) {
+            long millis = nanos / 1_000_000;
+            int bucket = 0;
+            while (bucket < BOUNDS_MILLIS.length && millis >= BOUNDS_MILLIS[bucket]) bucket++;
+
+            buckets[bucket].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        private long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Returns the upper bucket bound of the given percentile in milliseconds
+         * @param percentile - the percentile between 0 and 1
+         * @return the bucket bound or the maximum, if the percentile exceeds all bounds
+         */
+        private double getPercentile(double percentile) {
+            long total = count.sum();
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) return BOUNDS_MILLIS[i];
+            }
+            return maxNanos.get() / 1e6;
+        }
+
+        private BsonDocument toDocument() {
+            long total = count.sum();
+            BsonDocument bucketDocument = new BsonDocument();
+            for (int i = 0; i < buckets.length; i++) {
+                String bound = i < BOUNDS_MILLIS.length ? "lt" + BOUNDS_MILLIS[i] : "inf";
+                bucketDocument.append(bound, new BsonInt64(buckets[i].sum()));
+            }
+
+            return new BsonDocument("count", new BsonInt64(total))
+                .append("totalMillis", new BsonDouble(totalNanos.sum() / 1e6))
+                .append("meanMillis", new BsonDouble(total == 0 ? 0 : totalNanos.sum() / 1e6 / total))
+                .append("maxMillis", new BsonDouble(maxNanos.get() / 1e6))
+                .append("p50Millis", new BsonDouble(total == 0 ? 0 : getPercentile(0.5)))
+                .append("p90Millis", new BsonDouble(total == 0 ? 0 : getPercentile(0.9)))
+                .append("p99Millis", new BsonDouble(total == 0 ? 0 : getPercentile(0.99)))
+                .append("buckets", bucketDocument);
+        }
+
+    }
+
+}
@@ -0,0 +1,9 @@
+package com.khub.crawling;
+
+import org.bson.BsonDocument;
+
+public interface CrawlSink {
+
+    public void accept(String collectionName, BsonDocument document);
+
+}
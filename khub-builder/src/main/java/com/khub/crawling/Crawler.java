@@ -1,12 +1,15 @@
 package com.khub.crawling;
 
-import java.util.List;
-import java.util.Map;
-
-import com.google.gson.JsonElement;
+import com.mongodb.client.MongoDatabase;
 
 public interface Crawler {
     
-    public Map<String, List<JsonElement>> run();
+    public void run(CrawlSink sink);
+
+    public boolean run(MongoDatabase database, int batchSize);
+
+    public boolean recrawlFailed(MongoDatabase database, int batchSize);
+
+    public CrawlMetrics getMetrics();
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,25 @@
+package com.khub.crawling;
+
+import com.khub.common.Configuration;
+
+/**
+ * Source of crawled data discovered by the {@link CrawlerRegistry}. Implementations
+ * are registered in {@code META-INF/services/com.khub.crawling.CrawlerProvider}
+ */
+public interface CrawlerProvider {
+
+    /**
+     * Returns the name of the crawled source used in log messages
+     * @return the source name
+     */
+    public String getName();
+
+    /**
+     * Creates the {@link Crawler} of the source from the given {@link Configuration}
+     * @param config - the {@link Configuration}
+     * @param context - the {@link CrawlContext} shared by all sources of a crawl
+     * @return the {@link Crawler} or null, if the source is not configured
+     */
+    public Crawler create(Configuration config, CrawlContext context);
+
+}
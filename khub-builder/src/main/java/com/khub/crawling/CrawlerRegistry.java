@@ -0,0 +1,171 @@
+package com.khub.crawling;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import com.khub.common.Configuration;
+import com.khub.common.FilesHelper;
+import com.mongodb.client.MongoDatabase;
+
+public class CrawlerRegistry {
+
+    private static final Logger logger = Logger.getLogger(CrawlerRegistry.class.getName());
+
+    private final List<CrawlerProvider> providers;
+
+    private CrawlerRegistry(List<CrawlerProvider> providers) {
+        this.providers = providers;
+    }
+
+    /**
+     * Discovers all {@link CrawlerProvider}s registered on the class path
+     * @return the {@link CrawlerRegistry}
+     */
+    public static CrawlerRegistry load() {
+        List<CrawlerProvider> providers = new ArrayList<CrawlerProvider>();
+        ServiceLoader.load(CrawlerProvider.class).forEach(providers::add);
+        return new CrawlerRegistry(providers);
+    }
+
+    /**
+     * Returns the discovered {@link CrawlerProvider}s
+     * @return the {@link List} of {@link CrawlerProvider}s
+     */
+    public List<CrawlerProvider> getProviders() {
+        return providers;
+    }
+
+    /**
+     * Runs the crawlers of all configured sources concurrently, each on its own thread with
+     * its own request budget, and writes retrieved data into the given {@link MongoDatabase}.
+     * A failing source does not interrupt the crawling of the other sources
+     * @param config - the {@link Configuration} of the sources
+     * @param context - the {@link CrawlContext} shared by all sources
+     * @param database - the {@link MongoDatabase} to write data to
+     * @param batchSize - the count of documents written at once
+     * @return true, if at least one source was crawled successfully, false otherwise
+     */
+    public boolean run(Configuration config, CrawlContext context, MongoDatabase database, int batchSize) {
+        return run(config, context, crawler -> crawler.run(database, batchSize));
+    }
+
+    /**
+     * Crawls the requests of all configured sources recorded as failed in the {@link FailedRequestJournal}
+     * of the given {@link MongoDatabase} again and merges the retrieved data into it. Sources are
+     * crawled concurrently like in {@link #run(Configuration, CrawlContext, MongoDatabase, int)}
+     * @param config - the {@link Configuration} of the sources
+     * @param context - the {@link CrawlContext} with the {@link FailedRequestJournal}
+     * @param database - the {@link MongoDatabase} of the crawl with failed requests
+     * @param batchSize - the count of documents written at once
+     * @return true, if at least one source was crawled again without failed requests, false otherwise
+     */
+    public boolean recrawlFailed(Configuration config, CrawlContext context, MongoDatabase database, int batchSize) {
+        return run(config, context, crawler -> crawler.recrawlFailed(database, batchSize));
+    }
+
+    /**
+     * Runs the given step for the crawlers of all configured sources concurrently
+     * @param config - the {@link Configuration} of the sources
+     * @param context - the {@link CrawlContext} shared by all sources
+     * @param step - the step running a {@link Crawler}
+     * @return true, if the step succeeded for at least one source, false otherwise
+     */
+    private boolean run(Configuration config, CrawlContext context, Predicate<Crawler> step) {
+        Map<String, Crawler> crawlers = new LinkedHashMap<String, Crawler>();
+        for (CrawlerProvider provider : providers) {
+            Crawler crawler = provider.create(config, context);
+            if (crawler != null) {
+                logger.info(provider.getName() + " API configuration is provided, proceeding to " + provider.getName() + " crawling...");
+                crawlers.put(provider.getName(), crawler);
+            } else {
+                logger.warning("Unable to crawl " + provider.getName() + " data because endpoint or header configuration is empty");
+            }
+        }
+
+        if (crawlers.isEmpty()) return false;
+
+        ExecutorService executor = Executors.newFixedThreadPool(crawlers.size());
+        try {
+            List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+            crawlers.forEach((name, crawler) -> results.add(CompletableFuture.supplyAsync(() -> run(name, crawler, step), executor)));
+            return results.stream().map(CompletableFuture::join).reduce(false, Boolean::logicalOr);
+        } finally {
+            executor.shutdown();
+            writeMetrics(config.metricsPath, crawlers);
+        }
+    }
+
+    /**
+     * Writes the request metrics of the given crawlers as {@code JSON} summary into a new file
+     * under the given directory, so that crawls can be compared and analysed afterwards
+     * @param metricsPath - the {@link Path} to the metrics directory or null, if metrics are only logged
+     * @param crawlers - the {@link Map} of {@link Crawler}s by the names of their sources
+     */
+    private void writeMetrics(Path metricsPath, Map<String, Crawler> crawlers) {
+        BsonArray crawlerMetrics = new BsonArray();
+        crawlers.forEach((name, crawler) -> {
+            CrawlMetrics metrics = crawler.getMetrics();
+            logger.info(name + " requests: " + metrics.toSummary());
+            crawlerMetrics.add(new BsonDocument("crawler", new BsonString(name)).append("metrics", metrics.toDocument()));
+        });
+
+        if (metricsPath == null || FilesHelper.createDirectories(metricsPath) == null) {
+            return;
+        }
+
+        String timestamp = DateTimeFormatter.ofPattern("yyyy-MM-dd-HHmmss").format(LocalDateTime.now());
+        Path metricsFile = metricsPath.resolve("crawl-metrics-" + timestamp + ".json");
+        try {
+            String json = new BsonDocument("crawlers", crawlerMetrics).toJson(JsonWriterSettings.builder()
+                .outputMode(JsonMode.RELAXED).indent(true).build());
+            Files.writeString(metricsFile, json, StandardCharsets.UTF_8);
+            logger.info("Crawl metrics were written to \"" + metricsFile + "\"");
+        } catch (IOException e) {
+            logger.warning("Unable to write the crawl metrics to \"" + metricsFile + "\"");
+        }
+    }
+
+    /**
+     * Runs the given {@link Crawler} and isolates its failures from the other sources
+     * @param name - the name of the crawled source
+     * @param crawler - the {@link Crawler}
+     * @param step - the step running the {@link Crawler}
+     * @return true, if the source was crawled successfully, false otherwise
+     */
+    private boolean run(String name, Crawler crawler, Predicate<Crawler> step) {
+        try {
+            boolean result = step.test(crawler);
+            if (result) {
+                logger.info(name + " data was successfully crawled");
+            } else {
+                logger.warning(name + " data was not crawled completely");
+            }
+            return result;
+
+        } catch (RuntimeException e) {
+            logger.severe("Crawling of " + name + " data failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.khub.crawling;
+
+import java.io.IOException;
+
+/**
+ * Failure of a request identified by its request {@code URL}
+ */
+class FailedRequestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    final String requestUrl;
+
+    FailedRequestException(String requestUrl, Throwable cause) {
+        super("Request \"" + requestUrl + "\" failed", cause);
+        this.requestUrl = requestUrl;
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.khub.crawling;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+import com.khub.common.MongoConnector;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+
+public class FailedRequestJournal {
+
+    private static final Logger logger = Logger.getLogger(FailedRequestJournal.class.getName());
+
+    public static final String COLLECTION_NAME = MongoConnector.INTERNAL_COLLECTION_PREFIX + "failed_requests";
+
+    private final MongoCollection<BsonDocument> collection;
+
+    private FailedRequestJournal(MongoCollection<BsonDocument> collection) {
+        this.collection = collection;
+    }
+
+    /**
+     * Creates an empty {@link FailedRequestJournal} for a new crawl into
+     * the given {@link MongoDatabase} and removes previously failed requests
+     * @param database - the {@link MongoDatabase} of the current crawl
+     * @return the {@link FailedRequestJournal}
+     * @throws MongoException if previously failed requests could not be removed
+     */
+    public static FailedRequestJournal create(MongoDatabase database) throws MongoException {
+        MongoCollection<BsonDocument> collection = database.getCollection(COLLECTION_NAME, BsonDocument.class);
+        collection.deleteMany(new BsonDocument());
+        return new FailedRequestJournal(collection);
+    }
+
+    /**
+     * Opens the {@link FailedRequestJournal} of a crawl into the given {@link MongoDatabase}
+     * keeping the requests failed before, e.g. to crawl them again
+     * @param database - the {@link MongoDatabase} of the crawl
+     * @return the {@link FailedRequestJournal}
+     */
+    public static FailedRequestJournal load(MongoDatabase database) {
+        return new FailedRequestJournal(database.getCollection(COLLECTION_NAME, BsonDocument.class));
+    }
+
+    /**
+     * Records a failed request. Failures of the same task for the same parent are recorded
+     * once, since crawling the parent again retrieves all its response pages. Failed requests
+     * outside of a task, e.g. listing the parents of all further tasks, have neither task nor parent
+     * @param crawler - the key of the crawler
+     * @param task - the name of the failed task or null, if the request belongs to no task
+     * @param parent - the parent {@link BsonDocument} of the task or null, if the request belongs to no task
+     * @param parentId - the id of the parent or null, if the request belongs to no task
+     * @param url - the request {@code URL} of the failed response page, i.e. the cursor of the pagination,
+     *              or null, if the task failed before sending a request
+     * @param error - the cause of the failure
+     */
+    public void record(String crawler, String task, BsonDocument parent, String parentId, String url, Throwable error) {
+        String id = crawler + ":" + (task != null ? task + ":" + parentId : url);
+        BsonDocument document = new BsonDocument("_id", new BsonString(id))
+            .append("crawler", new BsonString(crawler))
+            .append("task", toValue(task))
+            .append("parentId", toValue(parentId))
+            .append("parent", parent != null ? parent : BsonNull.VALUE)
+            .append("url", toValue(url))
+            .append("error", new BsonString(error.getClass().getName()))
+            .append("message", toValue(error.getMessage()))
+            .append("time", new BsonDateTime(System.currentTimeMillis()));
+
+        try {
+            collection.replaceOne(Filters.eq("_id", id), document, new ReplaceOptions().upsert(true));
+        } catch (MongoException e) {
+            logger.warning("Unable to record the failed request \"" + url + "\" in the journal");
+        }
+    }
+
+    /**
+     * Returns the failed requests of the given crawler in the order of their failure
+     * @param crawler - the key of the crawler
+     * @return the {@link List} of failed requests as {@link BsonDocument}s
+     * @throws MongoException if the journal could not be read
+     */
+    public List<BsonDocument> find(String crawler) throws MongoException {
+        return collection.find(Filters.eq("crawler", crawler)).sort(Sorts.ascending("time"))
+            .into(new ArrayList<BsonDocument>());
+    }
+
+    /**
+     * Returns the failed requests of all crawlers
+     * @return the {@link List} of failed requests as {@link BsonDocument}s
+     * @throws MongoException if the journal could not be read
+     */
+    public List<BsonDocument> findAll() throws MongoException {
+        return collection.find().into(new ArrayList<BsonDocument>());
+    }
+
+    /**
+     * Removes the failed requests of the given crawler recorded before the given time,
+     * so that requests failing again while crawling them again are kept
+     * @param crawler - the key of the crawler
+     * @param time - the start time of crawling the failed requests again
+     * @throws MongoException if the failed requests could not be removed
+     */
+    public void remove(String crawler, Instant time) throws MongoException {
+        collection.deleteMany(Filters.and(Filters.eq("crawler", crawler), Filters.lt("time", new BsonDateTime(time.toEpochMilli()))));
+    }
+
+    /**
+     * Returns the count of failed requests of the given crawler
+     * @param crawler - the key of the crawler
+     * @return the count of failed requests
+     * @throws MongoException if the journal could not be read
+     */
+    public long getCount(String crawler) throws MongoException {
+        return collection.countDocuments(Filters.eq("crawler", crawler));
+    }
+
+    /**
+     * Converts the given nullable string to a {@link BsonValue}
+     * @param value - the string or null
+     * @return the {@link BsonString} or {@link BsonNull}
+     */
+    private BsonValue toValue(String value) {
+        return value != null ? new BsonString(value) : BsonNull.VALUE;
+    }
+
+}
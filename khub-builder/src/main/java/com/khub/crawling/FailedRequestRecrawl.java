@@ -0,0 +1,86 @@
+package com.khub.crawling;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+
+class FailedRequestRecrawl {
+
+    private static final Logger logger = Logger.getLogger(FailedRequestRecrawl.class.getName());
+
+    private final AbstractCrawler crawler;
+    private final FailedRequestJournal failedRequests;
+
+    FailedRequestRecrawl(AbstractCrawler crawler, FailedRequestJournal failedRequests) {
+        this.crawler = crawler;
+        this.failedRequests = failedRequests;
+    }
+
+    /**
+     * Crawls the requests recorded in the {@link FailedRequestJournal} again and merges the
+     * retrieved data into the collections of the given {@link MongoDatabase}. Each failed task
+     * is crawled again for its parent, a failed request listing the parents of all tasks
+     * leads to crawling all data again. Requests failing again are kept in the journal
+     * @param database - the {@link MongoDatabase} of the crawl with failed requests
+     * @param batchSize - the count of documents written at once
+     * @return true, if no request failed again, false otherwise
+     */
+    boolean run(MongoDatabase database, int batchSize) {
+        String crawlerKey = crawler.getClass().getSimpleName();
+        Instant startTime = Instant.now();
+        MongoSink sink = new MongoSink(database, batchSize, true);
+        try {
+            List<BsonDocument> failures = failedRequests.find(crawlerKey);
+            if (failures.isEmpty()) {
+                logger.info("No failed requests of " + crawlerKey + " were recorded, skipping the crawler");
+                return true;
+            }
+
+            boolean listingFailed = false;
+            Map<String, List<BsonDocument>> parents = new LinkedHashMap<String, List<BsonDocument>>();
+            for (BsonDocument failure : failures) {
+                if (failure.isString("task") && failure.isDocument("parent")) {
+                    parents.computeIfAbsent(failure.getString("task").getValue(), task -> new ArrayList<BsonDocument>())
+                        .add(failure.getDocument("parent"));
+                } else {
+                    listingFailed = true;
+                }
+            }
+
+            logger.info(failures.size() + " failed requests of " + crawlerKey + " were recorded, crawling them again");
+            CrawlSink projectedSink = crawler.project(sink);
+            if (listingFailed) {
+                // The parents of the tasks are unknown without the listing requests
+                logger.info("Requests listing the parents of the crawled tasks failed, crawling all data again");
+                crawler.run(projectedSink);
+            } else {
+                parents.forEach((taskName, taskParents) -> crawler.recrawl(taskName, taskParents, projectedSink));
+            }
+
+            sink.flush();
+            failedRequests.remove(crawlerKey, startTime);
+            if (sink.getWriteError() != null) {
+                // Rejected documents are still missing, so the requests are kept for the next recrawl
+                failedRequests.record(crawlerKey, null, null, null, null, sink.getWriteError());
+            }
+
+            long failedAgain = failedRequests.getCount(crawlerKey);
+            if (failedAgain != 0) logger.warning(failedAgain + " requests failed again and are kept in the journal");
+            logger.info(sink.getWrittenCount() + " documents were successfully merged into the database \"" + database.getName() + "\"");
+            return failedAgain == 0;
+
+        } catch (MongoException e) {
+            logger.severe("Unable to crawl the failed requests into the database \"" + database.getName() + "\"");
+            return false;
+        }
+    }
+
+}
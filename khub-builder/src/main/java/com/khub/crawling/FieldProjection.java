@@ -0,0 +1,197 @@
+package com.khub.crawling;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+public class FieldProjection {
+
+    private static final Logger logger = Logger.getLogger(FieldProjection.class.getName());
+
+    // Dotted field paths kept in stored documents, array notation removed
+    private final Set<String> paths;
+
+    // Field paths as tree of field names, where a field kept entirely has no nested fields
+    private final Node root;
+
+    private FieldProjection(Set<String> paths) {
+        this.paths = paths;
+        this.root = new Node();
+        for (String path : paths) {
+            Node node = root;
+            for (String field : path.split("\\.")) {
+                node = node.children.computeIfAbsent(field, name -> new Node());
+                if (node.whole) break;
+            }
+
+            // A field kept entirely includes all of its nested fields
+            node.whole = true;
+            node.children.clear();
+        }
+    }
+
+    /**
+     * Returns an instance of {@link FieldProjection} keeping the fields named in the
+     * {@code JsonPath}-like paths of the processing {@code mapping} file at the given
+     * {@code processingPath}, if it was successfully read, null otherwise
+     * @param processingPath - the {@link Path} to the {@code JSON} mapping file
+     * @return the {@link FieldProjection}
+     */
+    public static FieldProjection of(Path processingPath) {
+        if (processingPath == null) {
+            return null;
+        }
+
+        try {
+            String jsonString = Files.readString(processingPath);
+            Type mapType = new TypeToken<HashMap<String, List<String>>>() {}.getType();
+            Map<String, List<String>> mappings = new Gson().fromJson(jsonString, mapType);
+
+            List<String> paths = new ArrayList<String>();
+            mappings.values().forEach(paths::addAll);
+            return new FieldProjection(normalize(paths));
+
+        } catch (IOException | SecurityException e) {
+            logger.severe("Unable to read the provided mapping file at \"" + processingPath + "\"");
+
+        } catch (JsonSyntaxException | NullPointerException e) {
+            logger.severe("The provided mapping file at \"" + processingPath + "\" has invalid syntax");
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a new {@link FieldProjection} keeping the given fields in addition,
+     * e.g. fields the crawler relies on to resume or to continue incrementally
+     * @param additionalPaths - the dotted field paths
+     * @return the {@link FieldProjection}
+     */
+    public FieldProjection with(Collection<String> additionalPaths) {
+        Set<String> combined = new LinkedHashSet<String>(paths);
+        combined.addAll(normalize(additionalPaths));
+        return new FieldProjection(combined);
+    }
+
+    /**
+     * Checks if the given field or any of its nested fields is kept
+     * @param path - the dotted field path
+     * @return true, if the field is needed
+     */
+    public boolean requires(String path) {
+        for (String kept : paths) {
+            if (kept.equals(path) || kept.startsWith(path + ".") || path.startsWith(kept + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the names of the top level fields, which are kept entirely or partly
+     * @return the {@link Set} of field names
+     */
+    public Set<String> getTopLevelFields() {
+        return root.children.keySet();
+    }
+
+    /**
+     * Returns a copy of the given document with the kept fields only. Nested fields of
+     * arrays are kept in each element, like the array notation of the mapping file.
+     * The given document is left unchanged, since crawlers read it further
+     * @param document - the {@link BsonDocument}
+     * @return the projected {@link BsonDocument}
+     */
+    public BsonDocument project(BsonDocument document) {
+        return project(document, root);
+    }
+
+    /**
+     * Returns a copy of the given document with the fields of the given node
+     * @param document - the {@link BsonDocument}
+     * @param node - the {@link Node} of the fields to keep
+     * @return the projected {@link BsonDocument}
+     */
+    private BsonDocument project(BsonDocument document, Node node) {
+        BsonDocument projected = new BsonDocument();
+        node.children.forEach((field, child) -> {
+            BsonValue value = document.get(field);
+            if (value != null) {
+                BsonValue projectedValue = project(value, child);
+                if (projectedValue != null) projected.append(field, projectedValue);
+            }
+        });
+        return projected;
+    }
+
+    /**
+     * Returns the given value with the fields of the given node, i.e. the whole value
+     * of a field kept entirely, the projected document or the array of projected elements
+     * @param value - the {@link BsonValue}
+     * @param node - the {@link Node} of the fields to keep
+     * @return the projected {@link BsonValue} or null, if none of its fields is kept
+     */
+    private BsonValue project(BsonValue value, Node node) {
+        if (node.whole) {
+            return value;
+        }
+
+        if (value.isDocument()) {
+            BsonDocument projected = project(value.asDocument(), node);
+            return projected.isEmpty() ? null : projected;
+        }
+
+        if (value.isArray()) {
+            BsonArray projected = new BsonArray();
+            for (BsonValue element : value.asArray()) {
+                BsonValue projectedElement = project(element, node);
+                if (projectedElement != null) projected.add(projectedElement);
+            }
+            return projected;
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the array notation from the given {@code JsonPath}-like paths
+     * @param paths - the paths, e.g. {@code Object1[*].Object2}
+     * @return the {@link Set} of dotted field paths, e.g. {@code Object1.Object2}
+     */
+    private static Set<String> normalize(Collection<String> paths) {
+        Set<String> normalized = new LinkedHashSet<String>();
+        for (String path : paths) {
+            if (path != null && !path.isBlank()) normalized.add(path.replace("[*]", "").trim());
+        }
+        return normalized;
+    }
+
+    /**
+     * Field of the projection with its kept nested fields
+     */
+    private static class Node {
+
+        private final Map<String, Node> children = new LinkedHashMap<String, Node>();
+        private boolean whole = false;
+
+    }
+
+}
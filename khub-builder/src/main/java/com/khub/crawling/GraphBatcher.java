@@ -0,0 +1,214 @@
+package com.khub.crawling;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+public class GraphBatcher {
+
+    // Maximum number of sub-requests in a single batch supported by Microsoft Graph
+    private static final int MAX_BATCH_SIZE = 20;
+
+    // Time to wait for further sub-requests before an incomplete batch is sent
+    private static final long LINGER_MILLIS = 20;
+
+    // Versioned base URL, which sub-request URLs are relative to
+    private final String baseUrl;
+
+    // Sends the batch request body and returns the batch response
+    private final Function<BsonDocument, CompletableFuture<BsonDocument>> sender;
+
+    // Notified with the requested pause, whenever a sub-request was throttled
+    private final Consumer<Duration> throttleListener;
+
+    // Sub-requests waiting for the next batch
+    private final List<SubRequest> pending = new ArrayList<SubRequest>();
+    private boolean flushScheduled = false;
+
+    public GraphBatcher(String baseUrl, Function<BsonDocument, CompletableFuture<BsonDocument>> sender,
+            Consumer<Duration> throttleListener) {
+        this.baseUrl = baseUrl;
+        this.sender = sender;
+        this.throttleListener = throttleListener;
+    }
+
+    /**
+     * Submits a {@code GET} request, which is sent as soon as the current batch is full or
+     * no further requests were submitted for a short time. Throttled sub-requests are
+     * repeated in a later batch with exponential backoff
+     * @param requestUrl - the absolute request {@code URL} starting with the base {@code URL}
+     * @return the {@link CompletableFuture} with the response body of the request
+     */
+    public CompletableFuture<BsonDocument> submit(String requestUrl) {
+        return submit(requestUrl, new BsonDocument())
+            .thenApply(response -> response.getDocument("body", new BsonDocument()));
+    }
+
+    /**
+     * Submits a {@code GET} request with the given headers like {@link #submit(String)}, e.g. a conditional
+     * request with {@code If-None-Match}, which is completed with {@code 304 Not Modified} as well
+     * @param requestUrl - the absolute request {@code URL} starting with the base {@code URL}
+     * @param headers - the request headers of the sub-request
+     * @return the {@link CompletableFuture} with the sub-response including its status, headers and body
+     */
+    public CompletableFuture<BsonDocument> submit(String requestUrl, BsonDocument headers) {
+        if (!requestUrl.startsWith(baseUrl)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Request URL \"" + requestUrl
+                + "\" cannot be batched with base URL \"" + baseUrl + "\""));
+        }
+
+        SubRequest request = new SubRequest(requestUrl.substring(baseUrl.length()), headers);
+        enqueue(request);
+        return request.result;
+    }
+
+    /**
+     * Adds the sub-request to the next batch and sends the batch, if it is full
+     * @param request - the {@link SubRequest}
+     */
+    private void enqueue(SubRequest request) {
+        List<SubRequest> batch = null;
+        boolean scheduleFlush = false;
+        synchronized (pending) {
+            pending.add(request);
+            if (pending.size() >= MAX_BATCH_SIZE) {
+                batch = new ArrayList<SubRequest>(pending);
+                pending.clear();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                scheduleFlush = true;
+            }
+        }
+
+        if (batch != null) send(batch);
+        if (scheduleFlush) {
+            CompletableFuture.runAsync(this::flush, CompletableFuture.delayedExecutor(LINGER_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Sends all pending sub-requests
+     */
+    private void flush() {
+        List<SubRequest> batch;
+        synchronized (pending) {
+            flushScheduled = false;
+            if (pending.isEmpty()) return;
+            batch = new ArrayList<SubRequest>(pending);
+            pending.clear();
+        }
+
+        send(batch);
+    }
+
+    /**
+     * Sends the given sub-requests as a single {@code $batch} request and
+     * completes each sub-request with its response
+     * @param batch - the {@link List} of {@link SubRequest}s
+     */
+    private void send(List<SubRequest> batch) {
+        BsonArray requests = new BsonArray();
+        for (int i = 0; i < batch.size(); i++) {
+            BsonDocument request = new BsonDocument("id", new BsonString(String.valueOf(i)))
+                .append("method", new BsonString("GET"))
+                .append("url", new BsonString(batch.get(i).url));
+            if (!batch.get(i).headers.isEmpty()) request.append("headers", batch.get(i).headers);
+            requests.add(request);
+        }
+
+        sender.apply(new BsonDocument("requests", requests)).whenComplete((response, exception) -> {
+            if (exception != null) {
+                batch.forEach(request -> request.result.completeExceptionally(exception));
+                return;
+            }
+
+            BsonDocument[] responses = new BsonDocument[batch.size()];
+            for (BsonValue value : response.getArray("responses", new BsonArray())) {
+                // Identifiers are renamed to _id while parsing the batch response
+                BsonValue id = value.isDocument() ? value.asDocument().get("_id") : null;
+                int index = id != null && id.isString() ? parseIndex(id.asString().getValue()) : -1;
+                if (index >= 0 && index < responses.length) responses[index] = value.asDocument();
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                complete(batch.get(i), responses[i]);
+            }
+        });
+    }
+
+    /**
+     * Completes the sub-request with its sub-response or repeats it, if it was throttled
+     * @param request - the {@link SubRequest}
+     * @param response - the sub-response or null, if the batch response does not contain it
+     */
+    private void complete(SubRequest request, BsonDocument response) {
+        if (response == null) {
+            request.result.completeExceptionally(new IOException("Received no response for \"" + request.url + "\""));
+            return;
+        }
+
+        int status = response.isNumber("status") ? response.getNumber("status").intValue() : 500;
+        if (status < 300 || status == 304) {
+            request.result.complete(response);
+            return;
+        }
+
+        boolean throttled = status == 429 || status == 503;
+        if (!throttled || request.attempt >= RequestSender.MAX_RETRIES) {
+            request.result.completeExceptionally(new IOException("Received status code " + status + " for \"" + request.url + "\""));
+            return;
+        }
+
+        // The throttle listener pauses all requests for the requested duration
+        BsonDocument headers = response.getDocument("headers", new BsonDocument());
+        Duration retryAfter = RateLimiter.parseRetryAfter(headers.isString("Retry-After")
+            ? headers.getString("Retry-After").getValue()
+            : null);
+        throttleListener.accept(retryAfter);
+
+        request.attempt++;
+        long backoff = retryAfter != null ? 0 : RequestSender.getBackoff(request.attempt - 1);
+        CompletableFuture.runAsync(() -> enqueue(request), CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Parses the sub-request identifier
+     * @param id - the identifier
+     * @return the index of the sub-request in the batch or -1, if invalid
+     */
+    private int parseIndex(String id) {
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Single {@code GET} request of a batch
+     */
+    private static class SubRequest {
+
+        private final String url;
+        private final BsonDocument headers;
+        private final CompletableFuture<BsonDocument> result = new CompletableFuture<BsonDocument>();
+        private int attempt = 0;
+
+        private SubRequest(String url, BsonDocument headers) {
+            this.url = url;
+            this.headers = headers;
+        }
+
+    }
+
+}
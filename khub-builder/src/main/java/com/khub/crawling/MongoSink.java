@@ -0,0 +1,200 @@
+package com.khub.crawling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+
+public class MongoSink implements CrawlSink {
+
+    private static final Logger logger = Logger.getLogger(MongoSink.class.getName());
+
+    private final MongoDatabase database;
+    private final int batchSize;
+
+    // Merges documents into existing collections instead of replacing their content
+    private final boolean merge;
+
+    // Pending documents per collection
+    private final Map<String, List<BsonDocument>> buffers = new HashMap<String, List<BsonDocument>>();
+
+    // Collections whose previous content was removed, each guarding its own removal
+    private final Map<String, AtomicBoolean> preparedCollections = new ConcurrentHashMap<String, AtomicBoolean>();
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    // Documents rejected by the database, e.g. with field names not allowed in stored documents
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile MongoException writeError;
+
+    // Shared by accepting threads and held exclusively while flushing, so that
+    // a flush returns only after batches taken by other threads are written as well
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+
+    public MongoSink(MongoDatabase database, int batchSize, boolean merge) {
+        this.database = database;
+        this.batchSize = Math.max(1, batchSize);
+        this.merge = merge;
+    }
+
+    /**
+     * Adds the given {@link BsonDocument} to the pending documents of the collection, which are
+     * written as soon as a batch is complete. The first document of a collection
+     * removes the previous collection content, unless merging
+     * @param collectionName - the name of the {@link MongoCollection} to write to
+     * @param document - the {@link BsonDocument} to write
+     * @throws MongoException if the batch could not be written
+     */
+    @Override
+    public void accept(String collectionName, BsonDocument document) throws MongoException {
+        if (document == null) return;
+        prepareCollection(collectionName);
+
+        flushLock.readLock().lock();
+        try {
+            List<BsonDocument> batch = null;
+            synchronized (buffers) {
+                List<BsonDocument> buffer = buffers.computeIfAbsent(collectionName, name -> new ArrayList<BsonDocument>());
+                buffer.add(document);
+                if (buffer.size() >= batchSize) {
+                    batch = buffer;
+                    buffers.put(collectionName, new ArrayList<BsonDocument>());
+                }
+            }
+
+            if (batch != null) write(collectionName, batch);
+        } finally {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes all pending documents and waits for batches being written by other threads
+     * @throws MongoException if a batch could not be written
+     */
+    public void flush() throws MongoException {
+        flushLock.writeLock().lock();
+        try {
+            Map<String, List<BsonDocument>> batches = new HashMap<String, List<BsonDocument>>();
+            synchronized (buffers) {
+                buffers.replaceAll((collectionName, buffer) -> {
+                    if (!buffer.isEmpty()) batches.put(collectionName, buffer);
+                    return new ArrayList<BsonDocument>();
+                });
+            }
+
+            batches.forEach(this::write);
+        } finally {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the count of documents written so far
+     * @return the count of written documents
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Returns the count of documents rejected by the database so far. Rejected documents
+     * are missing in the database like the data of failed requests
+     * @return the count of rejected documents
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the error of the latest rejected documents
+     * @return the {@link MongoException} or null, if no document was rejected so far
+     */
+    public MongoException getWriteError() {
+        return writeError;
+    }
+
+    /**
+     * Removes the content of the given collection for a full crawl once, before its first document
+     * is buffered. Only threads accepting documents of the same collection wait for the removal,
+     * so the buffers of other collections are not blocked by the remote calls
+     * @param collectionName - the name of the {@link MongoCollection}
+     * @throws MongoException if the content could not be removed
+     */
+    private void prepareCollection(String collectionName) throws MongoException {
+        if (merge) return;
+
+        AtomicBoolean prepared = preparedCollections.computeIfAbsent(collectionName, name -> new AtomicBoolean());
+        if (prepared.get()) return;
+
+        synchronized (prepared) {
+            if (prepared.get()) return;
+
+            MongoCollection<BsonDocument> collection = database.getCollection(collectionName, BsonDocument.class);
+            long size = collection.countDocuments();
+            if (size != 0) {
+                collection.deleteMany(new BsonDocument());
+                logger.warning("The collection \"" + collectionName + "\" was not empty, removed " + size + " documents");
+            }
+            prepared.set(true);
+        }
+    }
+
+    /**
+     * Writes the batch of documents with an unordered bulk write, replacing documents with the same id.
+     * Documents rejected by the database are counted, while the other documents of the batch are written
+     * @param collectionName - the name of the {@link MongoCollection} to write to
+     * @param batch - the {@link List} of {@link BsonDocument}s
+     */
+    private void write(String collectionName, List<BsonDocument> batch) {
+        List<WriteModel<BsonDocument>> writes = new ArrayList<WriteModel<BsonDocument>>();
+        for (BsonDocument document : batch) {
+            BsonValue id = document.get("_id");
+            writes.add(id == null
+                ? new InsertOneModel<BsonDocument>(document)
+                : new ReplaceOneModel<BsonDocument>(Filters.eq("_id", id), document, new ReplaceOptions().upsert(true)));
+        }
+
+        MongoCollection<BsonDocument> collection = database.getCollection(collectionName, BsonDocument.class);
+        try {
+            collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            writtenCount.addAndGet(batch.size());
+        } catch (MongoBulkWriteException e) {
+            writtenCount.addAndGet(batch.size() - e.getWriteErrors().size());
+            rejectedCount.addAndGet(e.getWriteErrors().size());
+            writeError = e;
+            logger.warning(e.getWriteErrors().size() + " documents could not be written into the collection \"" + collectionName
+                + "\": " + e.getWriteErrors().get(0).getMessage());
+        } catch (IllegalArgumentException e) {
+            // Field names are validated before sending, so a single invalid document rejects the whole batch
+            if (batch.size() > 1) {
+                batch.forEach(document -> write(collectionName, List.of(document)));
+                return;
+            }
+            rejectedCount.incrementAndGet();
+            writeError = new MongoException("Invalid document " + batch.get(0).get("_id"), e);
+            logger.warning("A document could not be written into the collection \"" + collectionName + "\": " + e.getMessage());
+        }
+    }
+
+}
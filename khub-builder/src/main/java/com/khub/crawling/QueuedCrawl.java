@@ -0,0 +1,118 @@
+package com.khub.crawling;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+
+class QueuedCrawl {
+
+    private static final Logger logger = Logger.getLogger(QueuedCrawl.class.getName());
+
+    // Leases of claimed tasks, renewed while the tasks are crawled
+    private static final Duration LEASE = Duration.ofMinutes(2);
+    private static final long HEARTBEAT_SECONDS = 30;
+
+    // Pause before polling again for new tasks
+    private static final long POLL_MILLIS = 1000;
+
+    private final AbstractCrawler crawler;
+    private final WorkQueue queue;
+
+    QueuedCrawl(AbstractCrawler crawler, WorkQueue queue) {
+        this.crawler = crawler;
+        this.queue = queue;
+    }
+
+    /**
+     * Crawls tasks claimed from the {@link WorkQueue} shared with other builder instances
+     * until all tasks of the crawler are done. Tasks are claimed one at a time and leased, their
+     * leases are renewed while crawling, so that tasks of a stopped instance are claimed again after
+     * their leases expired. A task is done once its documents are written and is returned to the
+     * queue, if any of its own requests failed. Documents are merged, since tasks may be repeated
+     * @param database - the {@link MongoDatabase} to write data to
+     * @param batchSize - the count of documents written at once
+     * @return true, if no task of the crawler failed, false otherwise
+     */
+    boolean run(MongoDatabase database, int batchSize) {
+        String crawlerKey = crawler.getClass().getSimpleName();
+        MongoSink sink = new MongoSink(database, batchSize, true);
+        CrawlSink projectedSink = crawler.project(sink);
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+        logger.info("Crawling tasks of the work queue as \"" + queue.getWorkerId() + "\"");
+
+        try {
+            queue.enqueue(crawlerKey, AbstractCrawler.PLAN_TASK, Map.of(AbstractCrawler.PLAN_TASK, new BsonDocument()));
+
+            BsonDocument task;
+            while ((task = queue.claim(crawlerKey, LEASE)) != null || !queue.isDrained(crawlerKey)) {
+                if (task == null) {
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+
+                // Each task is completed or released on its own outcome, so a failing task is not repeated with others
+                List<String> ids = List.of(task.getString("_id").getValue());
+                String type = task.getString("type").getValue();
+                ScheduledFuture<?> renewal = heartbeat.scheduleWithFixedDelay(() -> renewLeases(ids),
+                    HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                int previousFailedCount = crawler.getFailedCount();
+                long previousRejectedCount = sink.getRejectedCount();
+                try {
+                    crawler.crawlTasks(type, List.of(task.getDocument("payload")), projectedSink);
+                    sink.flush();
+                    if (sink.getRejectedCount() != previousRejectedCount) crawler.countFailure();
+                } catch (RuntimeException e) {
+                    crawler.countFailure();
+                    logger.warning("Unable to crawl the task " + ids + ": " + e.getMessage());
+                } finally {
+                    renewal.cancel(false);
+                }
+
+                if (crawler.getFailedCount() == previousFailedCount) {
+                    queue.complete(ids);
+                } else {
+                    queue.release(ids);
+                }
+            }
+
+            long failedTasks = queue.getFailedCount(crawlerKey);
+            if (failedTasks != 0) logger.warning(failedTasks + " tasks failed after " + WorkQueue.MAX_ATTEMPTS + " attempts");
+            logger.info(sink.getWrittenCount() + " documents were successfully written into the database \"" + database.getName() + "\"");
+            return failedTasks == 0;
+
+        } catch (MongoException e) {
+            logger.severe("Unable to crawl tasks of the work queue in the database \"" + database.getName() + "\"");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            heartbeat.shutdown();
+        }
+    }
+
+    /**
+     * Renews the leases of the given tasks
+     * @param ids - the ids of the claimed tasks
+     */
+    private void renewLeases(List<String> ids) {
+        try {
+            if (queue.renew(ids, LEASE) < ids.size()) {
+                logger.warning("Leases of the tasks " + ids + " expired before they were renewed");
+            }
+        } catch (MongoException e) {
+            logger.warning("Unable to renew the leases of the tasks " + ids + ", retrying with the next heartbeat");
+        }
+    }
+
+}
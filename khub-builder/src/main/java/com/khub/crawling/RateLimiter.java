@@ -0,0 +1,166 @@
+package com.khub.crawling;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiter {
+
+    private static final double MIN_RATE = 0.1;
+
+    // Fraction of the initial rate added after each successful request
+    private static final double INCREASE_FACTOR = 0.05;
+
+    // Factor applied to the rate after a throttled request
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final double initialRate;
+
+    // Requests per second and the upper bound the rate may grow to
+    private double rate;
+    private double maxRate;
+
+    // Token bucket, tokens become negative for reserved requests waiting for their turn
+    private final double capacity;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    // Time until which no request may be sent, e.g. as requested by Retry-After
+    private long pausedUntil = lastRefill;
+
+    public RateLimiter(double requestRate) {
+        this.initialRate = Math.max(MIN_RATE, requestRate);
+        this.rate = initialRate;
+        this.maxRate = 4 * initialRate;
+        this.capacity = Math.max(1, initialRate);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Reserves a token for a single request
+     * @return the {@link CompletableFuture} completed as soon as the request may be sent
+     */
+    public CompletableFuture<Void> acquire() {
+        long delay = reserve();
+        if (delay <= 0) return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Adapts the rate to the rate limit headers of a successful response and slowly
+     * increases the rate, as long as the server does not throttle requests
+     * @param headers - the {@link HttpHeaders} of the response
+     */
+    public synchronized void onSuccess(HttpHeaders headers) {
+        // Confluence Cloud reports its token bucket with fill rate per interval
+        Optional<Double> fillRate = parseNumber(headers, "X-RateLimit-FillRate");
+        Optional<Double> interval = parseNumber(headers, "X-RateLimit-Interval-Seconds");
+        if (fillRate.isPresent() && interval.isPresent() && interval.get() > 0) {
+            maxRate = Math.max(MIN_RATE, fillRate.get() / interval.get());
+        }
+
+        // Graph and other APIs report the remaining quota until the window is reset
+        Optional<Double> remaining = parseNumber(headers, "RateLimit-Remaining")
+            .or(() -> parseNumber(headers, "X-RateLimit-Remaining"));
+        Optional<Double> reset = parseNumber(headers, "RateLimit-Reset");
+        if (remaining.isPresent() && reset.isPresent() && reset.get() > 0) {
+            double sustainableRate = remaining.get() / reset.get();
+            if (sustainableRate < rate) rate = Math.max(MIN_RATE, sustainableRate);
+            if (remaining.get() < 1) pause(Duration.ofMillis((long) (reset.get() * 1000)));
+            return;
+        }
+
+        rate = Math.min(maxRate, rate + INCREASE_FACTOR * initialRate);
+    }
+
+    /**
+     * Reduces the rate after a throttled request and pauses all
+     * requests for the duration requested by the server
+     * @param retryAfter - the requested pause or null, if not provided
+     */
+    public synchronized void onThrottled(Duration retryAfter) {
+        rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+        if (retryAfter != null) pause(retryAfter);
+    }
+
+    /**
+     * Returns the current rate
+     * @return the current rate in requests per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Parses the {@code Retry-After} header given either in seconds or as {@code HTTP} date
+     * @param headers - the {@link HttpHeaders} of the response
+     * @return the requested pause or null, if not provided
+     */
+    public static Duration parseRetryAfter(HttpHeaders headers) {
+        return parseRetryAfter(headers.firstValue("Retry-After").orElse(null));
+    }
+
+    /**
+     * Parses the value of a {@code Retry-After} header given either in seconds or as {@code HTTP} date
+     * @param retryAfter - the header value or null, if not provided
+     * @return the requested pause or null, if not provided
+     */
+    public static Duration parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) return null;
+
+        try {
+            return Duration.ofMillis((long) (Double.parseDouble(retryAfter.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                Duration pause = Duration.between(Instant.now(), date.toInstant());
+                return pause.isNegative() ? Duration.ZERO : pause;
+            } catch (DateTimeParseException ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Takes a token from the bucket
+     * @return the time in nanoseconds to wait until the token is available
+     */
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+        tokens -= 1;
+
+        long delay = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        return Math.max(delay, pausedUntil - now);
+    }
+
+    /**
+     * Pauses all requests for the given duration
+     * @param duration - the {@link Duration} of the pause
+     */
+    private void pause(Duration duration) {
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + duration.toNanos());
+    }
+
+    /**
+     * Parses the numeric header with the given name
+     * @param headers - the {@link HttpHeaders} of the response
+     * @param name - the header name
+     * @return the header value, if present and numeric
+     */
+    private static Optional<Double> parseNumber(HttpHeaders headers, String name) {
+        try {
+            return headers.firstValue(name).map(value -> Double.parseDouble(value.trim()));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+}
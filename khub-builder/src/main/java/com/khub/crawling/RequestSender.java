@@ -0,0 +1,181 @@
+package com.khub.crawling;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.khub.common.HttpTransport;
+
+class RequestSender {
+
+    private static final Logger logger = Logger.getLogger(RequestSender.class.getName());
+
+    // Retries of throttled or failed requests
+    static final int MAX_RETRIES = 5;
+    private static final long BACKOFF_MILLIS = 500;
+
+    private final HttpTransport transport;
+    private final CrawlMetrics metrics;
+
+    // Bounds the number of requests in flight for a source
+    private final ConcurrencyLimiter limiter;
+
+    // Adaptive rate limiters per host starting with the initial request rate
+    private final Map<String, RateLimiter> rateLimiters = new ConcurrentHashMap<String, RateLimiter>();
+    private final double requestRate;
+
+    RequestSender(HttpTransport transport, CrawlMetrics metrics, int concurrency, double requestRate) {
+        this.transport = transport;
+        this.metrics = metrics;
+        this.limiter = new ConcurrencyLimiter(concurrency);
+        this.requestRate = requestRate;
+    }
+
+    /**
+     * Asynchronously sends the given request as soon as the rate limit of its host allows.
+     * Throttled requests and failed connections are retried after the pause requested by the
+     * server with {@code Retry-After} or, if not provided, after an exponential backoff with jitter
+     * @param request - the {@link HttpRequest}
+     * @return the {@link CompletableFuture} with the {@link HttpResponse}
+     */
+    CompletableFuture<HttpResponse<byte[]>> send(HttpRequest request) {
+        return send(request, sentRequest -> {
+            long startTime = System.nanoTime();
+            return transport.sendAsync(sentRequest,
+                responseInfo -> metrics.onHeaders(sentRequest.uri(), System.nanoTime() - startTime),
+                receivedBytes -> metrics.onReceived(sentRequest.uri(), receivedBytes));
+        }, 0);
+    }
+
+    /**
+     * Asynchronously sends the given request like {@link #send(HttpRequest)} with the given sender,
+     * e.g. writing the response body to a file
+     * @param <T> - the type of the response body
+     * @param request - the {@link HttpRequest}
+     * @param sender - the {@link Function} sending the request with the {@link HttpTransport}
+     * @return the {@link CompletableFuture} with the {@link HttpResponse}
+     */
+    <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, Function<HttpRequest, CompletableFuture<HttpResponse<T>>> sender) {
+        return send(request, sender, 0);
+    }
+
+    /**
+     * Asynchronously sends the given request for the given attempt
+     * @param <T> - the type of the response body
+     * @param request - the {@link HttpRequest}
+     * @param sender - the {@link Function} sending the request with the {@link HttpTransport}
+     * @param attempt - the number of previous attempts
+     * @return the {@link CompletableFuture} with the {@link HttpResponse}
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request,
+            Function<HttpRequest, CompletableFuture<HttpResponse<T>>> sender, int attempt) {
+        RateLimiter rateLimiter = getRateLimiter(request.uri().getHost());
+        long queuedTime = System.nanoTime();
+
+        return rateLimiter.acquire()
+            .thenCompose(ignored -> limiter.submit(() -> {
+                long startTime = System.nanoTime();
+                metrics.onRequestStart(request.uri(), startTime - queuedTime);
+                return sender.apply(request).whenComplete((response, exception) -> {
+                    if (exception == null) {
+                        metrics.onResponse(request.uri(), response.statusCode(), System.nanoTime() - startTime, getBodySize(response));
+                    } else {
+                        metrics.onError(request.uri(), System.nanoTime() - startTime);
+                    }
+                });
+            }))
+            .handle((response, exception) -> {
+                if (exception == null && !isThrottled(response.statusCode())) {
+                    rateLimiter.onSuccess(response.headers());
+                    return CompletableFuture.completedFuture(response);
+                }
+
+                Throwable cause = AbstractCrawler.unwrap(exception);
+                boolean retryable = exception == null || cause instanceof IOException;
+                if (!retryable || attempt >= MAX_RETRIES) {
+                    return exception == null
+                        ? CompletableFuture.completedFuture(response)
+                        : CompletableFuture.<HttpResponse<T>>failedFuture(cause);
+                }
+
+                // The rate limiter pauses all requests to the host for the requested duration
+                Duration retryAfter = exception == null ? RateLimiter.parseRetryAfter(response.headers()) : null;
+                if (exception == null) rateLimiter.onThrottled(retryAfter);
+
+                long backoff = retryAfter != null ? 0 : getBackoff(attempt);
+                long delay = retryAfter != null ? retryAfter.toMillis() : backoff;
+                logger.info("Retrying request \"" + request.uri() + "\" in " + delay + " ms");
+                metrics.onRetry(request.uri());
+                return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> send(request, sender, attempt + 1));
+            })
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Returns the size of the body of the given response, i.e. of the decoded
+     * body held in memory or of the file the body was written to
+     * @param response - the {@link HttpResponse}
+     * @return the count of body bytes
+     */
+    static long getBodySize(HttpResponse<?> response) {
+        Object body = response.body();
+        if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        }
+        try {
+            return body instanceof Path && Files.exists((Path) body) ? Files.size((Path) body) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reduces the request rate to the given host and pauses its requests
+     * for the given duration, e.g. after a throttled sub-request of a batch
+     * @param host - the host of the throttled request
+     * @param retryAfter - the requested pause or null, if not provided
+     */
+    void onThrottled(String host, Duration retryAfter) {
+        getRateLimiter(host).onThrottled(retryAfter);
+    }
+
+    /**
+     * Returns the {@link RateLimiter} of the given host
+     * @param host - the request host
+     * @return the {@link RateLimiter}
+     */
+    private RateLimiter getRateLimiter(String host) {
+        return rateLimiters.computeIfAbsent(host, key -> new RateLimiter(requestRate));
+    }
+
+    /**
+     * Checks if the status code indicates a throttled request
+     * @param statusCode - the {@code HTTP} status code
+     * @return true, if the request was throttled
+     */
+    private boolean isThrottled(int statusCode) {
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    /**
+     * Returns the exponential backoff with jitter for the given attempt
+     * @param attempt - the number of previous attempts
+     * @return the backoff in milliseconds
+     */
+    static long getBackoff(int attempt) {
+        long backoff = BACKOFF_MILLIS << attempt;
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+}
@@ -1,178 +1,429 @@
 package com.khub.crawling;
 
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
+import java.io.InputStream;
 import java.net.URL;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
-
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
 import com.khub.common.AuthenticationHeader;
-import com.khub.common.HttpRequestBuilder;
+import com.khub.common.StreamingBsonParser;
+import com.mongodb.client.model.Filters;
 
 public class TeamsCrawler extends AbstractCrawler {
 
     public final String teamId = "teamId";
+    public final String channelId = "channelId";
+    public final String postId = "postId";
+
+    // Types of the tasks shared by several builder instances
+    private static final String TEAM_TASK = "team";
+    private static final String CHANNEL_TASK = "channel";
+
+    // Names of the tasks crawled for each parent, recorded with failed requests
+    private static final String CHANNELS_TASK_NAME = "MS Teams channels";
+    private static final String POSTS_TASK_NAME = "MS Teams posts";
+    private static final String REPLIES_TASK_NAME = "MS Teams replies";
+
+    // Selectable channel properties, the channel listing is the only crawled Graph listing supporting $select
+    private static final List<String> CHANNEL_PROPERTIES = List.of("id", "displayName", "description", "email",
+        "webUrl", "membershipType", "createdDateTime", "isFavoriteByDefault", "tenantId");
+
+    // Cached sub-response bodies are written as plain JSON, which is parsed again like other response bodies
+    private static final JsonWriterSettings RELAXED_JSON = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
 
-    public TeamsCrawler(URL teamsEndpoint, AuthenticationHeader requestHeader) {
-        super(teamsEndpoint, requestHeader);
+    // Combines requests into Graph batch requests
+    private final GraphBatcher batcher;
+
+    public TeamsCrawler(URL teamsEndpoint, AuthenticationHeader requestHeader, int concurrency, double requestRate,
+            CrawlContext context) {
+        super(teamsEndpoint, requestHeader, concurrency, requestRate, context);
+        this.batcher = new GraphBatcher(teamsEndpoint + "v1.0",
+            body -> post(teamsEndpoint + "v1.0/$batch", body),
+            retryAfter -> onThrottled(teamsEndpoint.getHost(), retryAfter));
     }
 
     /**
-     * Starts the {@link TeamsCrawler} and returns retrieved data as
-     * Lists of {@link JsonElement}s mapped to the corresponding data labels.
-     * {@code Teams} data includes teams, channels and posts
-     * @return the retrieved {@code Teams} data
+     * Starts the {@link TeamsCrawler} and passes retrieved data as {@link BsonDocument}s
+     * to the given {@link CrawlSink} as soon as it arrives, labelled with collection names.
+     * {@code Teams} data includes teams, channels, posts and their replies. Requests are
+     * combined into {@code $batch} requests of up to 20 requests each. An incremental crawl
+     * retrieves only posts changed since the high-water mark of their channel and their replies.
+     * Files shared in posts and replies are downloaded, if attachments are crawled
+     * @param sink - the {@link CrawlSink} for the retrieved {@code Teams} data
      */
-    public Map<String, List<JsonElement>> run() {
+    public void run(CrawlSink sink) {
+
+        List<BsonDocument> teams = retrieveTeams(sink);
+        List<BsonDocument> channels = retrieveChannels(teams, sink);
+        List<BsonDocument> posts = retrievePosts(channels, sink);
+        retrieveReplies(posts, sink);
+    }
 
-        List<JsonElement> teams = retrieveTeams();
-        List<JsonElement> channels = retrieveChannels(teams);
-        List<JsonElement> posts = retrievePosts(channels);
+    /**
+     * Crawls the given {@code Teams} tasks claimed from the {@link WorkQueue}. The planning task
+     * retrieves the teams and enqueues a task per team, which retrieves the channels of the team
+     * and enqueues a task per channel, which in turn retrieves the posts and replies of the channel
+     * @param type - the task type
+     * @param tasks - the {@link List} of task payloads
+     * @param sink - the {@link CrawlSink} for the retrieved {@code Teams} data
+     */
+    @Override
+    protected void crawlTasks(String type, List<BsonDocument> tasks, CrawlSink sink) {
+        switch (type) {
 
-        return Map.of("teams", teams, "channels", channels, "posts", posts);
+            case PLAN_TASK:
+                List<BsonDocument> teams = new ArrayList<BsonDocument>();
+                for (BsonDocument team : retrieveTeams(sink)) {
+                    teams.add(new BsonDocument("_id", team.get("_id")));
+                }
+                enqueue(TEAM_TASK, teams);
+                break;
+
+            case TEAM_TASK:
+                List<BsonDocument> channels = new ArrayList<BsonDocument>();
+                for (BsonDocument channel : retrieveChannels(tasks, sink)) {
+                    channels.add(new BsonDocument("_id", channel.get("_id")).append(this.teamId, channel.get(this.teamId)));
+                }
+                enqueue(CHANNEL_TASK, channels);
+                break;
+
+            case CHANNEL_TASK:
+                List<BsonDocument> posts = retrievePosts(tasks, sink);
+                retrieveReplies(posts, sink);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown task type \"" + type + "\"");
+        }
     }
 
     /**
-     * Retrieves all {@code Teams} teams joined by the request as {@link JsonElement}s
+     * Crawls the given {@code Teams} task again for the given parents, i.e. the channels of teams,
+     * the posts of channels or the replies of posts, and all further tasks for their children
+     * @param taskName - the name of the failed task
+     * @param parents - the {@link List} of parent {@link BsonDocument}s the task failed for
+     * @param sink - the {@link CrawlSink} for the retrieved {@code Teams} data
+     */
+    @Override
+    protected void recrawl(String taskName, List<BsonDocument> parents, CrawlSink sink) {
+        switch (taskName) {
+
+            case CHANNELS_TASK_NAME:
+                List<BsonDocument> channels = retrieveChannels(parents, sink);
+                retrieveReplies(retrievePosts(channels, sink), sink);
+                break;
+
+            case POSTS_TASK_NAME:
+                retrieveReplies(retrievePosts(parents, sink), sink);
+                break;
+
+            case REPLIES_TASK_NAME:
+                retrieveReplies(parents, sink);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown task \"" + taskName + "\"");
+        }
+    }
+
+    /**
+     * Retrieves all {@code Teams} teams joined by the request as {@link BsonDocument}s
+     * @param sink - the {@link CrawlSink} for the retrieved teams
      * @return the list of {@code Teams} teams
      */
-    private List<JsonElement> retrieveTeams() {
+    private List<BsonDocument> retrieveTeams(CrawlSink sink) {
         String taskName = "MS Teams teams";
         logOnTaskStart(taskName);
 
         String requestUrl = this.endpoint + "v1.0/me/joinedTeams";
-        List<JsonElement> teams = retrieve(requestUrl);
+        List<BsonDocument> teams = retrieve(requestUrl);
+        teams.forEach(team -> sink.accept("teams", team));
 
-        logOnTaskFinish(taskName, teams);
+        logOnTaskFinish(taskName, teams.size());
         return teams;
     }
 
     /**
-     * Retrieves all {@code Teams} channels as {@link JsonElement}s
+     * Retrieves all {@code Teams} channels as {@link BsonDocument}s
      * for the given list of {@code Teams} teams
      * @param teams - the list of {@code Teams} teams
+     * @param sink - the {@link CrawlSink} for the retrieved channels
      * @return the list of {@code Teams} channels
      */
-    private List<JsonElement> retrieveChannels(List<JsonElement> teams) {
-        List<JsonElement> channels = new ArrayList<JsonElement>();
-        String taskName = "MS Teams channels";
+    private List<BsonDocument> retrieveChannels(List<BsonDocument> teams, CrawlSink sink) {
+        List<BsonDocument> channels = Collections.synchronizedList(new ArrayList<BsonDocument>());
+        String taskName = CHANNELS_TASK_NAME;
         logOnTaskStart(taskName);
 
-        teams.parallelStream().forEach(team -> {
-            if (team.isJsonObject()) {
-                JsonObject teamObject = team.getAsJsonObject();
-                try {
-                    String teamKey = teamObject.get("id").getAsString();
-                    String requestUrl = this.endpoint + "v1.0/teams/" + teamKey + "/channels";
-
-                    List<JsonElement> result = retrieve(requestUrl);
-                    for (JsonElement channel : result) {
-                        // Inject the correct first ancestor
-                        channel.getAsJsonObject().addProperty(this.teamId, teamKey);
-                        channels.add(channel);
-                    }
-                    logOnSuccess(taskName, teams, team, result);
+        crawlEach(taskName, "id", teams, teamObject -> {
+            String teamKey = teamObject.getString("_id").getValue();
+            String requestUrl = this.endpoint + "v1.0/teams/" + teamKey + "/channels" + getChannelSelection();
 
-                } catch (Exception e) {
-                    logger.warning("Unable to crawl " + taskName + " for team id \"" + teamObject.get("id") + "\"");
+            // Channels written before an interruption are replayed to crawl their posts
+            return streamAsync(requestUrl, "channels:" + teamKey, "channels", Filters.eq(this.teamId, teamKey), result -> {
+                for (BsonDocument channel : result) {
+                    // Inject the correct first ancestor
+                    channel.put(this.teamId, new BsonString(teamKey));
+                    sink.accept("channels", channel);
+                    channels.add(channel);
                 }
-            }
+            });
         });
 
-        logOnTaskFinish(taskName, channels);
-        return channels;
+        logOnTaskFinish(taskName, channels.size());
+        return distinctById(channels);
     }
 
     /**
-     * Retrieves all {@code Teams} posts as {@link JsonElement}s
-     * for the given list of {@code Teams} channels
+     * Retrieves all {@code Teams} posts as {@link BsonDocument}s for the given list of {@code Teams} channels.
+     * Posts of channels with a high-water mark are retrieved with the {@code messages/delta} query
      * @param channels - the list of {@code Teams} channels
-     * @return the list of {@code Teams} posts
+     * @param sink - the {@link CrawlSink} for the retrieved posts
+     * @return the list of ids of {@code Teams} posts with their team and channel ids
      */
-    private List<JsonElement> retrievePosts(List<JsonElement> channels) {
-        List<JsonElement> posts = new ArrayList<JsonElement>();
-        String taskName = "MS Teams posts";
+    private List<BsonDocument> retrievePosts(List<BsonDocument> channels, CrawlSink sink) {
+        List<BsonDocument> posts = Collections.synchronizedList(new ArrayList<BsonDocument>());
+        String taskName = POSTS_TASK_NAME;
         logOnTaskStart(taskName);
 
-        channels.parallelStream().forEach(channel -> {
-            if (channel.isJsonObject()) {
-                JsonObject channelObject = channel.getAsJsonObject();
-                try {
-                    String teamKey = channelObject.get(this.teamId).getAsString();
-                    String channelKey = channelObject.get("id").getAsString();
-                    String requestUrl = this.endpoint + "v1.0/teams/" + teamKey + "/channels/" 
-                        + channelKey + "/messages?top=100";
-
-                    List<JsonElement> result = retrieve(requestUrl);
-                    for (JsonElement post : result) {
-                        if (post.getAsJsonObject().get("messageType").getAsString().equals("message")) {
-                            posts.add(post);
-                        }
-                    }
-                    logOnSuccess(taskName, channels, channel, result);
+        crawlEach(taskName, "id", channels, channelObject -> {
+            String teamKey = channelObject.getString(this.teamId).getValue();
+            String channelKey = channelObject.getString("_id").getValue();
+            Instant watermark = isIncremental() ? watermarks.getChannelWatermark(channelKey) : null;
+
+            String requestUrl = this.endpoint + "v1.0/teams/" + teamKey + "/channels/" + channelKey;
+            requestUrl += watermark == null
+                ? "/messages?top=100"
+                : "/messages/delta?$filter=" + URLEncoder.encode("lastModifiedDateTime gt " + watermark, StandardCharsets.UTF_8);
 
-                } catch (Exception e) {
-                    logger.warning("Unable to crawl " + taskName + " for channel id " + channelObject.get("id") + " and team id " + channelObject.get(this.teamId) + "");
+            // Posts written before an interruption are replayed to crawl their replies
+            Bson postsFilter = Filters.and(Filters.eq("channelIdentity.channelId", channelKey), Filters.exists(this.postId, false));
+            List<CompletableFuture<Void>> downloads = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+            return streamAsync(requestUrl, "posts:" + channelKey, "posts", postsFilter, result -> {
+                for (BsonDocument post : result) {
+                    if (post.getString("messageType", new BsonString("")).getValue().equals("message")) {
+                        downloads.add(acceptPost(post, sink));
+                        posts.add(new BsonDocument("_id", post.get("_id"))
+                            .append(this.teamId, new BsonString(teamKey))
+                            .append(this.channelId, new BsonString(channelKey)));
+                    }
                 }
-            }
+            }, downloads);
         });
 
-        logOnTaskFinish(taskName, posts);
-        return posts;
+        logOnTaskFinish(taskName, posts.size());
+        return distinctById(posts);
     }
 
     /**
-     * Retrieves data from {@code Teams} API by for the given request
-     * and returns an empty collection if request failed or no data received.
-     * The number of responses per request is limited to 20 and each response
-     * contains {@code @odata.nextLink} with the next response portion
-     * @param requestUrl - the request {@code URL}
-     * @return the response
+     * Retrieves all replies as {@link BsonDocument}s for the given list of {@code Teams} posts.
+     * Replies are stored as posts with the id of the replied post as first ancestor
+     * @param posts - the list of ids of {@code Teams} posts
+     * @param sink - the {@link CrawlSink} for the retrieved replies
      */
-    private List<JsonElement> retrieve(String requestUrl) {
-        JsonArray jsonArray = new JsonArray();
-        try {
-            do {
-                HttpRequest request = HttpRequestBuilder.build(requestUrl, requestHeader.toNameValuePair());
-                HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
-
-                JsonObject jsonObject = JsonParser.parseString(response.body()).getAsJsonObject();
-
-                if (jsonObject.get("value") != null) {
-                    JsonArray values = jsonObject.getAsJsonArray("value");
-                    jsonArray.addAll(values);
+    private void retrieveReplies(List<BsonDocument> posts, CrawlSink sink) {
+        AtomicInteger repliesCount = new AtomicInteger();
+        String taskName = REPLIES_TASK_NAME;
+        logOnTaskStart(taskName);
+
+        crawlEach(taskName, "id", posts, postObject -> {
+            String postKey = postObject.getString("_id").getValue();
+            String requestUrl = this.endpoint + "v1.0/teams/" + postObject.getString(this.teamId).getValue()
+                + "/channels/" + postObject.getString(this.channelId).getValue()
+                + "/messages/" + postKey + "/replies?top=50";
+
+            List<CompletableFuture<Void>> downloads = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+            return streamAsync(requestUrl, "replies:" + postKey, null, null, result -> {
+                for (BsonDocument reply : result) {
+                    if (reply.getString("messageType", new BsonString("")).getValue().equals("message")) {
+                        // Inject the correct first ancestor
+                        reply.put(this.postId, new BsonString(postKey));
+                        downloads.add(acceptPost(reply, sink));
+                        repliesCount.incrementAndGet();
+                    }
                 }
-                else {
-                    jsonArray.add(jsonObject);
+            }, downloads);
+        });
+
+        logOnTaskFinish(taskName, repliesCount.get());
+    }
+
+    /**
+     * Returns the {@code $select} query of the channel properties needed by processing,
+     * if a {@link FieldProjection} is provided. Messages cannot be selected in {@code Graph},
+     * their unused fields are only dropped before they are stored
+     * @return the {@code $select} query or an empty string, if all properties are requested
+     */
+    private String getChannelSelection() {
+        if (projection == null) {
+            return "";
+        }
+
+        List<String> properties = new ArrayList<String>();
+        for (String property : CHANNEL_PROPERTIES) {
+            if (property.equals("id") || projection.requires(StreamingBsonParser.toFieldName(property))) {
+                properties.add(property);
+            }
+        }
+        return "?$select=" + String.join(",", properties);
+    }
+
+    /**
+     * Returns the fields of {@code Teams} documents needed to resume a crawl from the stored
+     * channels and posts, to relate replies to their posts and to compute the high-water marks of channels
+     * @param collectionName - the name of the collection
+     * @return the {@link List} of dotted field paths
+     */
+    @Override
+    protected List<String> getRequiredFields(String collectionName) {
+        switch (collectionName) {
+            case "channels":
+                return List.of(this.teamId);
+            case "posts":
+                return List.of(this.postId, "channelIdentity.channelId", "lastModifiedDateTime", "messageType", "replyToId", "attachments");
+            default:
+                return List.of();
+        }
+    }
+
+    /**
+     * Passes the given post or reply to the {@link CrawlSink} after downloading its referenced files,
+     * if attachments are crawled. Files shared in a message are attachments of the {@code reference}
+     * content type, whose {@code contentUrl} is resolved with the {@code shares} endpoint. Each
+     * downloaded attachment gets its stored {@code file}, a message with a failed download is
+     * passed nevertheless
+     * @param post - the post or reply as {@link BsonDocument}
+     * @param sink - the {@link CrawlSink} for the post
+     * @return the {@link CompletableFuture} completed after passing the post,
+     *         completed exceptionally if a file could not be downloaded
+     */
+    private CompletableFuture<Void> acceptPost(BsonDocument post, CrawlSink sink) {
+        List<BsonDocument> references = new ArrayList<BsonDocument>();
+        if (attachments != null) {
+            for (BsonDocument attachment : toDocuments(post.getArray("attachments", new BsonArray()))) {
+                if (attachment.getString("contentType", new BsonString("")).getValue().equals("reference")
+                        && attachment.isString("contentUrl")) {
+                    references.add(attachment);
                 }
+            }
+        }
 
-                JsonElement nextRequestUrl = jsonObject.get("@odata.nextLink");
-                requestUrl = nextRequestUrl != null ? nextRequestUrl.getAsString() : null;
-            } while (requestUrl != null);
+        if (references.isEmpty()) {
+            sink.accept("posts", post);
+            return CompletableFuture.completedFuture(null);
+        }
 
-            return jsonArray.asList();
+        return downloadAll(references, attachment -> getShareContentUrl(attachment.getString("contentUrl").getValue()))
+            .whenComplete((ignored, exception) -> sink.accept("posts", post));
+    }
 
-        } catch (InterruptedException | IllegalArgumentException | IOException  | SecurityException  e) {
-            logger.warning("Unable to send a request and/or receive a response for request \"" + requestUrl + "\"");
+    /**
+     * Returns the {@code URL} of the content of the drive item shared under the given {@code URL}
+     * @param sharingUrl - the sharing {@code URL}
+     * @return the content {@code URL}
+     */
+    private String getShareContentUrl(String sharingUrl) {
+        String shareId = Base64.getUrlEncoder().withoutPadding().encodeToString(sharingUrl.getBytes(StandardCharsets.UTF_8));
+        return this.endpoint + "v1.0/shares/u!" + shareId + "/driveItem/content";
+    }
 
-        } catch (NullPointerException | JsonParseException | ClassCastException | IllegalStateException  e) {
-            logger.warning("Retrieved malformed JSON format for request \"" + requestUrl + "\"");
-        
-        } catch (URISyntaxException e) {
-            // Do nothing
+    /**
+     * Retrieves a single response page as sub-request of a {@code $batch} request, which is
+     * conditional on the cached response, if caching is enabled. Bodies of sub-responses with
+     * validators are cached and sub-responses with {@code 304 Not Modified} are served from the cache
+     * @param requestUrl - the request {@code URL} of the page
+     * @return the {@link CompletableFuture} with the response page
+     */
+    @Override
+    protected CompletableFuture<BsonDocument> fetch(String requestUrl) {
+        return cache != null ? fetch(requestUrl, true) : batcher.submit(requestUrl);
+    }
+
+    /**
+     * Retrieves a single response page as cached sub-request of a {@code $batch} request. A sub-request
+     * confirmed by {@code 304 Not Modified}, whose cached body was evicted meanwhile, is sent again unconditionally
+     * @param requestUrl - the request {@code URL} of the page
+     * @param conditional - true, if the sub-request should be conditional on the cached response
+     * @return the {@link CompletableFuture} with the response page
+     */
+    private CompletableFuture<BsonDocument> fetch(String requestUrl, boolean conditional) {
+        BsonDocument headers = new BsonDocument();
+        if (conditional) {
+            String[] validators = cache.getConditionalHeaders(requestUrl);
+            for (int i = 0; i + 1 < validators.length; i += 2) {
+                headers.append(validators[i], new BsonString(validators[i + 1]));
+            }
+        }
+
+        return batcher.submit(requestUrl, headers).thenCompose(response -> {
+            int status = response.getNumber("status").intValue();
+            BsonDocument responseHeaders = response.getDocument("headers", new BsonDocument());
+            BsonDocument body = response.getDocument("body", new BsonDocument());
+            byte[] bytes = status == 304 ? null : body.toJson(RELAXED_JSON).getBytes(StandardCharsets.UTF_8);
+
+            try (InputStream cached = cache.resolve(requestUrl, status, getHeader(responseHeaders, "ETag"),
+                    getHeader(responseHeaders, "Last-Modified"), bytes)) {
+                if (cached == null) {
+                    return fetch(requestUrl, false);
+                }
+                return CompletableFuture.completedFuture(status == 304 ? StreamingBsonParser.parse(cached) : body);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Returns the value of a sub-response header, whose name is matched case-insensitively
+     * @param headers - the headers of the sub-response
+     * @param name - the header name
+     * @return the header value or null, if missing
+     */
+    private static String getHeader(BsonDocument headers, String name) {
+        for (String key : headers.keySet()) {
+            if (key.equalsIgnoreCase(name) && headers.isString(key)) {
+                return headers.getString(key).getValue();
+            }
         }
+        return null;
+    }
+
+    /**
+     * Returns the entries of a {@code Teams} response page. The number of responses
+     * per request is limited to 20 and each response contains {@code @odata.nextLink}
+     * with the next response portion, stored as {@code odatanextLink}
+     * @param response - the response page as {@link BsonDocument}
+     * @return the {@link List} of response entries
+     */
+    @Override
+    protected List<BsonDocument> getResults(BsonDocument response) {
+        if (response.isArray("value")) {
+            return toDocuments(response.getArray("value"));
+        }
+
+        return List.of(response);
+    }
 
-        return List.of();
+    @Override
+    protected String getNextRequestUrl(BsonDocument response) {
+        return response.isString("odatanextLink") ? response.getString("odatanextLink").getValue() : null;
     }
 
-}
\ No newline at end of file
+}
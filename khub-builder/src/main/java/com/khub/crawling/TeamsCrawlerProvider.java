@@ -0,0 +1,22 @@
+package com.khub.crawling;
+
+import com.khub.common.Configuration;
+
+public class TeamsCrawlerProvider implements CrawlerProvider {
+
+    @Override
+    public String getName() {
+        return "Teams";
+    }
+
+    @Override
+    public Crawler create(Configuration config, CrawlContext context) {
+        if (config.teamsEndpoint == null || !config.teamsHeader.isValid()) {
+            return null;
+        }
+
+        return new TeamsCrawler(config.teamsEndpoint, config.teamsHeader, config.teamsConcurrency,
+            config.teamsRequestRate, context);
+    }
+
+}
@@ -0,0 +1,230 @@
+package com.khub.crawling;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+import com.khub.common.MongoConnector;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+public class WatermarkStore {
+
+    private static final Logger logger = Logger.getLogger(WatermarkStore.class.getName());
+
+    public static final String COLLECTION_NAME = MongoConnector.INTERNAL_COLLECTION_PREFIX + "watermarks";
+
+    private static final String SPACE_SCOPE = "space:";
+    private static final String CHANNEL_SCOPE = "channel:";
+
+    // Scopes of the high-water marks with crawler key as key
+    private static final Map<String, String> CRAWLER_SCOPES = Map.of(
+        ConfluenceCrawler.class.getSimpleName(), SPACE_SCOPE,
+        TeamsCrawler.class.getSimpleName(), CHANNEL_SCOPE);
+
+    // High-water marks with scoped space or channel id as key
+    private final Map<String, Instant> watermarks;
+
+    private WatermarkStore(Map<String, Instant> watermarks) {
+        this.watermarks = watermarks;
+    }
+
+    /**
+     * Loads the high-water marks persisted in the given {@link MongoDatabase} and computes them
+     * from the crawled collections if none were persisted, e.g. by a crawl before high-water marks.
+     * Persisted marks are used even if empty, since the crawled data might be incomplete then
+     * @param database - the {@link MongoDatabase} of a previous crawl
+     * @return the {@link WatermarkStore}
+     */
+    public static WatermarkStore load(MongoDatabase database) {
+        if (!exists(database)) return compute(database);
+
+        Map<String, Instant> watermarks = new HashMap<String, Instant>();
+        for (Document document : database.getCollection(COLLECTION_NAME).find()) {
+            Instant watermark = parseTimestamp(document.getString("watermark"));
+            if (watermark != null) watermarks.put(document.getString("_id"), watermark);
+        }
+        return new WatermarkStore(watermarks);
+    }
+
+    /**
+     * Computes the high-water marks from the crawled collections of the given {@link MongoDatabase},
+     * i.e. the latest {@code history.lastUpdated.when} of pages and comments per space
+     * and the latest {@code lastModifiedDateTime} of posts per channel
+     * @param database - the {@link MongoDatabase} with crawled data
+     * @return the {@link WatermarkStore}
+     */
+    public static WatermarkStore compute(MongoDatabase database) {
+        Map<String, Instant> watermarks = new HashMap<String, Instant>();
+
+        for (String collectionName : List.of("pages", "comments")) {
+            collectMaximum(database.getCollection(collectionName), "spaceId", "history.lastUpdated.when", SPACE_SCOPE, watermarks);
+        }
+        collectMaximum(database.getCollection("posts"), "channelIdentity.channelId", "lastModifiedDateTime", CHANNEL_SCOPE, watermarks);
+
+        return new WatermarkStore(watermarks);
+    }
+
+    /**
+     * Returns the high-water marks, where the scopes with failed requests keep the marks of the given
+     * previous crawl, since their data is incomplete and is only retrieved again from the previous mark.
+     * The scope of a failed task is the space or channel of its parent. A failed request outside of
+     * a task, e.g. listing the spaces, or an aborted crawler keeps the previous marks of all its scopes
+     * @param previous - the {@link WatermarkStore} of the previous crawl or null, if it was a full crawl
+     * @param failures - the failed requests of the {@link FailedRequestJournal} as {@link BsonDocument}s
+     *                   or null, if failures are unknown, so that all scopes keep their previous marks
+     * @return the {@link WatermarkStore}
+     */
+    public WatermarkStore retainFailed(WatermarkStore previous, List<BsonDocument> failures) {
+        Map<String, Instant> previousWatermarks = previous != null ? previous.watermarks : Map.of();
+        if (failures == null) return new WatermarkStore(new HashMap<String, Instant>(previousWatermarks));
+
+        Map<String, Instant> retained = new HashMap<String, Instant>(watermarks);
+
+        for (BsonDocument failure : failures) {
+            String scope = CRAWLER_SCOPES.get(failure.getString("crawler").getValue());
+            if (scope == null) continue;
+
+            String scopeId = getScopeId(failure);
+            if (scopeId == null) {
+                retained.keySet().removeIf(key -> key.startsWith(scope));
+                previousWatermarks.forEach((key, watermark) -> {
+                    if (key.startsWith(scope)) retained.put(key, watermark);
+                });
+            } else {
+                retained.remove(scope + scopeId);
+                Instant watermark = previousWatermarks.get(scope + scopeId);
+                if (watermark != null) retained.put(scope + scopeId, watermark);
+            }
+        }
+
+        return new WatermarkStore(retained);
+    }
+
+    /**
+     * Saves the high-water marks to the {@code _watermarks} collection of the given {@link MongoDatabase}
+     * @param database - the {@link MongoDatabase} to save high-water marks to
+     * @return true, if the high-water marks were saved, false otherwise
+     */
+    public boolean save(MongoDatabase database) {
+        List<Document> documents = new ArrayList<Document>();
+        watermarks.forEach((key, watermark) -> documents.add(new Document("_id", key).append("watermark", watermark.toString())));
+
+        try {
+            MongoCollection<Document> collection = database.getCollection(COLLECTION_NAME);
+            collection.deleteMany(new Document());
+            if (!documents.isEmpty()) {
+                collection.insertMany(documents);
+            } else if (!exists(database)) {
+                // No high-water marks are still persisted, so that they are not computed from incomplete data
+                database.createCollection(COLLECTION_NAME);
+            }
+
+            logger.info(documents.size() + " high-water marks were saved");
+            return true;
+        } catch (MongoException e) {
+            logger.severe("Unable to save high-water marks to the collection \"" + COLLECTION_NAME + "\"");
+            return false;
+        }
+    }
+
+    /**
+     * Returns the high-water mark for the {@code Confluence} space with the given id
+     * @param spaceId - the space id
+     * @return the high-water mark or null, if the space was not crawled before
+     */
+    public Instant getSpaceWatermark(String spaceId) {
+        return watermarks.get(SPACE_SCOPE + spaceId);
+    }
+
+    /**
+     * Returns the high-water mark for the {@code Teams} channel with the given id
+     * @param channelId - the channel id
+     * @return the high-water mark or null, if the channel was not crawled before
+     */
+    public Instant getChannelWatermark(String channelId) {
+        return watermarks.get(CHANNEL_SCOPE + channelId);
+    }
+
+    /**
+     * Groups the documents of the given {@link MongoCollection} by {@code groupField} and puts the
+     * latest {@code timestampField} value of each group to {@code watermarks}. Timestamps are compared
+     * as parsed instants, since {@code Confluence} returns them with the offset of the server timezone,
+     * so that their text order differs from their time order within a group
+     * @param collection - the {@link MongoCollection} with crawled data
+     * @param groupField - the path of the field to group by
+     * @param timestampField - the path of the field with the modification timestamp
+     * @param scope - the scope prefix of the high-water mark keys
+     * @param watermarks - the {@link Map} to put high-water marks to
+     */
+    private static void collectMaximum(MongoCollection<Document> collection, String groupField,
+            String timestampField, String scope, Map<String, Instant> watermarks) {
+
+        try {
+            FindIterable<Document> documents = collection.find(Filters.exists(timestampField))
+                .projection(Projections.include(groupField, timestampField));
+            for (Document document : documents) {
+                Object id = document.getEmbedded(List.of(groupField.split("\\.")), Object.class);
+                Instant watermark = parseTimestamp(document.getEmbedded(List.of(timestampField.split("\\.")), Object.class));
+                if (id == null || watermark == null) continue;
+
+                watermarks.merge(scope + id, watermark, (a, b) -> a.isAfter(b) ? a : b);
+            }
+        } catch (MongoException e) {
+            logger.warning("Unable to compute high-water marks for the collection \""
+                + collection.getNamespace().getCollectionName() + "\"");
+        }
+    }
+
+    /**
+     * Returns the space or channel id of the parent of the given failed request
+     * @param failure - the failed request of the {@link FailedRequestJournal}
+     * @return the space or channel id or null, if the request belongs to no task
+     */
+    private static String getScopeId(BsonDocument failure) {
+        if (!failure.isDocument("parent")) return null;
+
+        // Pages and posts have the id of their space or channel, spaces and channels are parents themselves
+        BsonDocument parent = failure.getDocument("parent");
+        for (String field : List.of("spaceId", "channelId")) {
+            if (parent.isString(field)) return parent.getString(field).getValue();
+        }
+        return failure.isString("parentId") ? failure.getString("parentId").getValue() : null;
+    }
+
+    /**
+     * Checks if the {@code _watermarks} collection exists in the given {@link MongoDatabase}
+     * @param database - the {@link MongoDatabase}
+     * @return true, if the collection exists, false otherwise
+     */
+    private static boolean exists(MongoDatabase database) {
+        return database.listCollectionNames().into(new ArrayList<String>()).contains(COLLECTION_NAME);
+    }
+
+    /**
+     * Parses an {@code ISO-8601} timestamp with offset as returned by {@code Confluence} and {@code Teams}
+     * @param timestamp - the timestamp value
+     * @return the parsed {@link Instant} or null, if the value is not a valid timestamp
+     */
+    private static Instant parseTimestamp(Object timestamp) {
+        if (!(timestamp instanceof String)) return null;
+        try {
+            return OffsetDateTime.parse((String) timestamp).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.khub.crawling;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.conversions.Bson;
+
+import com.khub.common.MongoConnector;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+public class WorkQueue {
+
+    private static final Logger logger = Logger.getLogger(WorkQueue.class.getName());
+
+    public static final String COLLECTION_NAME = MongoConnector.INTERNAL_COLLECTION_PREFIX + "work_queue";
+
+    // Task states, a leased task with an expired lease is claimed again
+    private static final String PENDING = "pending";
+    private static final String LEASED = "leased";
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    // Claims of a task before it is given up
+    static final int MAX_ATTEMPTS = 3;
+
+    private final MongoCollection<BsonDocument> collection;
+
+    // Identifies the builder instance holding a lease
+    private final String workerId;
+
+    private WorkQueue(MongoCollection<BsonDocument> collection, String workerId) {
+        this.collection = collection;
+        this.workerId = workerId;
+    }
+
+    /**
+     * Opens the {@link WorkQueue} shared by all builder instances crawling into the given
+     * {@link MongoDatabase}. Builder instances are identified by their process id and host name
+     * @param database - the {@link MongoDatabase} of the current crawl
+     * @return the {@link WorkQueue}
+     * @throws MongoException if the queue could not be prepared
+     */
+    public static WorkQueue of(MongoDatabase database) throws MongoException {
+        MongoCollection<BsonDocument> collection = database.getCollection(COLLECTION_NAME, BsonDocument.class);
+        collection.createIndex(Indexes.ascending("crawler", "status", "leaseExpiry"));
+        return new WorkQueue(collection, ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * Returns the identifier of this builder instance
+     * @return the worker id
+     */
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Adds the given tasks to the queue, unless tasks with the same keys were added before,
+     * e.g. by another builder instance
+     * @param crawler - the key of the crawler processing the tasks
+     * @param type - the task type
+     * @param tasks - the task payloads by task key
+     * @throws MongoException if the tasks could not be written
+     */
+    public void enqueue(String crawler, String type, Map<String, BsonDocument> tasks) throws MongoException {
+        if (tasks.isEmpty()) return;
+
+        List<WriteModel<BsonDocument>> writes = new ArrayList<WriteModel<BsonDocument>>();
+        tasks.forEach((key, payload) -> {
+            Bson update = Updates.combine(
+                Updates.setOnInsert("crawler", new BsonString(crawler)),
+                Updates.setOnInsert("type", new BsonString(type)),
+                Updates.setOnInsert("payload", payload),
+                Updates.setOnInsert("status", new BsonString(PENDING)),
+                Updates.setOnInsert("attempts", new BsonInt32(0)));
+            writes.add(new UpdateOneModel<BsonDocument>(Filters.eq("_id", crawler + ":" + type + ":" + key),
+                update, new UpdateOptions().upsert(true)));
+        });
+
+        try {
+            collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // Concurrent upserts of the same task by several builder instances are expected
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) throw e;
+            }
+        }
+    }
+
+    /**
+     * Claims a pending task or a task whose lease expired, e.g. because its
+     * builder instance stopped, and leases it for the given duration
+     * @param crawler - the key of the crawler processing the task
+     * @param lease - the duration of the lease
+     * @return the claimed task as {@link BsonDocument} or null, if no task is available
+     * @throws MongoException if the queue could not be read
+     */
+    public BsonDocument claim(String crawler, Duration lease) throws MongoException {
+        BsonDateTime now = new BsonDateTime(System.currentTimeMillis());
+        Bson filter = Filters.and(Filters.eq("crawler", crawler), Filters.or(
+            Filters.eq("status", PENDING),
+            Filters.and(Filters.eq("status", LEASED), Filters.lt("leaseExpiry", now))));
+
+        BsonDocument task = collection.findOneAndUpdate(filter, Updates.combine(
+                Updates.set("status", new BsonString(LEASED)),
+                Updates.set("owner", new BsonString(workerId)),
+                Updates.set("leaseExpiry", new BsonDateTime(now.getValue() + lease.toMillis())),
+                Updates.inc("attempts", 1)),
+            new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+
+        if (task != null && task.getInt32("attempts").getValue() > 1) {
+            logger.info("Task \"" + task.getString("_id").getValue() + "\" was re-queued, attempt " + task.getInt32("attempts").getValue());
+        }
+        return task;
+    }
+
+    /**
+     * Extends the leases of the given tasks held by this builder instance
+     * @param ids - the ids of the tasks
+     * @param lease - the duration of the lease from now
+     * @return the count of tasks still leased by this builder instance
+     * @throws MongoException if the leases could not be written
+     */
+    public long renew(List<String> ids, Duration lease) throws MongoException {
+        return collection.updateMany(getLeasedFilter(ids),
+            Updates.set("leaseExpiry", new BsonDateTime(System.currentTimeMillis() + lease.toMillis()))).getModifiedCount();
+    }
+
+    /**
+     * Marks the given tasks held by this builder instance as done
+     * @param ids - the ids of the tasks
+     * @throws MongoException if the tasks could not be written
+     */
+    public void complete(List<String> ids) throws MongoException {
+        collection.updateMany(getLeasedFilter(ids), Updates.combine(
+            Updates.set("status", new BsonString(DONE)),
+            Updates.unset("leaseExpiry")));
+    }
+
+    /**
+     * Returns the given failed tasks held by this builder instance to the queue.
+     * Tasks claimed too often are given up and marked as failed
+     * @param ids - the ids of the tasks
+     * @throws MongoException if the tasks could not be written
+     */
+    public void release(List<String> ids) throws MongoException {
+        collection.updateMany(Filters.and(getLeasedFilter(ids), Filters.gte("attempts", MAX_ATTEMPTS)), Updates.combine(
+            Updates.set("status", new BsonString(FAILED)),
+            Updates.unset("leaseExpiry")));
+        collection.updateMany(getLeasedFilter(ids), Updates.combine(
+            Updates.set("status", new BsonString(PENDING)),
+            Updates.unset("leaseExpiry")));
+    }
+
+    /**
+     * Checks if all tasks of the given crawler are either done or failed
+     * @param crawler - the key of the crawler
+     * @return true, if no task is pending or leased
+     * @throws MongoException if the queue could not be read
+     */
+    public boolean isDrained(String crawler) throws MongoException {
+        return collection.countDocuments(Filters.and(Filters.eq("crawler", crawler),
+            Filters.in("status", PENDING, LEASED))) == 0;
+    }
+
+    /**
+     * Returns the count of failed tasks of the given crawler
+     * @param crawler - the key of the crawler
+     * @return the count of tasks given up after {@value #MAX_ATTEMPTS} attempts
+     * @throws MongoException if the queue could not be read
+     */
+    public long getFailedCount(String crawler) throws MongoException {
+        return collection.countDocuments(Filters.and(Filters.eq("crawler", crawler), Filters.eq("status", FAILED)));
+    }
+
+    /**
+     * Returns the filter of the given tasks leased by this builder instance
+     * @param ids - the ids of the tasks
+     * @return the {@link Bson} filter
+     */
+    private Bson getLeasedFilter(List<String> ids) {
+        return Filters.and(Filters.in("_id", ids), Filters.eq("owner", workerId), Filters.eq("status", LEASED));
+    }
+
+}
@@ -0,0 +1,326 @@
+package com.khub.processing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+public class MappingPlan {
+
+    private static final Logger logger = Logger.getLogger(MappingPlan.class.getName());
+
+    // Limits the cached plans of collections without recurring shapes
+    private static final int MAX_SHAPES = 1024;
+
+    // Field mappings the plan was compiled from, kept to derive plans for fewer paths
+    private final Map<String, List<String>> mappings;
+
+    // Confluence links are retrieved as short form w/o domain name
+    private final String confluenceBaseUrl;
+
+    // Compiled jsonPaths and the new field names in the order of the mappings
+    private final String[] jsonPaths;
+    private final String[] members;
+    private final boolean[] links;
+
+    // Keys of all jsonPaths as tree, so shared prefixes are walked once per document
+    private final Step root = new Step(null);
+
+    // Plans for the present jsonPaths of each document shape, analysed once per shape
+    private final Map<BitSet, MappingPlan> shapes = new HashMap<BitSet, MappingPlan>();
+
+    private MappingPlan(Map<String, List<String>> mappings, String confluenceBaseUrl) {
+        this.mappings = mappings;
+        this.confluenceBaseUrl = confluenceBaseUrl;
+
+        List<String> paths = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        mappings.forEach((member, memberPaths) -> memberPaths.forEach(jsonPath -> {
+            paths.add(jsonPath);
+            names.add(member);
+        }));
+
+        this.jsonPaths = paths.toArray(new String[0]);
+        this.members = names.toArray(new String[0]);
+        this.links = new boolean[jsonPaths.length];
+
+        for (int i = 0; i < jsonPaths.length; i++) {
+            Step step = root;
+            for (String key : jsonPaths[i].split("\\.")) {
+                step = step.child(key);
+            }
+            step.targets.add(i);
+            links[i] = jsonPaths[i].contains("_links.webui");
+        }
+    }
+
+    /**
+     * Compiles the given {@code JsonPath}-like mappings into a {@link MappingPlan}, which
+     * extracts all paths of a document in a single traversal of the document. Values are
+     * copied as {@code BSON} values, so they keep their types and nested documents of a
+     * {@link org.bson.RawBsonDocument RawBsonDocument} are copied without being decoded <p>
+     * Supported Paths: {@code Object1.Object2}, {@code Object1[*]} or {@code Object1[*].Object2} <p>
+     * Unsupported Paths: {@code Object1[*][*]} or {@code Object1[*].Object2.Object3}
+     * @param mappings - the new field names with their {@code JsonPath}s
+     * @param confluenceBaseUrl - the {@code Confluence} URL prepended to links
+     * @return the {@link MappingPlan}
+     */
+    public static MappingPlan of(Map<String, List<String>> mappings, String confluenceBaseUrl) {
+        return new MappingPlan(mappings, confluenceBaseUrl);
+    }
+
+    /**
+     * Returns the {@link MappingPlan} with the {@code JsonPath}s present in the given item only.
+     * The shape of the item is fingerprinted by the present {@code JsonPath}s without extracting
+     * their values, so the plan of each distinct shape is created once and reused by documents
+     * of the same shape, while documents missing fields of others are still processed correctly
+     * @param item - the {@link BsonDocument} of a collection
+     * @return the {@link MappingPlan} for documents with the shape of the item
+     */
+    public MappingPlan select(BsonDocument item) {
+        BitSet shape = new BitSet(jsonPaths.length);
+        fingerprint(root, item, shape);
+
+        MappingPlan plan = shapes.get(shape);
+        if (plan == null) {
+            plan = select(shape);
+            if (shapes.size() < MAX_SHAPES) shapes.put(shape, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the count of distinct document shapes analysed so far
+     * @return the count of cached plans
+     */
+    public int getShapeCount() {
+        return shapes.size();
+    }
+
+    /**
+     * Returns the mappings of the plan
+     * @return the {@link Map} of new field names with their {@code JsonPath}s
+     */
+    public Map<String, List<String>> getMappings() {
+        return mappings;
+    }
+
+    /**
+     * Translates the mappings into the specification of a {@code $project} aggregation stage.
+     * Each new field takes the first present value of its {@code JsonPath}s with nested {@code $ifNull}
+     * expressions and is omitted, if none is present. Unlike {@link #apply(BsonDocument)}, values of
+     * several present {@code JsonPath}s are not combined to an array. Links are prefixed with {@code $concat}
+     * @return the {@link Document} with the new field names and their aggregation expressions
+     */
+    public Document toProjection() {
+        Document projection = new Document();
+        mappings.forEach((member, memberPaths) -> {
+            Object expression = null;
+            for (int i = memberPaths.size() - 1; i >= 0; i--) {
+                String jsonPath = memberPaths.get(i);
+                Object value = "$" + jsonPath.replace("[*]", "");
+                if (jsonPath.contains("_links.webui")) {
+                    value = new Document("$concat", List.of(confluenceBaseUrl, value));
+                }
+                expression = expression == null ? value : new Document("$ifNull", List.of(value, expression));
+            }
+            if (expression != null) projection.append(member, expression);
+        });
+        return projection;
+    }
+
+    /**
+     * Creates the processed {@link BsonDocument} of the given item with the values of all
+     * {@code JsonPath}s renamed. Values of several {@code JsonPath}s with the same new
+     * field name are combined to an array
+     * @param item - the {@link BsonDocument} of a collection
+     * @return the processed {@link BsonDocument}
+     */
+    public BsonDocument apply(BsonDocument item) {
+        BsonValue[] results = extract(item);
+        BsonDocument document = new BsonDocument();
+
+        for (int i = 0; i < jsonPaths.length; i++) {
+            BsonValue result = results[i];
+
+            // Adds Confluence domain name to links
+            if (result != null && links[i] && result.isString()) {
+                result = new BsonString(confluenceBaseUrl + result.asString().getValue());
+            }
+
+            // Combines result to array if another result
+            // was found for the same json path
+            String member = members[i];
+            BsonValue element = document.get(member);
+            if (element == null) {
+                document.put(member, result != null ? result : BsonNull.VALUE);
+            } else if (result != null && (result.isDocument() || result.isArray())) {
+                // Arrays of the source are copied, since arrays of raw documents are immutable
+                BsonArray array = new BsonArray();
+                if (element.isArray()) array.addAll(element.asArray()); else array.add(element);
+                if (result.isDocument()) array.add(result); else array.addAll(result.asArray());
+                document.put(member, array);
+            } else if (result != null && !element.isArray()) {
+                document.put(member, new BsonArray(List.of(element)));
+            }
+        }
+
+        return document;
+    }
+
+    /**
+     * Creates the {@link MappingPlan} with the {@code JsonPath}s of the given shape
+     * @param shape - the {@link BitSet} of present {@code JsonPath}s
+     * @return the {@link MappingPlan}
+     */
+    private MappingPlan select(BitSet shape) {
+        Map<String, List<String>> present = new LinkedHashMap<String, List<String>>();
+        for (int i = shape.nextSetBit(0); i >= 0; i = shape.nextSetBit(i + 1)) {
+            present.computeIfAbsent(members[i], member -> new ArrayList<String>()).add(jsonPaths[i]);
+        }
+        return new MappingPlan(present, confluenceBaseUrl);
+    }
+
+    /**
+     * Marks the {@code JsonPath}s present below the given step. Values are only looked up,
+     * since paths within arrays are always present as arrays of the element values
+     * @param step - the {@link Step}
+     * @param value - the value of the step
+     * @param shape - the {@link BitSet} of present {@code JsonPath}s
+     */
+    private void fingerprint(Step step, BsonValue value, BitSet shape) {
+        for (Step child : step.children) {
+            if (value.isArray()) {
+                child.mark(shape);
+                continue;
+            }
+
+            BsonValue result = child.apply(value);
+            if (result != null) {
+                for (int target : child.targets) {
+                    shape.set(target);
+                }
+                fingerprint(child, result, shape);
+            }
+        }
+    }
+
+    /**
+     * Extracts the values of all {@code JsonPath}s of the given item by walking the tree of steps
+     * @param item - the parent {@link BsonDocument}
+     * @return the values indexed like the {@code JsonPath}s, null where a path is missing
+     */
+    private BsonValue[] extract(BsonDocument item) {
+        BsonValue[] results = new BsonValue[jsonPaths.length];
+        extract(root, item, results);
+        return results;
+    }
+
+    /**
+     * Extracts the values of the children of the given step from its value
+     * @param step - the {@link Step}
+     * @param value - the value of the step
+     * @param results - the values indexed like the {@code JsonPath}s
+     */
+    private void extract(Step step, BsonValue value, BsonValue[] results) {
+        for (Step child : step.children) {
+            BsonValue result = child.apply(value);
+            if (result == null) {
+                continue;
+            }
+
+            for (int target : child.targets) {
+                results[target] = result;
+            }
+            extract(child, result, results);
+        }
+    }
+
+    /**
+     * Key of a {@code JsonPath} shared by all paths with the same prefix
+     */
+    private static class Step {
+
+        private final String key;
+        private final String member;
+        private final boolean array;
+        private final List<Step> children = new ArrayList<Step>();
+        private final List<Integer> targets = new ArrayList<Integer>();
+
+        private Step(String key) {
+            this.key = key;
+            this.array = key != null && key.contains("[*]");
+            this.member = array ? key.replace("[*]", "") : key;
+        }
+
+        /**
+         * Returns the child step for the given key, adding it if it is missing
+         * @param key - the key of the child step
+         * @return the child {@link Step}
+         */
+        private Step child(String key) {
+            for (Step child : children) {
+                if (child.key.equals(key)) return child;
+            }
+            Step child = new Step(key);
+            children.add(child);
+            return child;
+        }
+
+        /**
+         * Marks the {@code JsonPath}s of this step and all of its children as present
+         * @param shape - the {@link BitSet} of present {@code JsonPath}s
+         */
+        private void mark(BitSet shape) {
+            for (int target : targets) {
+                shape.set(target);
+            }
+            for (Step child : children) {
+                child.mark(shape);
+            }
+        }
+
+        /**
+         * Retrieves the value of the key from the given parent value. Keys of arrays are
+         * retrieved from each element, since nested objects of arrays are supported
+         * @param value - the parent {@link BsonValue}
+         * @return the {@link BsonValue} such as primitive, document or array, null if missing
+         */
+        private BsonValue apply(BsonValue value) {
+            if (value.isArray()) {
+                BsonArray values = new BsonArray();
+                for (BsonValue element : value.asArray()) {
+                    if (!element.isDocument()) {
+                        logger.warning("Cannot retrieve value for the key \"" + key + "\" in an array of primitives");
+                        return value;
+                    }
+                    values.add(element.asDocument().get(member, BsonNull.VALUE));
+                }
+                return values;
+            }
+
+            if (!value.isDocument()) {
+                return value;
+            }
+
+            BsonValue result = value.asDocument().get(member);
+            if (array && result != null && !result.isArray()) {
+                logger.warning("Cannot retrieve value for the key \"" + key + "\" which is not an array");
+                return value;
+            }
+            return result;
+        }
+
+    }
+
+}
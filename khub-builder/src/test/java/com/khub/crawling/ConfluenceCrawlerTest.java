@@ -0,0 +1,194 @@
+package com.khub.crawling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.khub.common.AuthenticationHeader;
+import com.khub.common.HttpTransport;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.result.UpdateResult;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+class ConfluenceCrawlerTest {
+
+    private static final AuthenticationHeader HEADER = new AuthenticationHeader("Authorization", "Bearer", "token");
+
+    private StubApiServer server;
+    private HttpTransport transport;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new StubApiServer();
+        server.groups = 2;
+        server.usersPerGroup = 30;
+        server.spaces = 3;
+        server.pagesPerSpace = 45;
+        server.commentsPerPage = 2;
+        server.latencyMillis = 0;
+        server.throttleRate = 0;
+        server.bodySize = 16;
+        server.start();
+        transport = HttpTransport.ofDefaults();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+        transport.shutdown();
+    }
+
+    /**
+     * Each space has more pages than fit into a response page, so all pages are only retrieved
+     * by following the next links, and every page except the homepages of the spaces is passed once
+     */
+    @Test
+    void followsAllResponsePages() {
+        Map<String, List<BsonValue>> crawled = crawl(new ConfluenceCrawler(server.getEndpoint(), HEADER, 8, 1000,
+            CrawlContext.of(transport), false, false, null));
+
+        assertCrawledOnce(crawled, "spaces", server.spaces);
+        assertCrawledOnce(crawled, "pages", server.spaces * server.pagesPerSpace);
+        assertCrawledOnce(crawled, "comments", server.spaces * server.pagesPerSpace * server.commentsPerPage);
+    }
+
+    /**
+     * Pages requested concurrently by offset are the same as pages following the next links
+     */
+    @Test
+    void requestsResponsePagesInParallel() {
+        Map<String, List<BsonValue>> crawled = crawl(new ConfluenceCrawler(server.getEndpoint(), HEADER, 8, 1000,
+            CrawlContext.of(transport), false, true, null));
+
+        assertCrawledOnce(crawled, "pages", server.spaces * server.pagesPerSpace);
+        assertCrawledOnce(crawled, "comments", server.spaces * server.pagesPerSpace * server.commentsPerPage);
+    }
+
+    /**
+     * Pages requested concurrently in a window smaller than the count of pages of a space
+     * are all passed once, each remaining page being requested as a previous one arrives
+     */
+    @Test
+    void requestsResponsePagesInWindow() {
+        server.pagesPerSpace = 150;
+        Map<String, List<BsonValue>> crawled = crawl(new ConfluenceCrawler(server.getEndpoint(), HEADER, 2, 1000,
+            CrawlContext.of(transport), false, true, null));
+
+        assertCrawledOnce(crawled, "pages", server.spaces * server.pagesPerSpace);
+    }
+
+    /**
+     * Throttled requests are repeated after the pause requested with {@code Retry-After}
+     * instead of failing, so no data is missing
+     */
+    @Test
+    void retriesThrottledRequestsAfterRetryAfter() {
+        server.throttledRequests = 3;
+        server.retryAfterSeconds = 1;
+        ConfluenceCrawler crawler = new ConfluenceCrawler(server.getEndpoint(), HEADER, 1, 1000,
+            CrawlContext.of(transport), false, false, null);
+
+        long startTime = System.nanoTime();
+        Map<String, List<BsonValue>> crawled = crawl(crawler);
+        long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+
+        assertEquals(3, server.getThrottledCount());
+        assertTrue(crawler.getMetrics().toDocument().getInt64("retries").getValue() >= 3);
+        assertTrue(elapsedMillis >= 1000, "Throttled requests were retried after " + elapsedMillis + " ms");
+        assertCrawledOnce(crawled, "pages", server.spaces * server.pagesPerSpace);
+        assertEquals(0, crawler.getFailedCount());
+    }
+
+    /**
+     * A resumed crawl continues an interrupted task from its recorded cursor, replays the documents
+     * written before the interruption and skips completed tasks, so only the missing pages are requested
+     */
+    @Test
+    void resumesFromCheckpoints() {
+        MongoServer mongoServer = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = mongoServer.bind();
+        try (MongoClient client = MongoClients.create("mongodb://localhost:" + address.getPort())) {
+            MongoDatabase database = client.getDatabase("test_raw_data");
+            assertTrue(new ConfluenceCrawler(server.getEndpoint(), HEADER, 8, 1000,
+                CrawlContext.of(transport).withCheckpoints(CheckpointStore.create(database)), false, false, null)
+                .run(database, 100));
+            long pagesCount = database.getCollection("pages").countDocuments();
+            long commentsCount = database.getCollection("comments").countDocuments();
+
+            // Interrupts the pages of the first space after two of its three response pages
+            String spaceId = "home-0";
+            database.getCollection(CheckpointStore.COLLECTION_NAME).deleteOne(Filters.eq("_id", "ConfluenceCrawler"));
+            UpdateResult interrupted = database.getCollection(CheckpointStore.COLLECTION_NAME, BsonDocument.class).replaceOne(
+                Filters.eq("_id", "ConfluenceCrawler:pages:" + spaceId),
+                new BsonDocument("_id", new BsonString("ConfluenceCrawler:pages:" + spaceId))
+                    .append("cursor", new BsonString(server.getEndpoint() + "rest/api/space/S0/content/page?type=page&limit=20&start=40")));
+            assertEquals(1, interrupted.getModifiedCount());
+            List<String> missingPages = new ArrayList<String>();
+            for (int i = 40; i <= server.pagesPerSpace; i++) {
+                missingPages.add("page-0-" + i);
+            }
+            database.getCollection("pages").deleteMany(Filters.in("_id", missingPages));
+
+            server.reset();
+            assertTrue(new ConfluenceCrawler(server.getEndpoint(), HEADER, 8, 1000,
+                CrawlContext.of(transport).withCheckpoints(CheckpointStore.load(database)), false, false, null)
+                .run(database, 100));
+
+            assertEquals(pagesCount, database.getCollection("pages").countDocuments());
+            assertEquals(commentsCount, database.getCollection("comments").countDocuments());
+            assertEquals(missingPages.size(), database.getCollection("pages").countDocuments(Filters.in("_id", missingPages)));
+            assertTrue(CheckpointStore.load(database).isCompleted("ConfluenceCrawler"));
+
+            // Groups and spaces are listed again, only the interrupted task requests its remaining page
+            assertEquals(3, server.getRequestCount());
+        } finally {
+            mongoServer.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs the crawler and collects the ids of the crawled documents per collection
+     * @param crawler - the {@link Crawler}
+     * @return the {@link Map} of collection names with the ids in the order they were passed
+     */
+    static Map<String, List<BsonValue>> crawl(Crawler crawler) {
+        Map<String, List<BsonValue>> crawled = new ConcurrentHashMap<String, List<BsonValue>>();
+        crawler.run((collectionName, document) -> crawled
+            .computeIfAbsent(collectionName, name -> Collections.synchronizedList(new ArrayList<BsonValue>()))
+            .add(document.get("_id")));
+        return crawled;
+    }
+
+    /**
+     * Asserts that the collection got the expected count of distinct documents, each passed once
+     * @param crawled - the {@link Map} of collection names with the ids of the crawled documents
+     * @param collectionName - the name of the collection
+     * @param expectedCount - the expected count of documents
+     */
+    static void assertCrawledOnce(Map<String, List<BsonValue>> crawled, String collectionName, int expectedCount) {
+        List<BsonValue> ids = crawled.getOrDefault(collectionName, List.of());
+        assertEquals(expectedCount, ids.size(), "Count of crawled " + collectionName);
+        assertEquals(expectedCount, new HashSet<BsonValue>(ids).size(), "Count of distinct " + collectionName);
+    }
+
+}
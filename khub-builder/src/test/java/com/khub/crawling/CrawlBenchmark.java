@@ -0,0 +1,279 @@
+package com.khub.crawling;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+
+import com.khub.common.AttachmentStore;
+import com.khub.common.AuthenticationHeader;
+import com.khub.common.HttpTransport;
+
+/**
+ * Offline benchmark of the crawlers against the {@link StubApiServer}. Each crawler runs
+ * with a counting {@link CrawlSink} and the throughput in requests and documents per second
+ * as well as the peak heap usage are reported, optionally with the heap retained by the crawled
+ * documents. The benchmark is started after compiling the test sources with {@code mvn test-compile} as follows:
+ * <pre>
+ * java -cp target/classes:target/test-classes:$(cat classpath.txt) com.khub.crawling.CrawlBenchmark [OPTIONS]
+ * </pre>
+ * where {@code classpath.txt} is written by {@code mvn dependency:build-classpath -Dmdep.outputFile=classpath.txt}
+ */
+public class CrawlBenchmark {
+
+    // Keeps the crawler log level, since loggers are only weakly referenced
+    private static final Logger crawlerLogger = Logger.getLogger("com.khub");
+
+    private int concurrency = 16;
+    private double requestRate = 1000;
+    private int runs = 3;
+    private boolean bulkSearch = false;
+    private boolean parallelPagination = false;
+    private Path attachmentsPath = null;
+    private boolean retain = false;
+
+    /**
+     * Runs the benchmark from the console input
+     * @param args - the console arguments
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "[%1$tF %1$tT] %4$s: %5$s %n");
+        crawlerLogger.setLevel(Level.WARNING);
+
+        StubApiServer server = new StubApiServer();
+        CrawlBenchmark benchmark = new CrawlBenchmark();
+
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : "";
+            switch (args[i]) {
+
+                case "--help":
+                    System.out.println("CrawlBenchmark [OPTIONS]\n" +
+                        "  --latency MS       Delay of each response (" + server.latencyMillis + ")\n" +
+                        "  --throttle RATE    Share of requests answered with 429 (" + server.throttleRate + ")\n" +
+                        "  --retry-after S    Pause requested by throttled responses (" + server.retryAfterSeconds + ")\n" +
+                        "  --failures RATE    Share of requests answered with 500 (" + server.failureRate + ")\n" +
+                        "  --body-size CHARS  Length of content bodies (" + server.bodySize + ")\n" +
+                        "  --no-compression   Sends uncompressed responses\n" +
+                        "  --bulk-search      Searches Confluence pages and comments per space\n" +
+                        "  --parallel-pages   Requests Confluence search pages concurrently by offset\n" +
+                        "  --attachments N    Files attached to each page and post (" + server.attachmentsPerPage + ")\n" +
+                        "  --attachment-size BYTES  Size of each attached file (" + server.attachmentSize + ")\n" +
+                        "  --attachments-path DIR   Downloads attached files into the directory\n" +
+                        "  --scale FACTOR     Multiplier of the data set sizes (1)\n" +
+                        "  --concurrency N    Requests in flight per crawler (" + benchmark.concurrency + ")\n" +
+                        "  --rate N           Initial requests per second per crawler (" + benchmark.requestRate + ")\n" +
+                        "  --runs N           Measured runs per crawler after a warm-up run (" + benchmark.runs + ")\n" +
+                        "  --retain           Keeps the crawled documents and reports the heap they retain");
+                    System.exit(0);
+                    break;
+
+                case "--latency":     server.latencyMillis = Long.parseLong(value); i++; break;
+                case "--throttle":    server.throttleRate = Double.parseDouble(value); i++; break;
+                case "--retry-after": server.retryAfterSeconds = Integer.parseInt(value); i++; break;
+                case "--failures":    server.failureRate = Double.parseDouble(value); i++; break;
+                case "--body-size":   server.bodySize = Integer.parseInt(value); i++; break;
+                case "--no-compression": server.compression = false; break;
+                case "--bulk-search":    benchmark.bulkSearch = true; break;
+                case "--parallel-pages": benchmark.parallelPagination = true; break;
+                case "--attachments": server.attachmentsPerPage = Integer.parseInt(value); i++; break;
+                case "--attachment-size":  server.attachmentSize = Integer.parseInt(value); i++; break;
+                case "--attachments-path": benchmark.attachmentsPath = Path.of(value); i++; break;
+                case "--concurrency": benchmark.concurrency = Integer.parseInt(value); i++; break;
+                case "--rate":        benchmark.requestRate = Double.parseDouble(value); i++; break;
+                case "--runs":        benchmark.runs = Integer.parseInt(value); i++; break;
+                case "--retain":      benchmark.retain = true; break;
+
+                case "--scale":
+                    double scale = Double.parseDouble(value);
+                    server.spaces = (int) Math.ceil(server.spaces * scale);
+                    server.teams = (int) Math.ceil(server.teams * scale);
+                    server.groups = (int) Math.ceil(server.groups * scale);
+                    i++;
+                    break;
+
+                default:
+                    System.out.println("Unknown input \"" + args[i] + "\", type --help for help");
+                    System.exit(1);
+            }
+        }
+
+        // All runs share one transport, as the crawlers of a crawl do
+        HttpTransport transport = HttpTransport.ofDefaults();
+        CrawlContext context = CrawlContext.of(transport).withAttachments(AttachmentStore.of(benchmark.attachmentsPath));
+        server.start();
+        try {
+            benchmark.run("Confluence", server, () -> new ConfluenceCrawler(server.getEndpoint(),
+                new AuthenticationHeader("Authorization", "Bearer", "token"), benchmark.concurrency, benchmark.requestRate,
+                context, benchmark.bulkSearch, benchmark.parallelPagination, null));
+            benchmark.run("Teams", server, () -> new TeamsCrawler(server.getEndpoint(),
+                new AuthenticationHeader("Authorization", "Bearer", "token"), benchmark.concurrency, benchmark.requestRate,
+                context));
+        } finally {
+            server.stop();
+            transport.shutdown();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs the crawler once for warm-up and then for the configured count of measured runs
+     * @param name - the name of the crawled source
+     * @param server - the {@link StubApiServer}
+     * @param factory - the {@link CrawlerFactory} creating a new crawler for each run
+     */
+    private void run(String name, StubApiServer server, CrawlerFactory factory) throws InterruptedException {
+        measureRetained(name + " (warm-up)", measure(name + " (warm-up)", server, factory.create()));
+        for (int i = 1; i <= runs; i++) {
+            measureRetained(name + " #" + i, measure(name + " #" + i, server, factory.create()));
+        }
+    }
+
+    /**
+     * Runs the crawler against the server and reports its throughput and peak heap usage
+     * @param name - the name of the run
+     * @param server - the {@link StubApiServer}
+     * @param crawler - the {@link Crawler} to run
+     * @return the {@link CountingSink} with the crawled documents, if they are retained
+     */
+    private CountingSink measure(String name, StubApiServer server, Crawler crawler) {
+        System.gc();
+        server.reset();
+        resetPeakHeapUsage();
+        CountingSink sink = new CountingSink(retain);
+
+        Instant startTime = Instant.now();
+        crawler.run(sink);
+        Duration duration = Duration.between(startTime, Instant.now());
+
+        double seconds = Math.max(duration.toMillis(), 1) / 1000.0;
+        System.out.println(String.format("%s: %d requests in %d round trips (%d throttled), %d documents, %.1f MB in %.2f s",
+            name, server.getRequestCount(), server.getExchangeCount(), server.getThrottledCount(), sink.getCount(),
+            server.getBytesCount() / 1048576.0, seconds));
+        System.out.println(String.format("%s: %.0f requests/s, %.0f documents/s, %.1f MB/s, peak heap %.0f MB, documents %s",
+            name, server.getRequestCount() / seconds, sink.getCount() / seconds,
+            server.getBytesCount() / 1048576.0 / seconds, getPeakHeapUsage() / 1048576.0, sink.getCounts()));
+        System.out.println(name + ": " + crawler.getMetrics().toSummary());
+        return sink;
+    }
+
+    /**
+     * Reports the heap retained by the crawled documents as the heap released by dropping them
+     * after the run, so that neither the crawler nor garbage of previous runs is counted
+     * @param name - the name of the run
+     * @param sink - the {@link CountingSink} with the crawled documents
+     */
+    private void measureRetained(String name, CountingSink sink) throws InterruptedException {
+        if (!retain) return;
+
+        int retainedCount = sink.getRetainedCount();
+        long heapUsage = getSettledHeapUsage();
+        sink.clear();
+        System.out.println(String.format("%s: retained heap %.1f MB for %d documents",
+            name, (heapUsage - getSettledHeapUsage()) / 1048576.0, retainedCount));
+    }
+
+    /**
+     * Returns the lowest heap usage after garbage collection within a few seconds, since objects
+     * of finished requests are released by the {@code HTTP} client with a delay
+     * @return the heap usage in bytes
+     */
+    private long getSettledHeapUsage() throws InterruptedException {
+        long heapUsage = Long.MAX_VALUE;
+        for (int i = 0; i < 6; i++) {
+            System.gc();
+            heapUsage = Math.min(heapUsage, getHeapUsage());
+            Thread.sleep(500);
+        }
+        return heapUsage;
+    }
+
+    /**
+     * Resets the peak usage of all heap memory pools
+     */
+    private void resetPeakHeapUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Returns the current usage of the heap
+     * @return the heap usage in bytes
+     */
+    private long getHeapUsage() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns the sum of the peak usage of all heap memory pools since the last reset
+     * @return the peak heap usage in bytes
+     */
+    private long getPeakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Creates a new crawler for each run
+     */
+    private interface CrawlerFactory {
+        Crawler create();
+    }
+
+    /**
+     * {@link CrawlSink} counting the documents per collection, retaining them only if requested
+     */
+    private static class CountingSink implements CrawlSink {
+
+        private final Map<String, LongAdder> counts = new ConcurrentHashMap<String, LongAdder>();
+
+        // Crawled documents, null if they are only counted
+        private final Queue<BsonDocument> documents;
+
+        private CountingSink(boolean retain) {
+            this.documents = retain ? new ConcurrentLinkedQueue<BsonDocument>() : null;
+        }
+
+        @Override
+        public void accept(String collectionName, BsonDocument document) {
+            counts.computeIfAbsent(collectionName, key -> new LongAdder()).increment();
+            if (documents != null) documents.add(document);
+        }
+
+        private int getRetainedCount() {
+            return documents != null ? documents.size() : 0;
+        }
+
+        private void clear() {
+            if (documents != null) documents.clear();
+        }
+
+        private long getCount() {
+            return counts.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        private Map<String, Long> getCounts() {
+            Map<String, Long> result = new TreeMap<String, Long>();
+            counts.forEach((collectionName, count) -> result.put(collectionName, count.sum()));
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.khub.crawling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.junit.jupiter.api.Test;
+
+class GraphBatcherTest {
+
+    private static final String BASE_URL = "https://graph.microsoft.com/v1.0";
+
+    /**
+     * Requests beyond the maximum batch size of 20 are split into several batches
+     */
+    @Test
+    void splitsRequestsIntoBatchesOfTwenty() {
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        GraphBatcher batcher = new GraphBatcher(BASE_URL, body -> {
+            batchSizes.add(body.getArray("requests").size());
+            return CompletableFuture.completedFuture(respond(body, url -> 200));
+        }, retryAfter -> {});
+
+        List<CompletableFuture<BsonDocument>> results = new ArrayList<CompletableFuture<BsonDocument>>();
+        for (int i = 0; i < 45; i++) {
+            results.add(batcher.submit(BASE_URL + "/teams/" + i));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals("/teams/" + i, results.get(i).join().getString("url").getValue());
+        }
+
+        // Full batches are sent at once, the remaining requests after the linger time
+        assertEquals(45, batchSizes.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 20), "Batch sizes " + batchSizes);
+        assertEquals(2, batchSizes.stream().filter(size -> size == 20).count(), "Batch sizes " + batchSizes);
+    }
+
+    /**
+     * A throttled sub-request notifies the throttle listener with its {@code Retry-After} and
+     * is repeated in a later batch, while the other sub-requests are completed at once
+     */
+    @Test
+    void repeatsThrottledSubRequests() {
+        List<String> sentUrls = Collections.synchronizedList(new ArrayList<String>());
+        List<Duration> pauses = Collections.synchronizedList(new ArrayList<Duration>());
+        GraphBatcher batcher = new GraphBatcher(BASE_URL, body -> {
+            BsonDocument response = respond(body, url -> url.equals("/teams/1") && !sentUrls.contains(url) ? 429 : 200);
+            for (BsonValue request : body.getArray("requests")) {
+                sentUrls.add(request.asDocument().getString("url").getValue());
+            }
+            return CompletableFuture.completedFuture(response);
+        }, pauses::add);
+
+        CompletableFuture<BsonDocument> first = batcher.submit(BASE_URL + "/teams/0");
+        CompletableFuture<BsonDocument> throttled = batcher.submit(BASE_URL + "/teams/1");
+
+        assertEquals("/teams/0", first.join().getString("url").getValue());
+        assertEquals("/teams/1", throttled.join().getString("url").getValue());
+        assertEquals(List.of("/teams/0", "/teams/1", "/teams/1"), sentUrls);
+        assertEquals(List.of(Duration.ZERO), pauses);
+    }
+
+    /**
+     * Sub-requests failing with other status codes are not repeated
+     */
+    @Test
+    void failsSubRequestsWithErrors() {
+        GraphBatcher batcher = new GraphBatcher(BASE_URL,
+            body -> CompletableFuture.completedFuture(respond(body, url -> 404)), retryAfter -> {});
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> batcher.submit(BASE_URL + "/teams/0").get());
+        assertTrue(exception.getCause().getMessage().contains("404"));
+    }
+
+    /**
+     * Answers each sub-request of the given batch request body with the status returned
+     * for its {@code URL} and echoes the {@code URL} in the body. Identifiers are named
+     * {@code _id} like in batch responses parsed by the crawlers
+     * @param body - the batch request body
+     * @param status - the {@link Status} of each sub-request
+     * @return the batch response body
+     */
+    private static BsonDocument respond(BsonDocument body, Status status) {
+        BsonArray responses = new BsonArray();
+        for (BsonValue value : body.getArray("requests")) {
+            BsonDocument request = value.asDocument();
+            String url = request.getString("url").getValue();
+            int statusCode = status.of(url);
+
+            BsonDocument response = new BsonDocument("_id", request.getString("id"))
+                .append("status", new BsonInt32(statusCode))
+                .append("body", new BsonDocument("url", new BsonString(url)));
+            if (statusCode == 429) response.append("headers", new BsonDocument("Retry-After", new BsonString("0")));
+            responses.add(response);
+        }
+        return new BsonDocument("responses", responses);
+    }
+
+    /**
+     * Status code of a sub-request
+     */
+    private interface Status {
+        int of(String url);
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.khub.crawling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.net.InetSocketAddress;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+class MongoSinkTest {
+
+    private MongoServer mongoServer;
+    private MongoClient client;
+    private MongoDatabase database;
+
+    @BeforeEach
+    void setUp() {
+        mongoServer = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = mongoServer.bind();
+        client = MongoClients.create("mongodb://localhost:" + address.getPort());
+        database = client.getDatabase("test_raw_data");
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        mongoServer.shutdownNow();
+    }
+
+    /**
+     * A document with an invalid field name, like the {@code Graph} annotations of drive items, is counted
+     * as rejected and reported, while the other documents of its batch are still written
+     */
+    @Test
+    void countsRejectedDocumentsAndWritesTheOthers() {
+        MongoSink sink = new MongoSink(database, 3, false);
+        sink.accept("attachments", BsonDocument.parse("{'_id': 'item-1', 'name': 'a.txt'}"));
+        sink.accept("attachments", BsonDocument.parse("{'_id': 'item-2', '@microsoft.graph.downloadUrl': 'https://example.com/b'}"));
+        sink.accept("attachments", BsonDocument.parse("{'_id': 'item-3', 'name': 'c.txt'}"));
+        sink.flush();
+
+        assertEquals(2, sink.getWrittenCount());
+        assertEquals(1, sink.getRejectedCount());
+        assertNotNull(sink.getWriteError());
+        assertEquals(2, database.getCollection("attachments").countDocuments());
+    }
+
+}
@@ -0,0 +1,671 @@
+package com.khub.crawling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-memory {@code HTTP} server mimicking the {@code Confluence} and {@code Microsoft Graph}
+ * endpoints used by the crawlers, including their pagination formats and {@code Graph} batching.
+ * Responses are generated on the fly from the configured data set sizes, optionally
+ * delayed by a fixed latency, throttled with {@code 429} or padded to large bodies.
+ * Attached files are served as binary downloads of the configured size
+ */
+public class StubApiServer {
+
+    // Data set sizes
+    public int groups = 4;
+    public int usersPerGroup = 150;
+    public int spaces = 10;
+    public int pagesPerSpace = 100;
+    public int commentsPerPage = 3;
+    public int teams = 5;
+    public int channelsPerTeam = 10;
+    public int postsPerChannel = 60;
+    public int repliesPerPost = 2;
+
+    // Delay of each response in milliseconds
+    public long latencyMillis = 20;
+
+    // Share of requests answered with 429 and the requested pause in seconds
+    public double throttleRate = 0.01;
+    public int retryAfterSeconds = 0;
+
+    // Count of the first requests answered with 429 regardless of the throttle rate
+    public int throttledRequests = 0;
+
+    // Share of requests answered with 500, which are not retried
+    public double failureRate = 0;
+
+    // Length of the content of pages, comments and posts in characters
+    public int bodySize = 2048;
+
+    // Compresses responses with gzip, if the client accepts it
+    public boolean compression = true;
+
+    // Attachments of each page and files shared in each post, drawn from a set of
+    // distinct files, so that the same file is attached to several pages and posts
+    public int attachmentsPerPage = 0;
+    public int distinctAttachments = 10;
+    public int attachmentSize = 1024 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final AtomicLong exchangeCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong bytesCount = new AtomicLong();
+
+    private String content;
+
+    public StubApiServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    /**
+     * Starts the server on a free local port
+     */
+    public void start() {
+        content = "x".repeat(bodySize);
+        server.start();
+    }
+
+    /**
+     * Stops the server
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the endpoint of the server
+     * @return the {@link URL} of the server ending with a slash
+     */
+    public URL getEndpoint() {
+        try {
+            return new URL("http://localhost:" + server.getAddress().getPort() + "/");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the count of {@code HTTP} round trips, where a batch is counted once
+     * @return the count of round trips
+     */
+    public long getExchangeCount() {
+        return exchangeCount.get();
+    }
+
+    /**
+     * Returns the count of received requests, where each sub-request of a batch is counted
+     * @return the count of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the count of requests answered with {@code 429}
+     * @return the count of throttled requests
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * Returns the count of sub-requests answered with {@code 304}
+     * @return the count of not modified sub-requests
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * Returns the count of sent response body bytes
+     * @return the count of bytes
+     */
+    public long getBytesCount() {
+        return bytesCount.get();
+    }
+
+    /**
+     * Resets all counters
+     */
+    public void reset() {
+        exchangeCount.set(0);
+        requestCount.set(0);
+        throttledCount.set(0);
+        notModifiedCount.set(0);
+        bytesCount.set(0);
+    }
+
+    /**
+     * Handles a single {@code HTTP} exchange
+     * @param exchange - the {@link HttpExchange}
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        exchangeCount.incrementAndGet();
+        try {
+            if (latencyMillis > 0) Thread.sleep(latencyMillis);
+
+            String path = exchange.getRequestURI().getRawPath();
+            if (path.startsWith("/download/") || path.startsWith("/files/") || path.startsWith("/v1.0/shares/")) {
+                download(exchange, path);
+                return;
+            }
+
+            Response response;
+            if (path.equals("/v1.0/$batch")) {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                response = new Response(200, batch(JsonParser.parseString(body).getAsJsonObject()));
+            } else {
+                response = route(exchange.getRequestURI());
+            }
+
+            if (response.status == 429) {
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+            }
+
+            byte[] bytes = response.body.toString().getBytes(StandardCharsets.UTF_8);
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (compression && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                bytes = gzip(bytes);
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+
+            bytesCount.addAndGet(bytes.length);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(response.status, bytes.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(bytes);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers a file download with the file content written in chunks, so that large files are
+     * never held in memory. Shared files are redirected to their download location like in
+     * {@code Graph}, where the content of a drive item is served from a pre-authenticated {@code URL}
+     * @param exchange - the {@link HttpExchange}
+     * @param path - the raw request path ending with the file name
+     */
+    private void download(HttpExchange exchange, String path) throws IOException {
+        requestCount.incrementAndGet();
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+
+        if (path.startsWith("/v1.0/shares/")) {
+            String shareId = path.split("/")[3].substring("u!".length());
+            String sharingUrl = new String(Base64.getUrlDecoder().decode(shareId), StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Location", getEndpoint() + "files/" + sharingUrl.substring(sharingUrl.lastIndexOf('/') + 1));
+            exchange.sendResponseHeaders(302, -1);
+            return;
+        }
+
+        Matcher file = Pattern.compile("file-(\\d+)\\.bin$").matcher(path);
+        if (!file.find()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        // The content depends only on the file index, so that equal files have equal checksums
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) Integer.parseInt(file.group(1)));
+
+        bytesCount.addAndGet(attachmentSize);
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, attachmentSize);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            for (long written = 0; written < attachmentSize; written += chunk.length) {
+                stream.write(chunk, 0, (int) Math.min(chunk.length, attachmentSize - written));
+            }
+        }
+    }
+
+    /**
+     * Compresses the given response body
+     * @param bytes - the response body
+     * @return the gzip compressed body
+     */
+    private byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4);
+        try (OutputStream stream = new GZIPOutputStream(buffer)) {
+            stream.write(bytes);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Answers the sub-requests of a {@code Graph} batch request
+     * @param request - the batch request body
+     * @return the batch response body
+     */
+    private JsonObject batch(JsonObject request) {
+        JsonArray responses = new JsonArray();
+        for (JsonElement element : request.getAsJsonArray("requests")) {
+            JsonObject subRequest = element.getAsJsonObject();
+            Response response = route(URI.create("/v1.0" + subRequest.get("url").getAsString()));
+
+            JsonObject subResponse = new JsonObject();
+            subResponse.addProperty("id", subRequest.get("id").getAsString());
+            JsonObject headers = new JsonObject();
+            if (response.status == 429) {
+                headers.addProperty("Retry-After", String.valueOf(retryAfterSeconds));
+            }
+
+            // Sub-responses are validated by an ETag derived from their body, which is omitted if not modified
+            if (response.status == 200) {
+                String etag = "\"" + Integer.toHexString(response.body.toString().hashCode()) + "\"";
+                headers.addProperty("ETag", etag);
+                JsonObject requestHeaders = subRequest.getAsJsonObject("headers");
+                if (requestHeaders != null && requestHeaders.has("If-None-Match")
+                        && requestHeaders.get("If-None-Match").getAsString().equals(etag)) {
+                    notModifiedCount.incrementAndGet();
+                    response = new Response(304, null);
+                }
+            }
+
+            subResponse.addProperty("status", response.status);
+            if (headers.size() > 0) subResponse.add("headers", headers);
+            if (response.body != null) subResponse.add("body", response.body);
+            responses.add(subResponse);
+        }
+
+        JsonObject response = new JsonObject();
+        response.add("responses", responses);
+        return response;
+    }
+
+    /**
+     * Generates the response for the given request {@code URI}
+     * @param uri - the request {@link URI}
+     * @return the {@link Response}
+     */
+    private Response route(URI uri) {
+        long requestIndex = requestCount.incrementAndGet();
+        if (requestIndex <= throttledRequests
+                || throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+            throttledCount.incrementAndGet();
+            return new Response(429, new JsonObject());
+        }
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            return new Response(500, new JsonObject());
+        }
+
+        String[] path = uri.getRawPath().substring(1).split("/");
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+
+        // Confluence endpoints
+        if (path[0].equals("rest")) {
+            String resource = String.join("/", path).substring("rest/api/".length());
+            int start = Integer.parseInt(query.getOrDefault("start", "0"));
+            int limit = Integer.parseInt(query.getOrDefault("limit", "25"));
+
+            if (resource.equals("group")) {
+                return confluencePage(uri, start, limit, groups, i -> {
+                    JsonObject group = new JsonObject();
+                    group.addProperty("name", "group " + i);
+                    return group;
+                });
+            }
+            if (path.length == 5 && path[2].equals("group") && path[4].equals("member")) {
+                int group = Integer.parseInt(path[3].substring("group%20".length()));
+                return confluencePage(uri, start, limit, usersPerGroup, i -> user((group * usersPerGroup + i) % (usersPerGroup * 2)));
+            }
+            if (resource.equals("space")) {
+                return confluencePage(uri, start, limit, spaces, this::space);
+            }
+            if (path.length == 6 && path[2].equals("space") && path[4].equals("content")) {
+                int space = Integer.parseInt(path[3].substring(1));
+                return confluencePage(uri, start, limit, pagesPerSpace + 1, i -> page(space, i));
+            }
+            if (path.length == 6 && path[2].equals("content") && path[4].equals("child")) {
+                String pageId = path[3];
+                return confluencePage(uri, start, limit, commentsPerPage, i -> comment(pageId, i));
+            }
+            if (resource.equals("content/search")) {
+                return search(uri, URLDecoder.decode(query.getOrDefault("cql", ""), StandardCharsets.UTF_8), start, limit);
+            }
+        }
+
+        // Microsoft Graph endpoints
+        if (path[0].equals("v1.0")) {
+            int skip = Integer.parseInt(query.getOrDefault("$skip", "0"));
+            int top = Integer.parseInt(query.getOrDefault("top", "20"));
+
+            if (path.length == 3 && path[2].equals("joinedTeams")) {
+                return graphPage(uri, 0, teams, teams, i -> named("team-" + i));
+            }
+            if (path.length == 4 && path[3].equals("channels")) {
+                return graphPage(uri, 0, channelsPerTeam, channelsPerTeam, i -> named(path[2] + "-channel-" + i));
+            }
+            if (path.length == 6 && path[5].equals("messages")) {
+                return graphPage(uri, skip, top, postsPerChannel, i -> post(path[4], path[4] + "-post-" + i));
+            }
+            if (path.length == 8 && path[7].equals("replies")) {
+                return graphPage(uri, skip, top, repliesPerPost, i -> post(path[4], path[6] + "-reply-" + i));
+            }
+        }
+
+        JsonObject error = new JsonObject();
+        error.addProperty("message", "Not found");
+        return new Response(404, error);
+    }
+
+    /**
+     * Answers a {@code CQL} search for the pages or for all pages and comments of a space, each
+     * page followed by its comments with expanded container. Searches for changed content find
+     * nothing. Search results are limited to 50 and report the total count of results
+     */
+    private Response search(URI uri, String cql, int start, int limit) {
+        Matcher space = Pattern.compile("space = \"S(\\d+)\"").matcher(cql);
+        if (!space.find() || cql.contains("lastmodified")) {
+            return confluencePage(uri, start, Math.min(limit, 50), 0, i -> null);
+        }
+
+        int spaceIndex = Integer.parseInt(space.group(1));
+        if (cql.contains("type = page")) {
+            return confluencePage(uri, start, Math.min(limit, 50), pagesPerSpace + 1, i -> page(spaceIndex, i));
+        }
+
+        int contentPerPage = commentsPerPage + 1;
+        return confluencePage(uri, start, Math.min(limit, 50), (pagesPerSpace + 1) * contentPerPage, i -> {
+            JsonObject page = page(spaceIndex, i / contentPerPage);
+            if (i % contentPerPage == 0) return page;
+
+            String pageId = page.get("id").getAsString();
+            JsonObject comment = comment(pageId, i % contentPerPage - 1);
+            comment.add("container", named(pageId));
+            return comment;
+        });
+    }
+
+    /**
+     * Generates a {@code Confluence} response page with {@code _links.next} for offset pagination
+     */
+    private Response confluencePage(URI uri, int start, int limit, int size, Generator generator) {
+        JsonArray results = new JsonArray();
+        for (int i = start; i < Math.min(size, start + limit); i++) {
+            results.add(generator.generate(i));
+        }
+
+        JsonObject links = new JsonObject();
+        if (start + limit < size) {
+            String query = uri.getRawQuery().replaceAll("&?start=\\d+", "");
+            links.addProperty("next", uri.getRawPath().substring(1) + "?" + query + "&start=" + (start + limit));
+        }
+
+        JsonObject response = new JsonObject();
+        response.add("results", results);
+        response.addProperty("start", start);
+        response.addProperty("limit", limit);
+        response.addProperty("size", results.size());
+        if (uri.getRawPath().endsWith("/content/search")) response.addProperty("totalSize", size);
+        response.add("_links", links);
+        return new Response(200, response);
+    }
+
+    /**
+     * Generates a {@code Graph} response page with an absolute {@code @odata.nextLink}
+     */
+    private Response graphPage(URI uri, int skip, int top, int size, Generator generator) {
+        JsonArray value = new JsonArray();
+        for (int i = skip; i < Math.min(size, skip + top); i++) {
+            value.add(generator.generate(i));
+        }
+
+        JsonObject response = new JsonObject();
+        response.add("value", value);
+        if (skip + top < size) {
+            String query = uri.getRawQuery() == null ? "" : uri.getRawQuery().replaceAll("&?\\$skip=\\d+", "");
+            response.addProperty("@odata.nextLink", getEndpoint() + uri.getRawPath().substring(1)
+                + "?" + query + "&$skip=" + (skip + top));
+        }
+        return new Response(200, response);
+    }
+
+    /**
+     * Generates a {@code Confluence} user with a personal space
+     */
+    private JsonObject user(int i) {
+        JsonObject space = new JsonObject();
+        space.addProperty("key", "~user" + i);
+
+        JsonObject user = new JsonObject();
+        user.addProperty("userKey", "user-" + i);
+        user.addProperty("displayName", "User " + i);
+        user.add("personalSpace", space);
+        return user;
+    }
+
+    /**
+     * Generates a {@code Confluence} space with its homepage
+     */
+    private JsonObject space(int i) {
+        JsonObject expandable = new JsonObject();
+        expandable.addProperty("homepage", "/rest/api/content/" + getHomepageId(i));
+
+        JsonObject space = new JsonObject();
+        space.addProperty("id", 1000 + i);
+        space.addProperty("key", "S" + i);
+        space.addProperty("name", "Space " + i);
+        space.add("_expandable", expandable);
+        return space;
+    }
+
+    /**
+     * Generates a {@code Confluence} page, the first page of a space is its homepage
+     */
+    private JsonObject page(int space, int i) {
+        String id = i == 0 ? getHomepageId(space) : "page-" + space + "-" + i;
+
+        JsonArray ancestors = new JsonArray();
+        if (i > 0) ancestors.add(named(getHomepageId(space)));
+
+        JsonObject comment = new JsonObject();
+        comment.addProperty("size", commentsPerPage);
+        JsonObject children = new JsonObject();
+        children.add("comment", comment);
+        if (attachmentsPerPage > 0) {
+            children.add("attachment", attachments(id, space * pagesPerSpace + i));
+        }
+
+        JsonObject page = document(id);
+        page.addProperty("type", "page");
+        page.addProperty("title", "Page " + id);
+        page.add("ancestors", ancestors);
+        page.add("children", children);
+        return page;
+    }
+
+    /**
+     * Generates the inline attachments of a {@code Confluence} page with their download links
+     */
+    private JsonObject attachments(String pageId, int seed) {
+        JsonArray results = new JsonArray();
+        for (int i = 0; i < attachmentsPerPage; i++) {
+            String fileName = getFileName(seed + i);
+
+            JsonObject extensions = new JsonObject();
+            extensions.addProperty("mediaType", "application/octet-stream");
+            extensions.addProperty("fileSize", attachmentSize);
+            JsonObject links = new JsonObject();
+            links.addProperty("download", "/download/attachments/" + pageId + "/" + fileName + "?version=1&api=v2");
+
+            JsonObject attachment = named("att-" + pageId + "-" + i);
+            attachment.addProperty("type", "attachment");
+            attachment.addProperty("title", fileName);
+            attachment.add("extensions", extensions);
+            attachment.add("_links", links);
+            results.add(attachment);
+        }
+
+        JsonObject attachments = new JsonObject();
+        attachments.add("results", results);
+        attachments.addProperty("size", results.size());
+        attachments.add("_links", new JsonObject());
+        return attachments;
+    }
+
+    /**
+     * Generates a {@code Confluence} comment of the given page
+     */
+    private JsonObject comment(String pageId, int i) {
+        JsonArray ancestors = new JsonArray();
+        ancestors.add(named(pageId));
+
+        JsonObject comment = document(pageId + "-comment-" + i);
+        comment.addProperty("type", "comment");
+        comment.add("ancestors", ancestors);
+        return comment;
+    }
+
+    /**
+     * Generates a {@code Teams} post or reply of the given channel
+     */
+    private JsonObject post(String channelId, String id) {
+        JsonObject channelIdentity = new JsonObject();
+        channelIdentity.addProperty("channelId", channelId);
+
+        JsonObject body = new JsonObject();
+        body.addProperty("contentType", "html");
+        body.addProperty("content", content);
+
+        // Files shared in a message are referenced by their sharing URL
+        JsonArray attachments = new JsonArray();
+        for (int i = 0; i < attachmentsPerPage; i++) {
+            String fileName = getFileName(Math.abs(id.hashCode()) + i);
+            JsonObject attachment = named(id + "-file-" + i);
+            attachment.addProperty("contentType", "reference");
+            attachment.addProperty("contentUrl", "https://tenant.sharepoint.com/sites/team/Shared%20Documents/" + fileName);
+            attachment.addProperty("name", fileName);
+            attachments.add(attachment);
+        }
+
+        JsonObject post = named(id);
+        post.addProperty("messageType", "message");
+        post.addProperty("lastModifiedDateTime", "2024-01-01T00:00:00Z");
+        post.add("channelIdentity", channelIdentity);
+        post.add("body", body);
+        post.add("attachments", attachments);
+        return post;
+    }
+
+    /**
+     * Generates a {@code Confluence} content object with padded body
+     */
+    private JsonObject document(String id) {
+        JsonObject view = new JsonObject();
+        view.addProperty("value", content);
+        JsonObject body = new JsonObject();
+        body.add("view", view);
+
+        JsonObject lastUpdated = new JsonObject();
+        lastUpdated.addProperty("when", "2024-01-01T00:00:00.000Z");
+        JsonObject history = new JsonObject();
+        history.add("lastUpdated", lastUpdated);
+
+        JsonObject document = named(id);
+        document.add("body", body);
+        document.add("history", history);
+        return document;
+    }
+
+    /**
+     * Generates an object with the given id
+     */
+    private JsonObject named(String id) {
+        JsonObject object = new JsonObject();
+        object.addProperty("id", id);
+        return object;
+    }
+
+    /**
+     * Returns the name of the attached file for the given seed, one of the distinct files
+     */
+    private String getFileName(int seed) {
+        return "file-" + seed % distinctAttachments + ".bin";
+    }
+
+    /**
+     * Returns the homepage id of the given space
+     */
+    private String getHomepageId(int space) {
+        return "home-" + space;
+    }
+
+    /**
+     * Parses the raw query parameters without decoding
+     */
+    private Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null) return parameters;
+
+        for (String parameter : query.split("&")) {
+            int index = parameter.indexOf('=');
+            if (index > 0) parameters.put(parameter.substring(0, index), parameter.substring(index + 1));
+        }
+        return parameters;
+    }
+
+    /**
+     * Generates the entry with the given index of a response page
+     */
+    private interface Generator {
+        JsonObject generate(int index);
+    }
+
+    /**
+     * Status code and body of a generated response
+     */
+    private static class Response {
+
+        private final int status;
+        private final JsonElement body;
+
+        private Response(int status, JsonElement body) {
+            this.status = status;
+            this.body = body;
+        }
+
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.khub.crawling;
+
+import static com.khub.crawling.ConfluenceCrawlerTest.assertCrawledOnce;
+import static com.khub.crawling.ConfluenceCrawlerTest.crawl;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.khub.common.AuthenticationHeader;
+import com.khub.common.HttpCache;
+import com.khub.common.HttpTransport;
+
+class TeamsCrawlerTest {
+
+    private static final AuthenticationHeader HEADER = new AuthenticationHeader("Authorization", "Bearer", "token");
+
+    private StubApiServer server;
+    private HttpTransport transport;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new StubApiServer();
+        server.teams = 2;
+        server.channelsPerTeam = 3;
+        server.postsPerChannel = 120;
+        server.repliesPerPost = 2;
+        server.latencyMillis = 0;
+        server.throttleRate = 0;
+        server.bodySize = 16;
+        server.start();
+        transport = HttpTransport.ofDefaults();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+        transport.shutdown();
+    }
+
+    /**
+     * Requests are combined into {@code $batch} requests, so far fewer round trips than requests are
+     * needed, while posts of each channel are still retrieved across several response pages
+     */
+    @Test
+    void combinesRequestsIntoBatches() {
+        Map<String, List<BsonValue>> crawled = crawl(new TeamsCrawler(server.getEndpoint(), HEADER, 8, 1000,
+            CrawlContext.of(transport)));
+
+        int postsCount = server.teams * server.channelsPerTeam * server.postsPerChannel;
+        assertCrawledOnce(crawled, "teams", server.teams);
+        assertCrawledOnce(crawled, "channels", server.teams * server.channelsPerTeam);
+        assertCrawledOnce(crawled, "posts", postsCount * (1 + server.repliesPerPost));
+        assertTrue(server.getExchangeCount() * 10 < server.getRequestCount(),
+            server.getRequestCount() + " requests were sent in " + server.getExchangeCount() + " round trips");
+    }
+
+    /**
+     * Throttled sub-requests of a batch are repeated in a later batch, while the other
+     * sub-requests of the same batch are completed with their responses
+     */
+    @Test
+    void retriesThrottledSubRequests() {
+        server.throttledRequests = 5;
+        TeamsCrawler crawler = new TeamsCrawler(server.getEndpoint(), HEADER, 8, 1000, CrawlContext.of(transport));
+        Map<String, List<BsonValue>> crawled = crawl(crawler);
+
+        int postsCount = server.teams * server.channelsPerTeam * server.postsPerChannel;
+        assertEquals(5, server.getThrottledCount());
+        assertCrawledOnce(crawled, "posts", postsCount * (1 + server.repliesPerPost));
+        assertEquals(0, crawler.getFailedCount());
+    }
+
+    /**
+     * Sub-requests of a repeated crawl are conditional on the cached sub-responses, so unchanged
+     * response pages are confirmed with {@code 304} and their bodies are served from the cache
+     */
+    @Test
+    void revalidatesCachedSubRequests(@TempDir Path cachePath) {
+        HttpCache cache = HttpCache.of(cachePath, 64L * 1024 * 1024);
+        Map<String, List<BsonValue>> crawled = crawl(new TeamsCrawler(server.getEndpoint(), HEADER, 8, 1000,
+            CrawlContext.of(transport).withCache(cache)));
+        assertEquals(0, server.getNotModifiedCount());
+
+        server.reset();
+        Map<String, List<BsonValue>> recrawled = crawl(new TeamsCrawler(server.getEndpoint(), HEADER, 8, 1000,
+            CrawlContext.of(transport).withCache(cache)));
+
+        int postsCount = server.teams * server.channelsPerTeam * server.postsPerChannel;
+        assertEquals(server.getRequestCount(), server.getNotModifiedCount());
+        assertCrawledOnce(recrawled, "channels", server.teams * server.channelsPerTeam);
+        assertCrawledOnce(recrawled, "posts", postsCount * (1 + server.repliesPerPost));
+        assertEquals(crawled.get("posts").size(), recrawled.get("posts").size());
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.khub.crawling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+class WatermarkStoreTest {
+
+    private MongoServer mongoServer;
+    private MongoClient client;
+    private MongoDatabase database;
+
+    @BeforeEach
+    void setUp() {
+        mongoServer = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = mongoServer.bind();
+        client = MongoClients.create("mongodb://localhost:" + address.getPort());
+        database = client.getDatabase("test_raw_data");
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        mongoServer.shutdownNow();
+    }
+
+    /**
+     * Timestamps with different offsets are compared by time, not by text, which
+     * would take 10:30+02:00 as later than the actual latest edit at 09:00Z
+     */
+    @Test
+    void takesLatestTimestampAcrossOffsets() {
+        database.getCollection("pages").insertMany(List.of(
+            page("page-1", "space-1", "2024-01-01T10:30:00.000+02:00"),
+            page("page-2", "space-1", "2024-01-01T09:00:00.000Z"),
+            page("page-3", "space-2", "2024-01-02T00:00:00.000Z")));
+        database.getCollection("posts").insertOne(new Document("_id", "post-1")
+            .append("channelIdentity", new Document("channelId", "channel-1"))
+            .append("lastModifiedDateTime", "2024-01-03T00:00:00Z"));
+
+        WatermarkStore watermarks = WatermarkStore.compute(database);
+
+        assertEquals(Instant.parse("2024-01-01T09:00:00Z"), watermarks.getSpaceWatermark("space-1"));
+        assertEquals(Instant.parse("2024-01-02T00:00:00Z"), watermarks.getSpaceWatermark("space-2"));
+        assertEquals(Instant.parse("2024-01-03T00:00:00Z"), watermarks.getChannelWatermark("channel-1"));
+    }
+
+    /**
+     * Spaces and channels with failed requests keep the high-water marks of the previous crawl,
+     * so that their missing data is retrieved again by the next incremental crawl
+     */
+    @Test
+    void keepsPreviousWatermarksOfFailedScopes() {
+        database.getCollection("pages").insertMany(List.of(
+            page("page-1", "space-1", "2024-01-01T00:00:00.000Z"),
+            page("page-2", "space-2", "2024-01-01T00:00:00.000Z"),
+            page("page-3", "space-3", "2024-01-01T00:00:00.000Z")));
+        WatermarkStore previous = WatermarkStore.compute(database);
+
+        database.getCollection("pages").insertMany(List.of(
+            page("page-4", "space-1", "2024-02-01T00:00:00.000Z"),
+            page("page-5", "space-2", "2024-02-01T00:00:00.000Z"),
+            page("page-6", "space-3", "2024-02-01T00:00:00.000Z"),
+            page("page-7", "space-4", "2024-02-01T00:00:00.000Z")));
+        FailedRequestJournal journal = FailedRequestJournal.create(database);
+        journal.record("ConfluenceCrawler", "pages", BsonDocument.parse("{'_id': 'space-1'}"), "space-1", null, new RuntimeException());
+        journal.record("ConfluenceCrawler", "comments", BsonDocument.parse("{'_id': 'page-5', 'spaceId': 'space-2'}"), "page-5",
+            null, new RuntimeException());
+        journal.record("ConfluenceCrawler", "pages", BsonDocument.parse("{'_id': 'space-4'}"), "space-4", null, new RuntimeException());
+
+        WatermarkStore watermarks = WatermarkStore.compute(database).retainFailed(previous, journal.findAll());
+        assertEquals(Instant.parse("2024-01-01T00:00:00Z"), watermarks.getSpaceWatermark("space-1"));
+        assertEquals(Instant.parse("2024-01-01T00:00:00Z"), watermarks.getSpaceWatermark("space-2"));
+        assertEquals(Instant.parse("2024-02-01T00:00:00Z"), watermarks.getSpaceWatermark("space-3"));
+        assertNull(watermarks.getSpaceWatermark("space-4"));
+
+        // A failed listing keeps all previous marks, which are loaded even if there are none
+        journal.record("ConfluenceCrawler", null, null, null, null, new RuntimeException());
+        WatermarkStore.compute(database).retainFailed(previous, journal.findAll()).save(database);
+        assertEquals(Instant.parse("2024-01-01T00:00:00Z"), WatermarkStore.load(database).getSpaceWatermark("space-3"));
+        WatermarkStore.compute(database).retainFailed(null, journal.findAll()).save(database);
+        assertNull(WatermarkStore.load(database).getSpaceWatermark("space-3"));
+    }
+
+    /**
+     * Creates a crawled page of the given space
+     */
+    private static Document page(String id, String spaceId, String lastUpdated) {
+        return new Document("_id", id).append("spaceId", spaceId)
+            .append("history", new Document("lastUpdated", new Document("when", lastUpdated)));
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.khub.processing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+class MappingPlanTest {
+
+    private static final String CONFLUENCE_BASE_URL = "https://confluence.example.com/wiki";
+
+    // Mappings with shared prefixes, nested and array paths and several paths per field
+    private static final Map<String, List<String>> MAPPINGS = new LinkedHashMap<String, List<String>>();
+    static {
+        MAPPINGS.put("_id", List.of("_id"));
+        MAPPINGS.put("type", List.of("type", "messageType"));
+        MAPPINGS.put("name", List.of("name", "displayName"));
+        MAPPINGS.put("link", List.of("_links.webui", "personalSpace._links.webui", "webUrl"));
+        MAPPINGS.put("content", List.of("body.view.value", "body.content", "description"));
+        MAPPINGS.put("author", List.of("history.createdBy.displayName", "from.user.displayName"));
+        MAPPINGS.put("lastUpdateTime", List.of("history.lastUpdated.when", "lastEditedDateTime"));
+        MAPPINGS.put("ancestor", List.of("ancestors[*].id", "teamId", "pageId", "mentions[*]", "channelIdentity.channelId"));
+    }
+
+    // Documents of the crawled collections
+    private static final List<String> DOCUMENTS = List.of(
+        "{'_id': 'page-1', 'type': 'page', 'title': 'Page', '_links': {'webui': '/spaces/S/pages/1'},"
+            + " 'body': {'view': {'value': '<p>Text</p>'}}, 'history': {'createdBy': {'displayName': 'User'},"
+            + " 'lastUpdated': {'when': '2024-01-01T00:00:00.000Z'}}, 'ancestors': [{'id': 'home'}, {'id': 'parent'}]}",
+        "{'_id': 'page-2', 'type': 'page', 'title': 'Page', '_links': {'webui': '/spaces/S/pages/2'},"
+            + " 'body': {'view': {'value': '<p>Other</p>'}}, 'history': {'createdBy': {'displayName': 'Other'},"
+            + " 'lastUpdated': {'when': '2024-01-02T00:00:00.000Z'}}, 'ancestors': [{'id': 'home'}]}",
+        "{'_id': 'comment-1', 'type': 'comment', 'body': {'view': {'value': 'Comment'}}, 'pageId': 'page-1',"
+            + " 'ancestors': [{'id': 'page-1'}], 'history': {'lastUpdated': {'when': '2024-01-03T00:00:00.000Z'}}}",
+        "{'_id': 'user-1', 'displayName': 'User', 'personalSpace': {'_links': {'webui': '/spaces/~user'}}}",
+        "{'_id': 'post-1', 'messageType': 'message', 'webUrl': 'https://teams.example.com/post-1', 'teamId': 'team-1',"
+            + " 'body': {'content': 'Post'}, 'from': {'user': {'displayName': 'User'}}, 'lastEditedDateTime': null,"
+            + " 'channelIdentity': {'channelId': 'channel-1'}, 'mentions': [{'id': 0, 'text': 'User'}, {'id': 1}]}",
+        "{'_id': 'channel-1', 'displayName': 'General', 'description': 'Channel', 'teamId': 'team-1', 'count': 3}");
+
+    /**
+     * Documents of the same shape are processed like by the previous {@code JSONProcessor},
+     * which selected the present paths from the first document of a collection
+     */
+    @Test
+    void processesDocumentsOfTheSameShapeLikeJsonProcessor() {
+        List<BsonDocument> pages = List.of(toRaw(DOCUMENTS.get(0)), toRaw(DOCUMENTS.get(1)));
+        MappingPlan plan = MappingPlan.of(MAPPINGS, CONFLUENCE_BASE_URL).select(pages.get(0));
+
+        List<JsonElement> expected = LegacyProcessor.process(pages);
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals(expected.get(i), JsonParser.parseString(plan.apply(pages.get(i)).toJson()));
+        }
+    }
+
+    /**
+     * Each document is processed with the plan of its own shape like a collection of
+     * the document alone by the previous {@code JSONProcessor}
+     */
+    @Test
+    void processesEachShapeLikeJsonProcessor() {
+        MappingPlan plan = MappingPlan.of(MAPPINGS, CONFLUENCE_BASE_URL);
+        for (String json : DOCUMENTS) {
+            BsonDocument document = toRaw(json);
+            JsonElement expected = LegacyProcessor.process(List.of(document)).get(0);
+            assertEquals(expected, JsonParser.parseString(plan.select(document).apply(document).toJson()), json);
+        }
+
+        // Both pages have the same shape
+        assertEquals(DOCUMENTS.size() - 1, plan.getShapeCount());
+    }
+
+    /**
+     * Converts the given {@code JSON} into a {@link RawBsonDocument} like documents read from the raw database
+     * @param json - the {@code JSON} of the document
+     * @return the {@link RawBsonDocument}
+     */
+    private static BsonDocument toRaw(String json) {
+        return new RawBsonDocument(BsonDocument.parse(json), new BsonDocumentCodec());
+    }
+
+    /**
+     * Processing algorithm of {@code JSONProcessor} before mappings were compiled into a {@link MappingPlan},
+     * which extracted each path from {@code JSON} separately. Mappings are walked in their order instead of
+     * {@code HashMap} order, which only changes the order of values combined into an array
+     */
+    private static class LegacyProcessor {
+
+        private static List<JsonElement> process(List<BsonDocument> documents) {
+            List<JsonElement> source = new ArrayList<JsonElement>();
+            for (BsonDocument document : documents) {
+                source.add(JsonParser.parseString(document.toJson()));
+            }
+
+            Map<String, String> jsonPaths = new LinkedHashMap<String, String>();
+            MAPPINGS.forEach((member, memberPaths) -> memberPaths.forEach(jsonPath -> {
+                if (getByPath(source.get(0), jsonPath) != null) jsonPaths.put(jsonPath, member);
+            }));
+
+            List<JsonElement> output = new ArrayList<JsonElement>();
+            for (JsonElement item : source) {
+                JsonObject object = new JsonObject();
+                jsonPaths.keySet().forEach(jsonPath -> {
+                    JsonElement result = getByPath(item, jsonPath);
+                    if (result != null && jsonPath.contains("_links.webui")) {
+                        result = new JsonPrimitive(CONFLUENCE_BASE_URL + result.getAsJsonPrimitive().getAsString());
+                    }
+
+                    String member = jsonPaths.get(jsonPath);
+                    if (object.has(member)) {
+                        JsonElement element = object.get(member);
+                        if (!element.isJsonArray()) {
+                            JsonArray array = new JsonArray();
+                            array.add(element);
+                            element = array;
+                            object.remove(member);
+                            object.add(member, element);
+                        }
+                        if (result.isJsonObject()) {
+                            element.getAsJsonArray().add(result);
+                        }
+                        if (result.isJsonArray()) {
+                            element.getAsJsonArray().addAll(result.getAsJsonArray());
+                        }
+                    } else {
+                        object.add(member, result);
+                    }
+                });
+                output.add(object);
+            }
+            return output;
+        }
+
+        private static JsonElement getByPath(JsonElement item, String jsonPath) {
+            JsonElement result = item;
+            for (String key : jsonPath.split("\\.")) {
+                if (result == null) {
+                    return null;
+                } else if (result.isJsonArray()) {
+                    JsonArray jsonArray = new JsonArray();
+                    for (JsonElement element : result.getAsJsonArray()) {
+                        jsonArray.add(element.getAsJsonObject().get(key));
+                    }
+                    result = jsonArray;
+                } else if (key.contains("[*]")) {
+                    result = result.getAsJsonObject().getAsJsonArray(key.replace("[*]", ""));
+                } else if (result.isJsonObject()) {
+                    result = result.getAsJsonObject().get(key);
+                }
+            }
+            return result;
+        }
+
+    }
+
+}